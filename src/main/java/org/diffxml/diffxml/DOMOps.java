@@ -78,14 +78,32 @@ public final class DOMOps {
     public static void outputXML(final Document doc, final OutputStream os,
             final boolean indented) 
     throws IOException {
+        outputXML(doc, os, indented, newTransformer());
+    }
+
+    /**
+     * Writes given XML document to given stream using the given Transformer.
+     *
+     * The Transformer is reset before use, so can be reused for many 
+     * documents. Uses UTF8 encoding, preserves spaces.
+     * Adds XML declaration with standalone set to "yes".
+     * 
+     * @param doc DOM document to output
+     * @param os  Stream to output to
+     * @param indented Whether to indent the output
+     * @param transformer The Transformer used to serialize the document
+     * @throws IOException If an error occurs with serialization
+     */
+    public static void outputXML(final Document doc, final OutputStream os,
+            final boolean indented, final Transformer transformer) 
+    throws IOException {
         
         if (doc == null) {
             throw new IllegalArgumentException("Null document");
         }
     
         try {
-            final Transformer transformer = 
-                DOMOps.TRANSFORMER_FACTORY.newTransformer();
+            transformer.reset();
             transformer.setOutputProperty(OutputKeys.METHOD, "xml");
             transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
             
@@ -99,13 +117,32 @@ public final class DOMOps {
             transformer.transform(new DOMSource(doc),
                     new StreamResult(os));
     
-        } catch (TransformerConfigurationException e1) {
-            throw new IOException("Failed to configure serializer", e1);
         } catch (TransformerException e) {
             throw new IOException("Failed to serialize document", e);
         }
     }
 
+    /**
+     * Creates a new Transformer for outputting XML.
+     *
+     * @return A new Transformer
+     * @throws IOException If the Transformer can't be configured
+     */
+    public static Transformer newTransformer() throws IOException {
+
+        Transformer ret;
+        //TransformerFactory isn't guaranteed to be thread safe
+        synchronized (TRANSFORMER_FACTORY) {
+            try {
+                ret = TRANSFORMER_FACTORY.newTransformer();
+            } catch (TransformerConfigurationException e) {
+                throw new IOException("Failed to configure serializer", e);
+            }
+        }
+
+        return ret;
+    }
+
     /**
      * Writes given XML document to given stream.
      *
@@ -155,8 +192,7 @@ public final class DOMOps {
         }
     
         try {
-            final Transformer transformer = 
-                DOMOps.TRANSFORMER_FACTORY.newTransformer();
+            final Transformer transformer = newTransformer();
             transformer.setOutputProperty(OutputKeys.METHOD, "xml");
             transformer.setOutputProperty(OutputKeys.STANDALONE, "no");
             transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, 
@@ -166,8 +202,6 @@ public final class DOMOps {
             transformer.transform(new DOMSource(node),
                     new StreamResult(os));
     
-        } catch (TransformerConfigurationException e1) {
-            throw new IOException("Failed to configure serializer", e1);
         } catch (TransformerException e) {
             throw new IOException("Failed to serialize document", e);
         }
@@ -262,13 +296,28 @@ public final class DOMOps {
 
     /**
      * Sets various features on the DOM Parser.
+     * 
+     * Uses the options currently set in DiffFactory.
      *  
      * @param parserFactory
      *            The parser to be set up
      */
     public static void initParser(final DocumentBuilderFactory parserFactory) {
+        initParser(parserFactory, DiffFactory.getOptions());
+    }
+
+    /**
+     * Sets various features on the DOM Parser.
+     *  
+     * @param parserFactory
+     *            The parser to be set up
+     * @param options
+     *            The options for the diff
+     */
+    public static void initParser(final DocumentBuilderFactory parserFactory,
+            final DiffOptions options) {
     
-        if (!DiffFactory.isResolveEntities()) {
+        if (!options.isResolveEntities()) {
             parserFactory.setExpandEntityReferences(false);
         }
     
@@ -0,0 +1,365 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.diffxml.diffxml.fmes.Fmes;
+import org.diffxml.patchxml.DULPatch;
+import org.diffxml.patchxml.PatchFormatException;
+import org.diffxml.patchxml.PatchPlan;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Long-lived engine for diffing and patching many documents.
+ *
+ * Creating parsers, serializers and XPaths means looking up the JAXP 
+ * factories, which takes longer than diffing small documents. An engine 
+ * keeps one of each per thread and reuses them for every call, so a single
+ * engine can be shared by any number of threads.
+ *
+ * Parsers are set up with DOMOps.initParser using the options of the 
+ * engine.
+ *
+ * @author Adrian Mouat
+ */
+public final class DiffEngine {
+
+    /**
+     * The options for diffs run by the engine.
+     */
+    private final DiffOptions mOptions;
+
+    /**
+     * Factory for the parsers, set up with the options of the engine.
+     */
+    private final DocumentBuilderFactory mParserFactory;
+
+    /**
+     * Factory for the XPaths.
+     */
+    private final XPathFactory mXPathFactory;
+
+    /**
+     * The parser of each thread.
+     */
+    private final ThreadLocal<DocumentBuilder> mParsers = 
+        new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * The serializer of each thread.
+     */
+    private final ThreadLocal<Transformer> mTransformers = 
+        new ThreadLocal<Transformer>();
+
+    /**
+     * The XPath of each thread.
+     */
+    private final ThreadLocal<XPath> mXPaths = new ThreadLocal<XPath>();
+
+    /**
+     * Gives diffs of files the parser of the thread reading each file.
+     */
+    private final ParserSource mParserSource = new ParserSource() {
+        public DocumentBuilder getParser() throws DiffException {
+            return DiffEngine.this.getParser();
+        }
+    };
+
+    /**
+     * Creates an engine using the options currently set in DiffFactory.
+     */
+    public DiffEngine() {
+        this(DiffFactory.getOptions());
+    }
+
+    /**
+     * Creates an engine with the given options.
+     *
+     * @param options The options for diffs run by the engine
+     */
+    public DiffEngine(final DiffOptions options) {
+
+        mOptions = options;
+        mParserFactory = DocumentBuilderFactory.newInstance();
+        DOMOps.initParser(mParserFactory, options);
+        mXPathFactory = XPathFactory.newInstance();
+    }
+
+    /**
+     * Returns the options for diffs run by the engine.
+     *
+     * @return The options
+     */
+    public DiffOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * Returns the parser for the current thread, ready for use.
+     *
+     * @return The parser
+     * @throws DiffException If the parser can't be created
+     */
+    private DocumentBuilder getParser() throws DiffException {
+
+        DocumentBuilder ret = mParsers.get();
+        if (ret == null) {
+            //Factories aren't guaranteed to be thread safe
+            synchronized (mParserFactory) {
+                try {
+                    ret = mParserFactory.newDocumentBuilder();
+                } catch (ParserConfigurationException e) {
+                    throw new DiffException("Failed to set up XML parser", e);
+                }
+            }
+            mParsers.set(ret);
+        } else {
+            ret.reset();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the serializer for the current thread.
+     *
+     * @return The serializer
+     * @throws IOException If the serializer can't be created
+     */
+    private Transformer getTransformer() throws IOException {
+
+        Transformer ret = mTransformers.get();
+        if (ret == null) {
+            ret = DOMOps.newTransformer();
+            mTransformers.set(ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the XPath for the current thread, ready for use.
+     *
+     * @return The XPath
+     */
+    private XPath getXPath() {
+
+        XPath ret = mXPaths.get();
+        if (ret == null) {
+            synchronized (mXPathFactory) {
+                ret = mXPathFactory.newXPath();
+            }
+            mXPaths.set(ret);
+        } else {
+            ret.reset();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parses a file.
+     *
+     * @param file The file to parse
+     * @return The parsed document
+     * @throws DiffException If the file can't be parsed
+     */
+    public Document parse(final File file) throws DiffException {
+
+        Document ret;
+        try {
+            ret = getParser().parse(file);
+        } catch (IOException e) {
+            throw new DiffException("Failed to parse file "
+                    + file.getAbsolutePath(), e);
+        } catch (SAXException e) {
+            throw new DiffException("Failed to parse file "
+                    + file.getAbsolutePath(), e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parses a stream.
+     *
+     * @param is The stream to parse
+     * @return The parsed document
+     * @throws DiffException If the stream can't be parsed
+     */
+    public Document parse(final InputStream is) throws DiffException {
+
+        Document ret;
+        try {
+            ret = getParser().parse(is);
+        } catch (IOException e) {
+            throw new DiffException("Failed to parse stream", e);
+        } catch (SAXException e) {
+            throw new DiffException("Failed to parse stream", e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Differences two files and returns the delta.
+     *
+     * The files are parsed at the same time, with the parsers of the 
+     * engine.
+     *
+     * @param file1 The original file
+     * @param file2 The modified file
+     * @return The delta in DUL format
+     * @throws DiffException If something goes wrong during the diff
+     */
+    public Document diff(final File file1, final File file2) 
+    throws DiffException {
+        return new Fmes(mOptions, mParserSource).diff(file1, file2);
+    }
+
+    /**
+     * Differences two files, writing the delta to a stream.
+     *
+     * The files are parsed at the same time, with the parsers of the 
+     * engine.
+     *
+     * @param file1 The original file
+     * @param file2 The modified file
+     * @param os The stream to write the delta to
+     * @return True if the files differ
+     * @throws DiffException If something goes wrong during the diff
+     */
+    public boolean diff(final File file1, final File file2,
+            final OutputStream os) throws DiffException {
+        return new Fmes(mOptions, mParserSource).diff(file1, file2, os);
+    }
+
+    /**
+     * Differences two documents and returns the delta.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @return The delta in DUL format
+     * @throws DiffException If something goes wrong during the diff
+     */
+    public Document diff(final Document doc1, final Document doc2) 
+    throws DiffException {
+        return new Fmes(mOptions).diff(doc1, doc2);
+    }
+
+    /**
+     * Differences two documents, writing the delta to a stream.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @param os The stream to write the delta to
+     * @return True if the documents differ
+     * @throws DiffException If something goes wrong during the diff
+     */
+    public boolean diff(final Document doc1, final Document doc2,
+            final OutputStream os) throws DiffException {
+        return new Fmes(mOptions).diff(doc1, doc2, os);
+    }
+
+    /**
+     * Differences two documents that are still being produced.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @return The delta in DUL format
+     * @throws DiffException If either document can't be produced or 
+     *                       something goes wrong during the diff
+     */
+    public Document diff(final Future<Document> doc1, 
+            final Future<Document> doc2) throws DiffException {
+        return new Fmes(mOptions).diff(doc1, doc2);
+    }
+
+    /**
+     * Compiles a DUL delta so it can be applied to many documents.
+     *
+     * The plan holds no XPath of its own, so it can be applied from any
+     * thread.
+     *
+     * @param patch The DUL delta
+     * @return The compiled delta
+     * @throws PatchFormatException If the delta is malformed
+     */
+    public PatchPlan compile(final Document patch) 
+    throws PatchFormatException {
+        return new PatchPlan(patch, getXPath());
+    }
+
+    /**
+     * Applies a DUL delta to a document.
+     *
+     * @param doc The document to patch, which is changed in place
+     * @param patch The DUL delta
+     * @throws PatchFormatException If the delta can't be applied
+     */
+    public void patch(final Document doc, final Document patch) 
+    throws PatchFormatException {
+        patch(doc, compile(patch));
+    }
+
+    /**
+     * Applies a compiled DUL delta to a document.
+     *
+     * @param doc The document to patch, which is changed in place
+     * @param plan The compiled delta
+     * @throws PatchFormatException If the delta can't be applied
+     */
+    public void patch(final Document doc, final PatchPlan plan) 
+    throws PatchFormatException {
+        new DULPatch(getXPath()).apply(doc, plan);
+    }
+
+    /**
+     * Writes a document to a stream.
+     *
+     * Output is the same as DOMOps.outputXML.
+     *
+     * @param doc The document to write
+     * @param os The stream to write to
+     * @param indented Whether to indent the output
+     * @throws IOException If the document can't be written
+     */
+    public void write(final Document doc, final OutputStream os,
+            final boolean indented) throws IOException {
+        DOMOps.outputXML(doc, os, indented, getTransformer());
+    }
+}
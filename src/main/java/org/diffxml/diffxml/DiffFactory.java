@@ -34,8 +34,10 @@ import org.diffxml.diffxml.xmdiff.XmDiff;
  */
 public final class DiffFactory {
     /*
-     * TODO: Make state fixed for each diff instance. Currently 
-     * changes to options affect in-process diffs.
+     * The options set here are global defaults. Each diff takes a snapshot 
+     * of them with getOptions when it is created, so changes don't affect
+     * diffs already created. Code running several diffs at once should 
+     * create its own DiffOptions instead.
      */
 
     /**
@@ -138,6 +140,15 @@ public final class DiffFactory {
     /** Resolving of entities. */
     private static boolean mResolveEntities = true;
 
+    /**
+     * Snapshot of the options currently set, or null if an option has
+     * changed since it was built.
+     * 
+     * Only used while holding the class lock, which the setters also hold,
+     * so a snapshot can't be built from options that are being changed.
+     */
+    private static DiffOptions snapshot;
+
     /**
      * Private constructor - shouldn't be called.
      */
@@ -150,8 +161,9 @@ public final class DiffFactory {
      * 
      * @param brief Sets brief output
      */
-    public static void setBrief(final boolean brief) {
+    public static synchronized void setBrief(final boolean brief) {
         mBrief = brief;
+        snapshot = null;
     }
     
     /**
@@ -169,8 +181,9 @@ public final class DiffFactory {
      * 
      * @param debug Sets debug output
      */
-    public static void setDebug(final boolean debug) {
+    public static synchronized void setDebug(final boolean debug) {
         mDebug = debug;
+        snapshot = null;
     }
     
     /**
@@ -186,8 +199,10 @@ public final class DiffFactory {
      * 
      * @param ignore If true, whitespace is ignored
      */
-    public static void setIgnoreAllWhitespace(final boolean ignore) {
+    public static synchronized void setIgnoreAllWhitespace(
+            final boolean ignore) {
         mIgnoreAllWhitespace = ignore;
+        snapshot = null;
     }
     
     /**
@@ -204,8 +219,10 @@ public final class DiffFactory {
      * 
      * @param ignore If true, leading whitespace is ignored
      */
-    public static void setIgnoreLeadingWhitespace(final boolean ignore) {
+    public static synchronized void setIgnoreLeadingWhitespace(
+            final boolean ignore) {
         mIgnoreLeadingWhitespace = ignore;
+        snapshot = null;
     }
     
     /**
@@ -222,8 +239,10 @@ public final class DiffFactory {
      * 
      * @param ignore If true, whitespace only nodes are ignored
      */
-    public static void setIgnoreWhitespaceNodes(final boolean ignore) {
+    public static synchronized void setIgnoreWhitespaceNodes(
+            final boolean ignore) {
         mIgnoreWhitespaceNodes = ignore;
+        snapshot = null;
     }
     
     /**
@@ -240,8 +259,10 @@ public final class DiffFactory {
      * 
      * @param ignore If true, case differences are ignored
      */
-    public static void setIgnoreCase(final boolean ignore) {
+    public static synchronized void setIgnoreCase(
+            final boolean ignore) {
         mIgnoreCase = ignore;
+        snapshot = null;
     }
     
     /**
@@ -258,8 +279,10 @@ public final class DiffFactory {
      * 
      * @param ignore If true, differences in comments are ignored
      */
-    public static void setIgnoreComments(final boolean ignore) {
+    public static synchronized void setIgnoreComments(
+            final boolean ignore) {
         mIgnoreComments = ignore;
+        snapshot = null;
     }
     
     /**
@@ -277,8 +300,10 @@ public final class DiffFactory {
      * @param ignore If true, differences in processing instructions are 
      *               ignored.
      */
-    public static void setIgnoreProcessingInstructions(final boolean ignore) {
+    public static synchronized void setIgnoreProcessingInstructions(
+            final boolean ignore) {
         mIgnoreProcessingInstructions = ignore;
+        snapshot = null;
     }
     
     /**
@@ -295,8 +320,9 @@ public final class DiffFactory {
      * 
      * @param useTagnames If true, tagnames are output in xpaths
      */
-    public static void setUseTagnames(final boolean useTagnames) {
+    public static synchronized void setUseTagnames(final boolean useTagnames) {
         mUseTagnames = useTagnames;
+        snapshot = null;
     }
     
     /**
@@ -314,8 +340,9 @@ public final class DiffFactory {
      * @param reverse If true, extra output is generated to allow reversing of
      *               patches
      */
-    public static void setReversePatch(final boolean reverse) {
+    public static synchronized void setReversePatch(final boolean reverse) {
         mReversePatch = reverse;
+        snapshot = null;
     }
     
     /**
@@ -332,8 +359,9 @@ public final class DiffFactory {
      * 
      * @param context If true, context nodes are output.
      */
-    public static void setContext(final boolean context) {
+    public static synchronized void setContext(final boolean context) {
         mContext = context;
+        snapshot = null;
     }
     
     /**
@@ -351,12 +379,13 @@ public final class DiffFactory {
      * 
      * @param context Number of sibling context nodes.
      */
-    public static void setSiblingContext(final int context) {
+    public static synchronized void setSiblingContext(final int context) {
         
         if (context < 0) {
             throw new IllegalArgumentException("Sibling context must be >= 0");
         }
         mSiblingContext = context;
+        snapshot = null;
     }
     
     /**
@@ -374,12 +403,13 @@ public final class DiffFactory {
      * 
      * @param context Number of parent context nodes.
      */
-    public static void setParentContext(final int context) {
+    public static synchronized void setParentContext(final int context) {
         
         if (context < 0) {
             throw new IllegalArgumentException("Parent context must be >= 0");
         }
         mParentContext = context;
+        snapshot = null;
     }
     
     /**
@@ -398,13 +428,14 @@ public final class DiffFactory {
      * 
      * @param context Number of parent and child sibling context nodes.
      */
-    public static void setParentSiblingContext(final int context) {
+    public static synchronized void setParentSiblingContext(final int context) {
         
         if (context < 0) {
             throw new IllegalArgumentException(
                     "ParentSibling context must be >= 0");
         }
         mParentSiblingContext = context;
+        snapshot = null;
     }
     
     /**
@@ -421,8 +452,9 @@ public final class DiffFactory {
      * 
      * @param useFMES If true, the FMES algorithm is used.
      */
-    public static void setFMES(final boolean useFMES) {
+    public static synchronized void setFMES(final boolean useFMES) {
         mFMES = useFMES;
+        snapshot = null;
     }
     
     /**
@@ -439,8 +471,9 @@ public final class DiffFactory {
      * 
      * @param useDUL If true, the DUL output format is used.
      */
-    public static void setDUL(final boolean useDUL) {
+    public static synchronized void setDUL(final boolean useDUL) {
         mDUL = useDUL;
+        snapshot = null;
     }
     
     /**
@@ -457,8 +490,9 @@ public final class DiffFactory {
      * 
      * @param resolve If true, external entities are resolved.
      */
-    public static void setResolveEntities(final boolean resolve) {
+    public static synchronized void setResolveEntities(final boolean resolve) {
         mResolveEntities = resolve;
+        snapshot = null;
     }
     
     /**
@@ -470,15 +504,72 @@ public final class DiffFactory {
         return mResolveEntities;
     }
     
+    /**
+     * Gets a snapshot of the options currently set.
+     * 
+     * The snapshot is reused until an option is changed.
+     * 
+     * @return The current options
+     */
+    public static synchronized DiffOptions getOptions() {
+
+        DiffOptions ret = snapshot;
+        if (ret == null) {
+            ret = buildOptions();
+            snapshot = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Builds a snapshot of the options currently set.
+     * 
+     * @return The current options
+     */
+    private static DiffOptions buildOptions() {
+
+        return new DiffOptions.Builder()
+            .setBrief(mBrief)
+            .setDebug(mDebug)
+            .setIgnoreAllWhitespace(mIgnoreAllWhitespace)
+            .setIgnoreLeadingWhitespace(mIgnoreLeadingWhitespace)
+            .setIgnoreWhitespaceNodes(mIgnoreWhitespaceNodes)
+            .setIgnoreCase(mIgnoreCase)
+            .setIgnoreComments(mIgnoreComments)
+            .setIgnoreProcessingInstructions(mIgnoreProcessingInstructions)
+            .setUseTagnames(mUseTagnames)
+            .setReversePatch(mReversePatch)
+            .setContext(mContext)
+            .setSiblingContext(mSiblingContext)
+            .setParentContext(mParentContext)
+            .setParentSiblingContext(mParentSiblingContext)
+            .setFMES(mFMES)
+            .setDUL(mDUL)
+            .setResolveEntities(mResolveEntities)
+            .build();
+    }
+
     /**
      * Creates an instance of the appropriate Diff engine.
      * 
+     * Uses the options currently set.
+     * 
      * @return a difference engine meeting implementing the Diff interface
      */
     public static Diff createDiff() {
+        return createDiff(getOptions());
+    }
+    
+    /**
+     * Creates an instance of the appropriate Diff engine.
+     * 
+     * @param options The options for the diff
+     * @return a difference engine meeting implementing the Diff interface
+     */
+    public static Diff createDiff(final DiffOptions options) {
         Diff diff;
-        if (mFMES) {
-            diff = new Fmes();
+        if (options.isFMES()) {
+            diff = new Fmes(options);
         } else {
             diff = new XmDiff();
         }
@@ -0,0 +1,773 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.diffxml;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The options used for a diff.
+ *
+ * Options can't be changed once created, so diffs with different options 
+ * can safely run at the same time. Use a DiffOptions.Builder to create them.
+ *
+ * @author Adrian Mouat
+ */
+public final class DiffOptions {
+
+    /**
+     * How changed text is described in the delta.
+     */
+    public enum TextDiffMode {
+        /** Text is replaced in full. */
+        OFF,
+        /** Only the changed characters are deleted and inserted. */
+        CHARACTERS,
+        /** Only the changed words are deleted and inserted. */
+        WORDS
+    }
+
+    /**
+     * Report only if files differ.
+     * Default off.
+     */
+    private final boolean mBrief;
+
+    /**
+     * Provide debug output.
+     * Default off.
+     */
+    private final boolean mDebug;
+
+    /**
+     * Ignore all whitespace.
+     * Default off.
+     */
+    private final boolean mIgnoreAllWhitespace;
+
+    /**
+     * Ignore leading whitespace.
+     * Default off.
+     */
+    private final boolean mIgnoreLeadingWhitespace;
+
+    /**
+     * Ignore whitespace only nodes.
+     * Default off.
+     */
+    private final boolean mIgnoreWhitespaceNodes;
+
+    /**
+     * Ignore changes in case only.
+     * Default off.
+     */
+    private final boolean mIgnoreCase;
+
+    /**
+     * Ignore comments.
+     * Default off.
+     */
+    private final boolean mIgnoreComments;
+
+    /**
+     * Ignore processing instructions.
+     * Default off.
+     */
+    private final boolean mIgnoreProcessingInstructions;
+
+    /**
+     * Output tagnames rather than node numbers.
+     * Default off.
+     */
+    private final boolean mUseTagnames;
+
+    /**
+     * Output reverse patching context.
+     * Default off.
+     */
+    private final boolean mReversePatch;
+
+    /**
+     * Whether or not to output context nodes.
+     * Default off.
+     */
+    private final boolean mContext;
+
+    /**
+     * Amount of sibling context.
+     * Default 2.
+     */
+    private final int mSiblingContext;
+
+    /**
+     * Amount of parent context.
+     * Default 1.
+     */
+    private final int mParentContext;
+
+    /**
+     * Amount of parent sibling context.
+     * Default 0.
+     */
+    private final int mParentSiblingContext;
+
+    /**
+     * Algorithm to use, FMES if true.
+     * Default on.
+     */
+    private final boolean mFMES;
+
+    /**
+     * Use DUL output format.
+     * Default on.
+     */
+    private final boolean mDUL;
+
+    /**
+     * Resolving of entities.
+     * Default on.
+     */
+    private final boolean mResolveEntities;
+
+    /**
+     * Keys used to match elements, by element local name.
+     * Default none.
+     */
+    private final Map<String, String> mMatchKeys;
+
+    /**
+     * How changed text is described.
+     * Default off.
+     */
+    private final TextDiffMode mTextDiff;
+
+    /**
+     * Creates options from a builder.
+     *
+     * @param builder The builder holding the option values
+     */
+    private DiffOptions(final Builder builder) {
+        mBrief = builder.mBrief;
+        mDebug = builder.mDebug;
+        mIgnoreAllWhitespace = builder.mIgnoreAllWhitespace;
+        mIgnoreLeadingWhitespace = builder.mIgnoreLeadingWhitespace;
+        mIgnoreWhitespaceNodes = builder.mIgnoreWhitespaceNodes;
+        mIgnoreCase = builder.mIgnoreCase;
+        mIgnoreComments = builder.mIgnoreComments;
+        mIgnoreProcessingInstructions = builder.mIgnoreProcessingInstructions;
+        mUseTagnames = builder.mUseTagnames;
+        mReversePatch = builder.mReversePatch;
+        mContext = builder.mContext;
+        mSiblingContext = builder.mSiblingContext;
+        mParentContext = builder.mParentContext;
+        mParentSiblingContext = builder.mParentSiblingContext;
+        mFMES = builder.mFMES;
+        mDUL = builder.mDUL;
+        mResolveEntities = builder.mResolveEntities;
+        mMatchKeys = Collections.unmodifiableMap(
+                new LinkedHashMap<String, String>(builder.mMatchKeys));
+        mTextDiff = builder.mTextDiff;
+    }
+
+    /**
+     * If brief mode is on, only reports if files differ, 
+     * does not output differences.
+     * 
+     * @return True if brief output is on
+     */
+    public boolean isBrief() {
+        return mBrief;
+    }
+
+    /**
+     * If debug mode is on, extra debug info is output.
+     * 
+     * @return True if debug is on
+     */
+    public boolean isDebug() {
+        return mDebug;
+    }
+
+    /**
+     * Gets whether any differences in whitespace should be considered.
+     * 
+     * @return True if whitespace is to be ignored
+     */
+    public boolean isIgnoreAllWhitespace() {
+        return mIgnoreAllWhitespace;
+    }
+
+    /**
+     * Gets whether differences in leading whitespace should be considered.
+     * 
+     * @return True if leading whitespace is to be ignored
+     */
+    public boolean isIgnoreLeadingWhitespace() {
+        return mIgnoreLeadingWhitespace;
+    }
+
+    /**
+     * Gets whether nodes with only whitespace should be considered.
+     * 
+     * @return True if whitespace only nodes are to be ignored
+     */
+    public boolean isIgnoreWhitespaceNodes() {
+        return mIgnoreWhitespaceNodes;
+    }
+
+    /**
+     * Gets whether differences in case should be considered.
+     * 
+     * @return True if case differences are ignored
+     */
+    public boolean isIgnoreCase() {
+        return mIgnoreCase;
+    }
+
+    /**
+     * Gets whether differences in comments should be considered.
+     * 
+     * @return True if differences in comments are ignored
+     */
+    public boolean isIgnoreComments() {
+        return mIgnoreComments;
+    }
+
+    /**
+     * Gets whether differences in processing instructions should be 
+     * considered.
+     * 
+     * @return True if differences in processing instructions are ignored
+     */
+    public boolean isIgnoreProcessingInstructions() {
+        return mIgnoreProcessingInstructions;
+    }
+
+    /**
+     * Gets whether tagnames should be output instead of node numbers.
+     * 
+     * @return True if tagnames are output in xpaths
+     */
+    public boolean isUseTagnames() {
+        return mUseTagnames;
+    }
+
+    /**
+     * Gets whether extra output is generated to allow reversing of patches.
+     * 
+     * @return True if extra output for reverse patches is generated
+     */
+    public boolean isReversePatch() {
+        return mReversePatch;
+    }
+
+    /**
+     * Gets whether extra context nodes are added to the output.
+     * 
+     * @return True if context nodes are output.
+     */
+    public boolean isContext() {
+        return mContext;
+    }
+
+    /**
+     * Gets the number of sibling context nodes used.
+     * 
+     * @return Number of sibling context nodes.
+     */
+    public int getSiblingContext() {
+        return mSiblingContext;
+    }
+
+    /**
+     * Gets the number of parent and child context nodes used.
+     * 
+     * @return Number of parent and child context nodes.
+     */
+    public int getParentContext() {
+        return mParentContext;
+    }
+
+    /**
+     * Gets the number of parent and child sibling context nodes used.
+     * 
+     * @return Number of parent and child sibling context nodes.
+     */
+    public int getParentSiblingContext() {
+        return mParentSiblingContext;
+    }
+
+    /**
+     * Gets whether the FMES algorithm is used.
+     * 
+     * @return True if the FMES algorithm is used.
+     */
+    public boolean isFMES() {
+        return mFMES;
+    }
+
+    /**
+     * Gets whether the DUL output format is used.
+     * 
+     * @return True if the DUL output format is used.
+     */
+    public boolean isDUL() {
+        return mDUL;
+    }
+
+    /**
+     * Gets whether external entities should be resolved.
+     * 
+     * @return True if external entities are resolved.
+     */
+    public boolean isResolveEntities() {
+        return mResolveEntities;
+    }
+
+    /**
+     * Gets the key used to match elements with the given local name.
+     * 
+     * Keys starting with "@" name an attribute, other keys are a path of
+     * child element names separated by "/" whose text is the key.
+     * 
+     * @param element The local name of the element
+     * @return The key for the element, or null if there isn't one
+     */
+    public String getMatchKey(final String element) {
+        return mMatchKeys.get(element);
+    }
+
+    /**
+     * Gets whether any elements are matched by key.
+     * 
+     * @return True if at least one match key is set
+     */
+    public boolean hasMatchKeys() {
+        return !mMatchKeys.isEmpty();
+    }
+
+    /**
+     * Gets how changes inside text nodes are described.
+     * 
+     * @return The text diff mode
+     */
+    public TextDiffMode getTextDiff() {
+        return mTextDiff;
+    }
+
+    /**
+     * Builds DiffOptions.
+     *
+     * A new builder holds the default options.
+     */
+    public static final class Builder {
+
+        /**
+         * Report only if files differ.
+         */
+        private boolean mBrief = false;
+
+        /**
+         * Provide debug output.
+         */
+        private boolean mDebug = false;
+
+        /**
+         * Ignore all whitespace.
+         */
+        private boolean mIgnoreAllWhitespace = false;
+
+        /**
+         * Ignore leading whitespace.
+         */
+        private boolean mIgnoreLeadingWhitespace = false;
+
+        /**
+         * Ignore whitespace only nodes.
+         */
+        private boolean mIgnoreWhitespaceNodes = false;
+
+        /**
+         * Ignore changes in case only.
+         */
+        private boolean mIgnoreCase = false;
+
+        /**
+         * Ignore comments.
+         */
+        private boolean mIgnoreComments = false;
+
+        /**
+         * Ignore processing instructions.
+         */
+        private boolean mIgnoreProcessingInstructions = false;
+
+        /**
+         * Output tagnames rather than node numbers.
+         */
+        private boolean mUseTagnames = false;
+
+        /**
+         * Output reverse patching context.
+         */
+        private boolean mReversePatch = false;
+
+        /**
+         * Whether or not to output context nodes.
+         */
+        private boolean mContext = false;
+
+        /**
+         * Amount of sibling context.
+         */
+        private int mSiblingContext = 2;
+
+        /**
+         * Amount of parent context.
+         */
+        private int mParentContext = 1;
+
+        /**
+         * Amount of parent sibling context.
+         */
+        private int mParentSiblingContext = 0;
+
+        /**
+         * Algorithm to use, FMES if true.
+         */
+        private boolean mFMES = true;
+
+        /**
+         * Use DUL output format.
+         */
+        private boolean mDUL = true;
+
+        /**
+         * Resolving of entities.
+         */
+        private boolean mResolveEntities = true;
+
+        /**
+         * Keys used to match elements.
+         */
+        private final Map<String, String> mMatchKeys =
+            new LinkedHashMap<String, String>();
+
+        /**
+         * How changed text is described.
+         */
+        private TextDiffMode mTextDiff = TextDiffMode.OFF;
+
+        /**
+         * Creates a builder holding the default options.
+         */
+        public Builder() {
+            //Defaults set in field initialisers
+        }
+
+        /**
+         * Creates a builder holding the given options.
+         *
+         * @param options The options to start from
+         */
+        public Builder(final DiffOptions options) {
+            mBrief = options.mBrief;
+            mDebug = options.mDebug;
+            mIgnoreAllWhitespace = options.mIgnoreAllWhitespace;
+            mIgnoreLeadingWhitespace = options.mIgnoreLeadingWhitespace;
+            mIgnoreWhitespaceNodes = options.mIgnoreWhitespaceNodes;
+            mIgnoreCase = options.mIgnoreCase;
+            mIgnoreComments = options.mIgnoreComments;
+            mIgnoreProcessingInstructions = 
+                options.mIgnoreProcessingInstructions;
+            mUseTagnames = options.mUseTagnames;
+            mReversePatch = options.mReversePatch;
+            mContext = options.mContext;
+            mSiblingContext = options.mSiblingContext;
+            mParentContext = options.mParentContext;
+            mParentSiblingContext = options.mParentSiblingContext;
+            mFMES = options.mFMES;
+            mDUL = options.mDUL;
+            mResolveEntities = options.mResolveEntities;
+            mMatchKeys.putAll(options.mMatchKeys);
+            mTextDiff = options.mTextDiff;
+        }
+
+        /**
+         * Only report if files differ, do not output differences.
+         * 
+         * @param brief Sets brief output
+         * @return This builder
+         */
+        public Builder setBrief(final boolean brief) {
+            mBrief = brief;
+            return this;
+        }
+
+        /**
+         * Output extra debug info.
+         * 
+         * @param debug Sets debug output
+         * @return This builder
+         */
+        public Builder setDebug(final boolean debug) {
+            mDebug = debug;
+            return this;
+        }
+
+        /**
+         * Sets whether any differences in whitespace should be considered.
+         * 
+         * @param ignore If true, whitespace is ignored
+         * @return This builder
+         */
+        public Builder setIgnoreAllWhitespace(final boolean ignore) {
+            mIgnoreAllWhitespace = ignore;
+            return this;
+        }
+
+        /**
+         * Sets whether differences in leading whitespace should be considered.
+         * 
+         * @param ignore If true, leading whitespace is ignored
+         * @return This builder
+         */
+        public Builder setIgnoreLeadingWhitespace(final boolean ignore) {
+            mIgnoreLeadingWhitespace = ignore;
+            return this;
+        }
+
+        /**
+         * Sets whether nodes with only whitespace should be considered.
+         * 
+         * @param ignore If true, whitespace only nodes are ignored
+         * @return This builder
+         */
+        public Builder setIgnoreWhitespaceNodes(final boolean ignore) {
+            mIgnoreWhitespaceNodes = ignore;
+            return this;
+        }
+
+        /**
+         * Sets whether differences in case should be considered.
+         * 
+         * @param ignore If true, case differences are ignored
+         * @return This builder
+         */
+        public Builder setIgnoreCase(final boolean ignore) {
+            mIgnoreCase = ignore;
+            return this;
+        }
+
+        /**
+         * Sets whether differences in comments should be considered.
+         * 
+         * @param ignore If true, differences in comments are ignored
+         * @return This builder
+         */
+        public Builder setIgnoreComments(final boolean ignore) {
+            mIgnoreComments = ignore;
+            return this;
+        }
+
+        /**
+         * Sets whether differences in processing instructions should be 
+         * considered.
+         * 
+         * @param ignore If true, differences in processing instructions are
+         *               ignored
+         * @return This builder
+         */
+        public Builder setIgnoreProcessingInstructions(final boolean ignore) {
+            mIgnoreProcessingInstructions = ignore;
+            return this;
+        }
+
+        /**
+         * Sets whether tagnames should be output instead of node numbers.
+         * 
+         * @param useTagnames If true, tagnames are output in xpaths
+         * @return This builder
+         */
+        public Builder setUseTagnames(final boolean useTagnames) {
+            mUseTagnames = useTagnames;
+            return this;
+        }
+
+        /**
+         * If set, adds information needed to reverse patches.
+         * 
+         * @param reverse If true, extra output is generated to allow reversing
+         *                of patches
+         * @return This builder
+         */
+        public Builder setReversePatch(final boolean reverse) {
+            mReversePatch = reverse;
+            return this;
+        }
+
+        /**
+         * If set, adds extra context nodes to output.
+         * 
+         * @param context If true, context nodes are output.
+         * @return This builder
+         */
+        public Builder setContext(final boolean context) {
+            mContext = context;
+            return this;
+        }
+
+        /**
+         * Sets the number of sibling context nodes used.
+         * These are output to each side of the node.
+         * 
+         * @param context Number of sibling context nodes.
+         * @return This builder
+         */
+        public Builder setSiblingContext(final int context) {
+            if (context < 0) {
+                throw new IllegalArgumentException(
+                        "Sibling context must be >= 0");
+            }
+            mSiblingContext = context;
+            return this;
+        }
+
+        /**
+         * Sets the number of parent and child context nodes used.
+         * 
+         * @param context Number of parent context nodes.
+         * @return This builder
+         */
+        public Builder setParentContext(final int context) {
+            if (context < 0) {
+                throw new IllegalArgumentException(
+                        "Parent context must be >= 0");
+            }
+            mParentContext = context;
+            return this;
+        }
+
+        /**
+         * Sets the number of parent and child sibling context nodes used.
+         * 
+         * @param context Number of parent and child sibling context nodes.
+         * @return This builder
+         */
+        public Builder setParentSiblingContext(final int context) {
+            if (context < 0) {
+                throw new IllegalArgumentException(
+                        "ParentSibling context must be >= 0");
+            }
+            mParentSiblingContext = context;
+            return this;
+        }
+
+        /**
+         * Sets whether the FMES algorithm is used.
+         * 
+         * @param useFMES If true, the FMES algorithm is used.
+         * @return This builder
+         */
+        public Builder setFMES(final boolean useFMES) {
+            mFMES = useFMES;
+            return this;
+        }
+
+        /**
+         * Sets whether the DUL output format is used.
+         * 
+         * @param useDUL If true, the DUL output format is used.
+         * @return This builder
+         */
+        public Builder setDUL(final boolean useDUL) {
+            mDUL = useDUL;
+            return this;
+        }
+
+        /**
+         * Sets whether external entities should be resolved.
+         * 
+         * @param resolve If true, external entities are resolved.
+         * @return This builder
+         */
+        public Builder setResolveEntities(final boolean resolve) {
+            mResolveEntities = resolve;
+            return this;
+        }
+
+        /**
+         * Matches elements with the given local name by a key.
+         * 
+         * Elements with the same name and key value are matched before any
+         * other matching is done, even if their contents differ. The key is 
+         * either "@" followed by the local name of an attribute or a path of
+         * child element names separated by "/", e.g. "@id" or "info/name".
+         * 
+         * @param element The local name of the elements to match
+         * @param key The key to match them by
+         * @return This builder
+         */
+        public Builder addMatchKey(final String element, final String key) {
+            if (element == null || element.length() == 0) {
+                throw new IllegalArgumentException(
+                        "Element name must not be empty");
+            }
+            if (key == null || key.length() == 0 || key.equals("@")) {
+                throw new IllegalArgumentException(
+                        "Match key must not be empty");
+            }
+            mMatchKeys.put(element, key);
+            return this;
+        }
+
+        /**
+         * Sets how changes inside text nodes are described.
+         *
+         * When not OFF, a changed text node is patched by deleting and
+         * inserting only the characters or words that differ, rather than
+         * replacing its whole value.
+         *
+         * @param mode The text diff mode
+         * @return This builder
+         */
+        public Builder setTextDiff(final TextDiffMode mode) {
+            if (mode == null) {
+                throw new IllegalArgumentException(
+                        "Text diff mode must not be null");
+            }
+            mTextDiff = mode;
+            return this;
+        }
+
+        /**
+         * Creates the options.
+         * 
+         * @return The options set on this builder
+         */
+        public DiffOptions build() {
+            return new DiffOptions(this);
+        }
+    }
+}
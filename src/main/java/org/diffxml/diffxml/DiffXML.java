@@ -26,6 +26,7 @@ package org.diffxml.diffxml;
 import java.io.File;
 import java.io.IOException;
 
+import org.diffxml.diffxml.fmes.Fmes;
 import org.w3c.dom.Document;
 
 
@@ -49,6 +50,10 @@ public final class DiffXML {
     /** Second file to be differenced. **/
     private static File mFile2;
 
+    /** Options given on the command line. **/
+    private static final DiffOptions.Builder mOptions = 
+        new DiffOptions.Builder();
+
     /**
      * Private constructor - shouldn't be called.
      */
@@ -83,17 +88,27 @@ public final class DiffXML {
 
             //"wordy" arguments
             if (currentArg.equals("-brief")) {
-                DiffFactory.setBrief(true);
+                mOptions.setBrief(true);
             } else if (currentArg.equals("-debug")) {
-                DiffFactory.setDebug(true);
+                mOptions.setDebug(true);
             } else if (currentArg.equals("-version")) {
                 printVersionAndExit();
             } else if (currentArg.equals("-help")) {
                 printHelpAndExit();
             } else if (currentArg.equals("-fmes")) {
-                DiffFactory.setFMES(true);
+                mOptions.setFMES(true);
             } else if (currentArg.equals("-dul")) {
-                DiffFactory.setDUL(true);
+                mOptions.setDUL(true);
+            } else if (currentArg.equals("-key") || currentArg.equals("-k")) {
+                if (argNo >= args.length) {
+                    printUsage();
+                }
+                addMatchKey(args[argNo++]);
+            } else if (currentArg.equals("-text")) {
+                if (argNo >= args.length) {
+                    printUsage();
+                }
+                setTextDiff(args[argNo++]);
             } else {
 
                 //(series of) flag arguments
@@ -101,7 +116,7 @@ public final class DiffXML {
                     flag = currentArg.charAt(charNo);
                     switch (flag) {
                         case 'q':
-                            DiffFactory.setBrief(true);
+                            mOptions.setBrief(true);
                             break;
                         case 'V':
                             printVersionAndExit();
@@ -110,10 +125,10 @@ public final class DiffXML {
                             printHelpAndExit();
                             break;
                         case 'f':
-                            DiffFactory.setFMES(true);
+                            mOptions.setFMES(true);
                             break;
                         case 'D':
-                            DiffFactory.setDUL(true);
+                            mOptions.setDUL(true);
                             break;
 
                         default:
@@ -135,6 +150,38 @@ public final class DiffXML {
         mFile2 = new File(args[++argNo]);
     }
 
+    /**
+     * Adds a match key given as ELEMENT=KEY on the command line.
+     *
+     * @param rule The match key argument
+     */
+    private static void addMatchKey(final String rule) {
+
+        int sep = rule.indexOf('=');
+        if (sep < 1 || sep == rule.length() - 1) {
+            System.err.println("diffxml: match key must be ELEMENT=KEY");
+            printUsage();
+        }
+        mOptions.addMatchKey(rule.substring(0, sep), rule.substring(sep + 1));
+    }
+
+    /**
+     * Sets the text diff mode given on the command line.
+     *
+     * @param mode Either "chars" or "words"
+     */
+    private static void setTextDiff(final String mode) {
+
+        if (mode.equals("chars")) {
+            mOptions.setTextDiff(DiffOptions.TextDiffMode.CHARACTERS);
+        } else if (mode.equals("words")) {
+            mOptions.setTextDiff(DiffOptions.TextDiffMode.WORDS);
+        } else {
+            System.err.println("diffxml: text mode must be chars or words");
+            printUsage();
+        }
+    }
+
     /**
      * Outputs usage message to standard error.
      */
@@ -152,6 +199,10 @@ public final class DiffXML {
                 "Find the differences between two XML files.\n\n" +
                 "--brief  -q  Report only if files differ, don't output the " +
                 "delta.\n" +
+                "--key  -k ELEMENT=KEY  Match ELEMENTs by KEY, either @ " +
+                "and an attribute name\n    or a path of child elements.\n" +
+                "--text  MODE  Patch changed text by chars or words rather " +
+                "than replacing it.\n" +
                 "--version  -V  Output version number of program.\n" +
                 "--help  -h  Output this help.\n");
 
@@ -195,7 +246,47 @@ public final class DiffXML {
             System.exit(2);
         }
         
-        Diff diffInstance = DiffFactory.createDiff();
+        DiffOptions options = mOptions.build();
+        boolean differ = false;
+        if (options.isFMES() && !options.isBrief() && !options.isDebug()) {
+            //Write the delta as it is created rather than building it
+            try {
+                differ = new Fmes(options).diff(mFile1, mFile2, System.out);
+                System.out.println();
+            } catch (DiffException e) {
+                System.err.println("An error occured:\n" + e.getMessage());
+                System.exit(2);
+            }
+        } else if (options.isFMES() && options.isBrief() 
+                && !options.isDebug()) {
+            //Only whether the files differ is needed, so no delta is made
+            try {
+                differ = new Fmes(options).differ(mFile1, mFile2);
+            } catch (DiffException e) {
+                System.err.println("An error occured:\n" + e.getMessage());
+                System.exit(2);
+            }
+            printDiffer(differ);
+        } else {
+            differ = diffToDocument(options);
+        }
+
+        if (differ) {
+            System.exit(1);
+        } else {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Performs the diff, building the delta as a document, and outputs it.
+     *
+     * @param options the options for the diff
+     * @return true if the files differ
+     */
+    private static boolean diffToDocument(final DiffOptions options) {
+
+        Diff diffInstance = DiffFactory.createDiff(options);
         
         Document delta = null;
         try {
@@ -210,12 +301,9 @@ public final class DiffXML {
         //Documents differ if there are any child nodes in the doc.
         boolean differ = delta.getDocumentElement().hasChildNodes();
 
-        if (DiffFactory.isBrief()) {
+        if (options.isBrief()) {
             //If in brief mode, don't output delta, only whether files differ
-            if (differ) {
-                System.out.println("XML documents " + mFile1 + " and "
-                        + mFile2 + " differ");
-            }
+            printDiffer(differ);
         } else {
             try {
                 DOMOps.outputXMLIndented(delta, System.out);
@@ -225,10 +313,19 @@ public final class DiffXML {
             }
         }
 
+        return differ;
+    }
+
+    /**
+     * Outputs whether the files differ, as in brief mode.
+     *
+     * @param differ true if the files differ
+     */
+    private static void printDiffer(final boolean differ) {
+
         if (differ) {
-            System.exit(1);
-        } else {
-            System.exit(0);
+            System.out.println("XML documents " + mFile1 + " and "
+                    + mFile2 + " differ");
         }
     }
 }
@@ -0,0 +1,46 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml;
+
+import javax.xml.parsers.DocumentBuilder;
+
+/**
+ * Supplies the parsers used to read the documents of a diff.
+ *
+ * Lets parsers be reused across diffs, as creating them means looking up 
+ * the JAXP factories. Parsers may be asked for on several threads at once,
+ * and each parser given out is only used by the thread that asked for it.
+ *
+ * @author Adrian Mouat
+ */
+public interface ParserSource {
+
+    /**
+     * Returns a parser for the current thread, set up for the diff.
+     *
+     * @return The parser
+     * @throws DiffException If the parser can't be created
+     */
+    DocumentBuilder getParser() throws DiffException;
+}
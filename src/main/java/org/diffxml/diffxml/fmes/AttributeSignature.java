@@ -0,0 +1,135 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.Arrays;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Canonical signature of the attributes of an element.
+ *
+ * Holds the namespace, local name and value of each attribute that isn't a
+ * namespace declaration, sorted so the order the attributes appear in
+ * doesn't matter. Two elements have equal signatures exactly when
+ * every attribute of one has a counterpart with the same value in the other.
+ *
+ * @author Adrian Mouat
+ */
+final class AttributeSignature {
+
+    /**
+     * Separates the parts of an attribute. Can't occur in XML content.
+     */
+    static final char SEPARATOR = '\u0000';
+
+    /**
+     * The attributes, each as namespace, local name and value, sorted.
+     */
+    private final String[] mAttrs;
+
+    /**
+     * Hash of the attributes.
+     */
+    private final int mHash;
+
+    /**
+     * Creates the signature of the given element.
+     *
+     * @param element The element to create the signature of
+     */
+    AttributeSignature(final Node element) {
+
+        NamedNodeMap attrs = element.getAttributes();
+        int noAttrs = 0;
+        if (attrs != null) {
+            noAttrs = attrs.getLength();
+        }
+
+        String[] sig = new String[noAttrs];
+        int size = 0;
+        for (int i = 0; i < noAttrs; i++) {
+            Node a = attrs.item(i);
+            if (!NodeOps.isNamespaceAttr(a)) {
+                StringBuilder attr = new StringBuilder();
+                if (a.getNamespaceURI() != null) {
+                    attr.append(a.getNamespaceURI().trim());
+                }
+                attr.append(SEPARATOR);
+                attr.append(NodeOps.getLocalName(a)).append(SEPARATOR);
+                attr.append(a.getNodeValue());
+                sig[size] = attr.toString();
+                size++;
+            }
+        }
+
+        mAttrs = new String[size];
+        System.arraycopy(sig, 0, mAttrs, 0, size);
+        Arrays.sort(mAttrs);
+        mHash = Arrays.hashCode(mAttrs);
+    }
+
+    /**
+     * Returns the number of attributes in the signature.
+     *
+     * @return The number of attributes
+     */
+    int size() {
+        return mAttrs.length;
+    }
+
+    /**
+     * Returns an attribute of the signature.
+     *
+     * @param i The index of the attribute, in sorted order
+     * @return The namespace, local name and value of the attribute,
+     *         separated by SEPARATOR
+     */
+    String get(final int i) {
+        return mAttrs[i];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int hashCode() {
+        return mHash;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The hashes are compared before the attributes.
+     */
+    public boolean equals(final Object o) {
+
+        boolean ret = false;
+        if (o instanceof AttributeSignature) {
+            AttributeSignature other = (AttributeSignature) o;
+            ret = mHash == other.mHash && Arrays.equals(mAttrs, other.mAttrs);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.w3c.dom.Node;
+
+/**
+ * Index of candidate nodes for matching, bucketed by a matching key.
+ *
+ * Two nodes that could be matched by Match always have the same key, so a
+ * node only needs to be compared against the nodes in its bucket. Buckets
+ * keep the order the nodes were added in, so taking the first node in the
+ * bucket that matches gives the same result as a linear search.
+ *
+ * @author Adrian Mouat
+ */
+final class CandidateIndex {
+
+    /**
+     * Separates the parts of a key. Can't occur in XML content.
+     */
+    private static final char SEPARATOR = AttributeSignature.SEPARATOR;
+
+    /**
+     * The buckets of nodes, indexed by key.
+     */
+    private final Map<String, LinkedList<Node>> mBuckets;
+
+    /**
+     * The keys of the nodes.
+     */
+    private final NodeKeys mKeys;
+
+    /**
+     * Creates an index over the given nodes.
+     *
+     * @param nodes The candidate nodes, in the order they should be tried
+     * @param options The options for the diff
+     */
+    CandidateIndex(final List<Node> nodes, final DiffOptions options) {
+        this(nodes, new NodeKeys(options));
+    }
+
+    /**
+     * Creates an index over the given nodes, sharing a cache of keys.
+     *
+     * @param nodes The candidate nodes, in the order they should be tried
+     * @param keys The keys of the nodes for the diff
+     */
+    CandidateIndex(final List<Node> nodes, final NodeKeys keys) {
+
+        mBuckets = new HashMap<String, LinkedList<Node>>(nodes.size());
+        mKeys = keys;
+
+        for (Node n : nodes) {
+            String key = keys.getKey(n);
+            LinkedList<Node> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new LinkedList<Node>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.add(n);
+        }
+    }
+
+    /**
+     * Returns the remaining candidates that may match the given node.
+     *
+     * Candidates are returned in the order they were added. Calling remove on
+     * the iterator removes the candidate from the index.
+     *
+     * @param n The node to find candidates for
+     * @return Iterator over the candidates for n
+     */
+    Iterator<Node> candidates(final Node n) {
+
+        Iterator<Node> ret;
+        LinkedList<Node> bucket = mBuckets.get(mKeys.getKey(n));
+        if (bucket == null) {
+            List<Node> empty = Collections.emptyList();
+            ret = empty.iterator();
+        } else {
+            ret = bucket.iterator();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Calculates the matching key of a node.
+     *
+     * Made up of the node type, the namespace and local name and the
+     * attributes of elements and the normalized value of other nodes.
+     *
+     * @param n The node to calculate the key of
+     * @param options The options for the diff
+     * @return The key for the node
+     */
+    static String getKey(final Node n, final DiffOptions options) {
+        return getKey(n, options, null);
+    }
+
+    /**
+     * Calculates the matching key of a node, reusing the attribute signature
+     * of an element if it is already known.
+     *
+     * @param n The node to calculate the key of
+     * @param options The options for the diff
+     * @param sig The attribute signature of n if it is an element, or null
+     *            to calculate it
+     * @return The key for the node
+     */
+    static String getKey(final Node n, final DiffOptions options,
+            final AttributeSignature sig) {
+
+        StringBuilder key = new StringBuilder();
+        key.append(n.getNodeType()).append(SEPARATOR);
+
+        switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                appendNamespace(key, n.getNamespaceURI());
+                key.append(NodeOps.getLocalName(n));
+                if (sig == null) {
+                    appendAttributes(key, new AttributeSignature(n));
+                } else {
+                    appendAttributes(key, sig);
+                }
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                key.append(normalizeText(n.getNodeValue(), options));
+                break;
+            default:
+                if (n.getNodeValue() != null) {
+                    key.append(n.getNodeValue());
+                }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Appends a namespace to a key, treating null and empty as the same.
+     *
+     * @param key The key being built
+     * @param ns The namespace URI
+     */
+    private static void appendNamespace(final StringBuilder key,
+            final String ns) {
+
+        if (ns != null) {
+            key.append(ns.trim());
+        }
+        key.append(SEPARATOR);
+    }
+
+    /**
+     * Appends the non-xmlns attributes to a key in a canonical order.
+     *
+     * @param key The key being built
+     * @param sig The attribute signature of the element
+     */
+    private static void appendAttributes(final StringBuilder key,
+            final AttributeSignature sig) {
+
+        for (int i = 0; i < sig.size(); i++) {
+            key.append(SEPARATOR).append(sig.get(i));
+        }
+    }
+
+    /**
+     * Normalizes text according to the whitespace and case options.
+     *
+     * Strings that are considered equal by Match normalize to the same
+     * value.
+     *
+     * @param text The text to normalize
+     * @param options The options for the diff
+     * @return The normalized text
+     */
+    static String normalizeText(final String text, 
+            final DiffOptions options) {
+
+        String ret = text;
+        if (options.isIgnoreAllWhitespace()) {
+            StringTokenizer st = new StringTokenizer(ret);
+            StringBuilder buf = new StringBuilder(ret.length());
+            while (st.hasMoreTokens()) {
+                buf.append(st.nextToken());
+            }
+            ret = buf.toString();
+        } else if (options.isIgnoreLeadingWhitespace()) {
+            ret = ret.trim();
+        }
+
+        if (options.isIgnoreCase()) {
+            //Same folding as String.equalsIgnoreCase
+            StringBuilder buf = new StringBuilder(ret.length());
+            for (int i = 0; i < ret.length(); i++) {
+                buf.append(Character.toLowerCase(
+                        Character.toUpperCase(ret.charAt(i))));
+            }
+            ret = buf.toString();
+        }
+
+        return ret;
+    }
+}
@@ -59,6 +59,8 @@ public final class ChildNumber {
     /** The siblings of the node and the node itself. */
     private NodeList mSiblings;
     
+    /** Index of sibling positions, null if the siblings are scanned. */
+    private final PositionIndex mPositions;
     
     /**
      * Default constructor.
@@ -67,6 +69,22 @@ public final class ChildNumber {
      *            Node to find the child numbers of
      */
     public ChildNumber(final Node n) {
+        this(n, null);
+    }
+    
+    /**
+     * Constructor taking an index of sibling positions.
+     * 
+     * The index is used for the DOM and XPath child numbers and character
+     * positions, including those ignoring a node. The in-order numbers are
+     * always calculated by scanning the siblings.
+     * 
+     * @param n
+     *            Node to find the child numbers of
+     * @param positions
+     *            Index of sibling positions, may be null
+     */
+    public ChildNumber(final Node n, final PositionIndex positions) {
         
         if (n == null) {
             throw new IllegalArgumentException("Node cannot be null");
@@ -77,6 +95,7 @@ public final class ChildNumber {
         
         mNode = n;
         mSiblings = mNode.getParentNode().getChildNodes();
+        mPositions = positions;
     }
 
     /**
@@ -212,6 +231,11 @@ public final class ChildNumber {
      */
     private void calculateDOMChildNumber() {
         
+        if (mPositions != null) {
+            mDOMChildNo = mPositions.getDOM(mNode);
+            return;
+        }
+        
         int cn;
         
         for (cn = 0; cn < mSiblings.getLength(); cn++) {
@@ -246,6 +270,12 @@ public final class ChildNumber {
      */
     private void calculateXPathChildNumberAndPosition() {
         
+        if (mPositions != null) {
+            mXPathChildNo = mPositions.getXPath(mNode);
+            mXPathCharPos = mPositions.getXPathCharPos(mNode);
+            return;
+        }
+        
         int domIndex = calculateXPathChildNumber();
         calculateXPathTextPosition(domIndex);   
     }
@@ -365,33 +395,22 @@ public final class ChildNumber {
     /**
      * Returns the XPath position, ignoring the given node.
      * 
+     * Calculated as if n had been removed, without changing the document.
+     * 
      * @param n The node to ignore
      * @return The XPath position of the node ignoring n
      */
     public int getXPathIgnoring(final Node n) {
 
-        int ret;
-        if (n == null) {
-            ret = getXPath();
-        } else {
+        checkIgnorable(n);
 
-            if (n.isSameNode(mNode)) {
-                throw new IllegalArgumentException(
-                "Can't ignore the position node");
-            }
-            // Remove the node, run the old method, put it back in
-            // *Always* use n to get the parent in case it is somewhere else in
-            // the tree (in which case we don't need to remove it, but it's 
-            // easier than checking
-            Node refNode = n.getNextSibling();
-            Node nPar = n.getParentNode();
-            nPar.removeChild(n);
-
-            //Invalidate cache
-            mXPathChildNo = -1;
-            ret = getXPath();
-            nPar.insertBefore(n, refNode);
-            mXPathChildNo = -1;
+        int ret = getXPath();
+        if (isSiblingBefore(n)) {
+            // Removing n may join the nodes either side of it
+            Node next = n.getNextSibling();
+            ret = ret - PositionIndex.getStep(n, n.getPreviousSibling())
+                - PositionIndex.getStep(next, n)
+                + PositionIndex.getStep(next, n.getPreviousSibling());
         }
         
         return ret;
@@ -399,33 +418,19 @@ public final class ChildNumber {
 
     /**
      * Gets the DOM index of a node, ignoring the given node.
+     * 
+     * Calculated as if n had been removed, without changing the document.
+     * 
      * @param n The node to ignore
      * @return The DOM index of the node, ignoring n
      */
     public int getDOMIgnoring(final Node n) {
         
-        int ret;
-        if (n == null) {
-            ret = getDOM();
-        } else {
-            
-            if (n.isSameNode(mNode)) {
-                throw new IllegalArgumentException(
-                "Can't ignore the position node");
-            }
-            
-            // Remove the node, run the old method, put it back in
-            // *Always* use n to get the parent in case it is somewhere else in
-            // the tree (in which case we don't need to remove it, but it's 
-            // easier than checking
-            Node refNode = n.getNextSibling();
-            Node nPar = n.getParentNode();
-            nPar.removeChild(n);
-            //Invalidate cache
-            mDOMChildNo = -1;
-            ret = getDOM();
-            nPar.insertBefore(n, refNode);
-            mDOMChildNo = -1;
+        checkIgnorable(n);
+
+        int ret = getDOM();
+        if (isSiblingBefore(n)) {
+            ret--;
         }
 
         return ret;
@@ -433,35 +438,98 @@ public final class ChildNumber {
 
     /**
      * Gets the XPath character position of a node, ignoring the given node.
+     * 
+     * Calculated as if n had been removed, without changing the document.
+     * 
      * @param n The node to ignore
      * @return The DOM index of the node, ignoring n
      */
     public int getXPathCharPosIgnoring(final Node n) {
 
-        int ret;
-        if (n == null) {
-            ret = getXPathCharPos();
-        } else {
-
-            if (n.isSameNode(mNode)) {
-                throw new IllegalArgumentException(
-                "Can't ignore the position node");
+        checkIgnorable(n);
+
+        int ret = getXPathCharPos();
+        if (isSiblingBefore(n)) {
+            Node last = getLastNonTextBefore();
+            if (n.isSameNode(last)) {
+                // The text before n joins the text before the node
+                ret = ret + new ChildNumber(n, mPositions).getXPathCharPos()
+                    - 1;
+            } else if (DOMOps.isText(n) && isAfter(n, last)) {
+                ret = ret - n.getNodeValue().length();
             }
-            // Remove the node, run the old method, put it back in
-            // *Always* use n to get the parent in case it is somewhere else in
-            // the tree (in which case we don't need to remove it, but it's 
-            // easier than checking
-            Node refNode = n.getNextSibling();
-            Node nPar = n.getParentNode();
-            nPar.removeChild(n);
-            //Invalidate cache
-            mXPathCharPos = -1;
-            ret = getXPathCharPos();
-            nPar.insertBefore(n, refNode);
-            mXPathCharPos = -1;
         }
         
         return ret;
     }
 
+    /**
+     * Checks the given node can be ignored.
+     * 
+     * @param n The node to be ignored
+     */
+    private void checkIgnorable(final Node n) {
+
+        if (n != null && n.isSameNode(mNode)) {
+            throw new IllegalArgumentException(
+                    "Can't ignore the position node");
+        }
+    }
+
+    /**
+     * Checks if the given node is a sibling before the node.
+     * 
+     * Only siblings before the node affect its position.
+     * 
+     * @param n The node to check, may be null
+     * @return true if n is an earlier sibling of the node
+     */
+    private boolean isSiblingBefore(final Node n) {
+
+        return n != null
+            && mNode.getParentNode().isSameNode(n.getParentNode())
+            && isAfter(mNode, n);
+    }
+
+    /**
+     * Checks if a node comes after one of its siblings.
+     * 
+     * @param n The node to check
+     * @param sibling A sibling of n, or null for before the first sibling
+     * @return true if n comes after sibling
+     */
+    private boolean isAfter(final Node n, final Node sibling) {
+
+        boolean ret;
+        if (sibling == null) {
+            ret = true;
+        } else if (mPositions != null) {
+            ret = mPositions.getDOM(sibling) < mPositions.getDOM(n);
+        } else {
+            ret = (n.compareDocumentPosition(sibling) 
+                    & Node.DOCUMENT_POSITION_PRECEDING) != 0;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the last sibling before the node that isn't text.
+     * 
+     * @return The last non-text sibling before the node, or null if none
+     */
+    private Node getLastNonTextBefore() {
+
+        Node ret;
+        if (mPositions != null) {
+            ret = mPositions.getLastNonTextBefore(mNode);
+        } else {
+            ret = mNode.getPreviousSibling();
+            while (DOMOps.isText(ret)) {
+                ret = ret.getPreviousSibling();
+            }
+        }
+
+        return ret;
+    }
 }
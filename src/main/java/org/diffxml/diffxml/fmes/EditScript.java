@@ -23,14 +23,20 @@ email: adrian.mouat@gmail.com
 
 package org.diffxml.diffxml.fmes;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.io.IOException;
 
 import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.DiffOptions.TextDiffMode;
 import org.diffxml.diffxml.fmes.delta.DULDelta;
 import org.diffxml.diffxml.fmes.delta.DeltaIF;
 import org.diffxml.diffxml.fmes.delta.DeltaInitialisationException;
+import org.diffxml.diffxml.fmes.delta.DocumentDeltaIF;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -70,21 +76,61 @@ public final class EditScript {
      */
     private DeltaIF mDelta;
     
+    /**
+     * Index of the positions of nodes in the original document.
+     */
+    private final PositionIndex mPositions = new PositionIndex();
+    
+    /**
+     * The options for the diff.
+     */
+    private final DiffOptions mOptions;
+    
+    /**
+     * The keys of the nodes for the diff.
+     */
+    private final NodeKeys mKeys;
+    
     /**
      * Constructor for EditScript.
      * Used to create a list of modifications that will turn doc1 into doc2,
      * given a set of matching nodes.
      * 
+     * Uses the options currently set in DiffFactory.
+     * 
      * @param doc1      the original document
      * @param doc2      the modified document
      * @param matchings the set of matching nodes
      */
     public EditScript(final Document doc1, final Document doc2,
             final NodePairs matchings) {
+        this(doc1, doc2, matchings, DiffFactory.getOptions());
+    }
+    
+    /**
+     * Constructor for EditScript.
+     * Used to create a list of modifications that will turn doc1 into doc2,
+     * given a set of matching nodes.
+     * 
+     * @param doc1      the original document
+     * @param doc2      the modified document
+     * @param matchings the set of matching nodes
+     * @param options   the options for the diff
+     */
+    public EditScript(final Document doc1, final Document doc2,
+            final NodePairs matchings, final DiffOptions options) {
         
         mDoc1 = doc1;
         mDoc2 = doc2;
         mMatchings = matchings;
+        mOptions = options;
+
+        //Reuse the keys and signatures cached while matching
+        NodeKeys keys = matchings.getKeys();
+        if (keys == null || keys.getOptions() != options) {
+            keys = new NodeKeys(options);
+        }
+        mKeys = keys;
     }
     
     /**
@@ -99,45 +145,82 @@ public final class EditScript {
      */
     public Document create() throws DocumentCreationException {
 
+        DocumentDeltaIF delta;
         try {
-            mDelta = new DULDelta();
+            delta = new DULDelta(mPositions, mOptions);
         } catch (DeltaInitialisationException e) {
             throw new DocumentCreationException("Failed to create edit script",
                     e);
         }
 
+        create(delta);
+        return delta.getDocument();
+    }
+
+    /**
+     * Creates an Edit Script conforming to matchings that transforms
+     * doc1 into doc2, adding the operations to the given delta.
+     *
+     * The delta should find node positions with the index from 
+     * getPositionIndex.
+     *
+     * @param delta the delta to add the operations to
+     */
+    public void create(final DeltaIF delta) {
+
+        mDelta = delta;
+
         // Fifo used to do a breadth first traversal of doc2
-        NodeFifo fifo = new NodeFifo();
+        NodeFifo fifo = new NodeFifo(mOptions);
         fifo.addChildrenOfNode(mDoc2);
         
         Node doc2docEl = mDoc2.getDocumentElement();
+        Set<Node> newSubtrees = getNewSubtrees(mDoc2);
         //Special case for aligning children of root node
         alignChildren(mDoc1, mDoc2, mMatchings);
 
         while (!fifo.isEmpty()) {
             
             Node x = fifo.pop();
-            fifo.addChildrenOfNode(x);
+
+            //Children of identical subtrees are already matched and in order
+            //and new subtrees are inserted with their children
+            boolean whole = mMatchings.isIdenticalSubtree(x);
 
             Node y = x.getParentNode();
             Node z = mMatchings.getPartner(y);
             Node w = mMatchings.getPartner(x);
 
             if (!mMatchings.isMatched(x)) {
-                w = doInsert(x, z);
+                if (newSubtrees.contains(x)) {
+                    w = doInsertSubtree(x, z);
+                    whole = true;
+                } else {
+                    w = doInsert(x, z);
+                }
             } else {
-                // TODO: Update should go here
-                // Special case for document element
-                if (NodeOps.checkIfSameNode(x, doc2docEl)
-                        && !Match.compareElements(w, x)) {
-                    w = doUpdate(w, x);
-                } else if (!mMatchings.getPartner(y).equals(
+                // Only document elements, elements matched by key and 
+                // leaves matched by similarity may differ
+                if (mMatchings.isSimilar(x)) {
+                    if (x.getNodeType() == Node.ELEMENT_NODE) {
+                        if (!Match.compareElements(w, x, mKeys)) {
+                            w = doUpdate(w, x);
+                        }
+                    } else if (!mKeys.sameKey(w, x)) {
+                        w = doUpdate(w, x);
+                    }
+                }
+                if (!NodeOps.checkIfSameNode(x, doc2docEl)
+                        && !mMatchings.getPartner(y).equals(
                         w.getParentNode())) {
                     doMove(w, x, z, mMatchings);
                 }
             }
 
-            alignChildren(w, x, mMatchings);
+            if (!whole) {
+                fifo.addChildrenOfNode(x);
+                alignChildren(w, x, mMatchings);
+            }
         }
 
         deletePhase(mDoc1, mMatchings);
@@ -146,8 +229,17 @@ public final class EditScript {
         // Post-Condition es is a minimum cost edit script,
         // Matchings is a total matching and
         // doc1 is isomorphic to doc2
+    }
 
-        return mDelta.getDocument();
+    /**
+     * Gets the index of node positions in the original document.
+     *
+     * Kept up to date as the Edit Script is created.
+     *
+     * @return the index of node positions
+     */
+    public PositionIndex getPositionIndex() {
+        return mPositions;
     }
 
     /**
@@ -164,6 +256,7 @@ public final class EditScript {
         if (w.getNodeType() == Node.ELEMENT_NODE) {
 
             mDelta.update(w, x);
+            mPositions.discard(w);
 
             //Unfortunately, you can't change the node name in DOM, so we need
             //to create a new node and copy it all over
@@ -186,14 +279,263 @@ public final class EditScript {
                 newW.appendChild(w.getFirstChild());
             }
             
+            mPositions.removing(w);
             w.getParentNode().replaceChild(newW, w);
+            mPositions.inserted(newW);
             mMatchings.remove(w);
             mMatchings.add(newW, x);   
+        } else if (hasTextSibling(w)) {
+            //An update can't address part of a run of text, so replace it
+            mMatchings.remove(w);
+            newW = doInsert(x, mMatchings.getPartner(x.getParentNode()));
+        } else {
+            List<TextDiff.Hunk> hunks = null;
+            if (DOMOps.isText(w) 
+                    && mOptions.getTextDiff() != TextDiffMode.OFF) {
+                hunks = TextDiff.diff(w.getNodeValue(), x.getNodeValue(),
+                        mOptions.getTextDiff());
+                if (hunks != null 
+                        && w.getNodeType() == Node.CDATA_SECTION_NODE
+                        && insertsAtEdge(hunks, w.getNodeValue().length())) {
+                    hunks = null;
+                }
+            }
+            if (hunks == null) {
+                mDelta.update(w, x);
+            } else {
+                updateText(w, x, hunks);
+            }
+            w.setNodeValue(x.getNodeValue());
+            mPositions.updated(w);
+            newW = w;
         }
         
         return newW;
     }
+
+    /**
+     * Changes the text of w to that of x by deleting and inserting only the
+     * parts that differ.
+     * 
+     * The hunks are output last first, so the character positions of the
+     * earlier ones are unchanged.
+     * 
+     * @param w The text node to be updated
+     * @param x The text node to make it like
+     * @param hunks The differences between the values of w and x
+     */
+    private void updateText(final Node w, final Node x, 
+            final List<TextDiff.Hunk> hunks) {
+
+        ChildNumber cn = new ChildNumber(w, mPositions);
+        int charpos = cn.getXPathCharPos();
+        //Text inserted into w follows it
+        int childno = cn.getXPath() + 1;
+        String value = x.getNodeValue();
+        Node text = w.cloneNode(false);
+
+        for (int i = hunks.size() - 1; i >= 0; i--) {
+            TextDiff.Hunk h = hunks.get(i);
+            if (h.getOldLength() > 0) {
+                mDelta.delete(w, charpos + h.getOldStart(), h.getOldLength());
+            }
+            if (h.getNewLength() > 0) {
+                text.setNodeValue(value.substring(h.getNewStart(), 
+                        h.getNewStart() + h.getNewLength()));
+                mDelta.insert(text, w.getParentNode(), childno, 
+                        charpos + h.getOldStart());
+            }
+        }
+    }
+
+    /**
+     * Checks if text would be inserted at the start or end of a value.
+     * 
+     * Text inserted at the edge of a CDATA section becomes a new section
+     * rather than part of the old one.
+     * 
+     * @param hunks The changes to the value, in order
+     * @param length The length of the value
+     * @return True if the first or last hunk inserts at an edge
+     */
+    private static boolean insertsAtEdge(final List<TextDiff.Hunk> hunks,
+            final int length) {
+
+        TextDiff.Hunk first = hunks.get(0);
+        TextDiff.Hunk last = hunks.get(hunks.size() - 1);
+        return (first.getNewLength() > 0 && first.getOldStart() == 0)
+            || (last.getNewLength() > 0 
+                    && last.getOldStart() + last.getOldLength() == length);
+    }
+
+    /**
+     * Checks if a node is next to a text node.
+     * 
+     * @param n The node to check
+     * @return True if a sibling either side of n is text
+     */
+    private static boolean hasTextSibling(final Node n) {
+        return DOMOps.isText(n.getPreviousSibling())
+            || DOMOps.isText(n.getNextSibling());
+    }
     
+    /**
+     * Finds the elements of doc2 worth inserting with all their contents.
+     * 
+     * These are elements with attributes or children where no node of their
+     * subtree is matched. The tree is walked once, children before parents,
+     * without recursion.
+     * 
+     * @param doc2 The document to find the subtrees in
+     * @return The roots of the unmatched subtrees and their descendants
+     */
+    private Set<Node> getNewSubtrees(final Document doc2) {
+
+        Set<Node> unmatched = Collections.newSetFromMap(
+                new IdentityHashMap<Node, Boolean>());
+        Set<Node> ret = Collections.newSetFromMap(
+                new IdentityHashMap<Node, Boolean>());
+
+        Node n = doc2;
+        while (true) {
+            while (n.hasChildNodes()) {
+                n = n.getFirstChild();
+            }
+            addIfUnmatched(n, unmatched, ret);
+            while (n != doc2 && n.getNextSibling() == null) {
+                n = n.getParentNode();
+                addIfUnmatched(n, unmatched, ret);
+            }
+            if (n == doc2) {
+                break;
+            }
+            n = n.getNextSibling();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Records a node if it and all its descendants are unmatched and can be
+     * copied into the delta.
+     * 
+     * Must be called after it has been called for the children of n.
+     * 
+     * @param n The node to check
+     * @param unmatched The wholly unmatched nodes found so far
+     * @param subtrees The elements worth inserting whole found so far
+     */
+    private void addIfUnmatched(final Node n, final Set<Node> unmatched,
+            final Set<Node> subtrees) {
+
+        boolean ret = !mMatchings.isMatched(n);
+        switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE:
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE:
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                break;
+            default:
+                ret = false;
+        }
+
+        for (Node kid = n.getFirstChild(); kid != null && ret;
+                kid = kid.getNextSibling()) {
+            ret = unmatched.contains(kid) || Fmes.isBanned(kid, mOptions);
+        }
+
+        if (ret) {
+            unmatched.add(n);
+            if (n.getNodeType() == Node.ELEMENT_NODE 
+                    && (n.hasChildNodes() || n.hasAttributes())) {
+                subtrees.add(n);
+            }
+        }
+    }
+
+    /**
+     * Inserts a copy of x and all its contents as a child of z with a single
+     * operation.
+     * 
+     * Every node of the copy is matched to its original, so the children of 
+     * x don't need to be visited.
+     *
+     * @param x the root of an unmatched subtree of doc2
+     * @param z partner of x's parent
+     * @return the inserted node
+     */
+    private Node doInsertSubtree(final Node x, final Node z) {
+
+        FindPosition pos = new FindPosition(x, mMatchings, mPositions);
+        Node w = copySubtree(x);
+
+        mDelta.insertSubtree(w, z, pos.getXPathInsertPosition(), 
+                pos.getCharInsertPosition());
+
+        w = DOMOps.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        mPositions.inserted(w);
+
+        outputDebug();
+        return w;
+    }
+
+    /**
+     * Copies a subtree of doc2 into doc1, leaving out ignored nodes.
+     * 
+     * Each copied node is matched to its original. The subtree is walked
+     * without recursion, so deep subtrees can be copied.
+     * 
+     * @param x the root of the subtree
+     * @return the copy of x
+     */
+    private Node copySubtree(final Node x) {
+
+        Node ret = NodeOps.copyNodeToDoc(mDoc1, x);
+        addCopy(ret, x);
+
+        Node parent = ret;
+        Node n = x.getFirstChild();
+        while (n != null) {
+            Node next = null;
+            if (!Fmes.isBanned(n, mOptions)) {
+                Node copy = NodeOps.copyNodeToDoc(mDoc1, n);
+                parent.appendChild(copy);
+                addCopy(copy, n);
+                if (n.hasChildNodes()) {
+                    parent = copy;
+                    next = n.getFirstChild();
+                }
+            }
+            if (next == null) {
+                while (n != x && n.getNextSibling() == null) {
+                    n = n.getParentNode();
+                    parent = parent.getParentNode();
+                }
+                if (n != x) {
+                    next = n.getNextSibling();
+                }
+            }
+            n = next;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Matches a copied node to its original.
+     * 
+     * @param w the copy in doc1
+     * @param x the original in doc2
+     */
+    private void addCopy(final Node w, final Node x) {
+
+        //Need to set in order as won't be revisited
+        mMatchings.setInOrder(w);
+        mMatchings.setInOrder(x);
+        mMatchings.add(w, x);
+    }
+
     /**
      * Inserts (the import of) node x as child of z according to the algorithm 
      * and updates the Edit Script.
@@ -216,7 +558,7 @@ public final class EditScript {
         }
 
         //Find the child number (k) to insert w as child of z 
-        FindPosition pos = new FindPosition(x, mMatchings);
+        FindPosition pos = new FindPosition(x, mMatchings, mPositions);
 
         //Apply insert to doc1
         //The node we want to insert is the copy of x with attributes but no
@@ -224,14 +566,15 @@ public final class EditScript {
         Node w = NodeOps.copyNodeToDoc(mDoc1, x); 
 
         //Need to set in order as won't be revisited
-        NodeOps.setInOrder(w);
-        NodeOps.setInOrder(x);
+        mMatchings.setInOrder(w);
+        mMatchings.setInOrder(x);
 
         mDelta.insert(w, z, pos.getXPathInsertPosition(), 
                 pos.getCharInsertPosition());
 
         //Take match of parent (z), and insert
         w = DOMOps.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        mPositions.inserted(w);
 
         outputDebug();
         //Add to matching set
@@ -260,55 +603,89 @@ public final class EditScript {
         Node partnerY = matchings.getPartner(y);
         assert !NodeOps.checkIfSameNode(v, partnerY);
 
-        FindPosition pos = new FindPosition(x, matchings);
+        FindPosition pos = new FindPosition(x, matchings, mPositions);
 
-        NodeOps.setInOrder(w);
-        NodeOps.setInOrder(x);
+        matchings.setInOrder(w);
+        matchings.setInOrder(x);
 
         mDelta.move(w, z, pos.getXPathInsertPosition(), 
                 pos.getCharInsertPosition());
 
         //Apply move to T1
+        mPositions.removing(w);
         DOMOps.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        mPositions.inserted(w);
         outputDebug();
     }
 
     /**
      * Performs the deletePhase of the algorithm.
      *
-     * @param n          the current node
+     * By now every matched node has been moved under its partner's parent,
+     * so all the descendants of an unmatched node are also unmatched and
+     * the whole subtree is removed by one delete of its root.
+     * 
+     * The tree is walked without recursion, last child first, so deep
+     * documents can't overflow the stack.
+     *
+     * @param root       the node to delete unmatched descendants of
      * @param matchings  the set of matching nodes
      */
-    private void deletePhase(final Node n, final NodePairs matchings) {
-        
-        // Deletes nodes in Post-order traversal
-        NodeList kids = n.getChildNodes();
-        if (kids != null) {
-            // Note that we loop *backward* through kids
-            for (int i = (kids.getLength() - 1); i >= 0; i--) {
-                deletePhase(kids.item(i), matchings);
+    private void deletePhase(final Node root, final NodePairs matchings) {
+
+        Node n = root.getLastChild();
+        while (n != null) {
+            Node next;
+            if (!matchings.isMatched(n) 
+                    && n.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                next = getPreceding(n, root);
+                mDelta.delete(n);
+                mPositions.removing(n);
+                n.getParentNode().removeChild(n);
+            } else if (n.hasChildNodes()) {
+                next = n.getLastChild();
+            } else {
+                next = getPreceding(n, root);
             }
+            n = next;
         }
+    }
 
-        // If node isn't matched, delete it
-        if (!matchings.isMatched(n) 
-                && n.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
-            mDelta.delete(n);
-            n.getParentNode().removeChild(n);
-         
+    /**
+     * Gets the node to visit after n and its descendants in a last child
+     * first walk of root.
+     *
+     * @param n the node whose subtree has been visited
+     * @param root the root of the walk
+     * @return the previous sibling of n or of its nearest ancestor having
+     * one, or null if the walk is finished
+     */
+    private static Node getPreceding(final Node n, final Node root) {
+
+        Node ret = n;
+        while (ret != root && ret.getPreviousSibling() == null) {
+            ret = ret.getParentNode();
         }
+        if (ret != root) {
+            ret = ret.getPreviousSibling();
+        } else {
+            ret = null;
+        }
+        return ret;
     }
 
     /**
      * Mark the children of a node out of order.
      *
      * @param n the parent of the nodes to mark out of order
+     * @param matchings the set of matching Nodes
      */
-    private static void markChildrenOutOfOrder(final Node n) {
+    private static void markChildrenOutOfOrder(final Node n,
+            final NodePairs matchings) {
 
         NodeList kids = n.getChildNodes();
         for (int i = 0; i < kids.getLength(); i++) {
-            NodeOps.setOutOfOrder(kids.item(i));
+            matchings.setOutOfOrder(kids.item(i));
         }
     }
 
@@ -316,12 +693,14 @@ public final class EditScript {
      * Mark the children of a node in order.
      *
      * @param n the parent of the nodes to mark in order
+     * @param matchings the set of matching Nodes
      */
-    private static void markChildrenInOrder(final Node n) {
+    private static void markChildrenInOrder(final Node n,
+            final NodePairs matchings) {
 
         NodeList kids = n.getChildNodes();
         for (int i = 0; i < kids.getLength(); i++) {
-            NodeOps.setInOrder(kids.item(i));
+            matchings.setInOrder(kids.item(i));
         }
     }
     
@@ -335,8 +714,8 @@ public final class EditScript {
             final NodePairs matchings) {
 
         for (Node node : seq) {
-            NodeOps.setInOrder(node);
-            NodeOps.setInOrder(matchings.getPartner(node));
+            matchings.setInOrder(node);
+            matchings.setInOrder(matchings.getPartner(node));
         }
     }
 
@@ -352,20 +731,26 @@ public final class EditScript {
     private void moveMisalignedNodes(final Node w, final Node[] wSeq, 
             final List<Node> stay, final NodePairs matchings) {
         
+        Set<Node> staySet = Collections.newSetFromMap(
+                new IdentityHashMap<Node, Boolean>(stay.size()));
+        staySet.addAll(stay);
+
         //Get Nodes that are not in LCS but are in wSeq (or xSeq)
         for (Node a : wSeq) {
-            if (!stay.contains(a)) {
+            if (!staySet.contains(a)) {
 
                 Node b = matchings.getPartner(a);
-                FindPosition pos = new FindPosition(b, matchings);
+                FindPosition pos = new FindPosition(b, matchings, mPositions);
 
                 mDelta.move(a, w, pos.getXPathInsertPosition(),
                         pos.getCharInsertPosition());
 
+                mPositions.removing(a);
                 DOMOps.insertAsChild(pos.getDOMInsertPosition(), w, a);
+                mPositions.inserted(a);
 
-                NodeOps.setInOrder(a);
-                NodeOps.setInOrder(b);
+                matchings.setInOrder(a);
+                matchings.setInOrder(b);
                 outputDebug();
             }
         }
@@ -383,8 +768,8 @@ public final class EditScript {
             final NodePairs matchings) {
         
         //Order of w and x is important
-        markChildrenOutOfOrder(w);
-        markChildrenOutOfOrder(x);
+        markChildrenOutOfOrder(w, matchings);
+        markChildrenOutOfOrder(x, matchings);
 
         NodeList wKids = w.getChildNodes();
         NodeList xKids = x.getChildNodes();
@@ -398,8 +783,8 @@ public final class EditScript {
         moveMisalignedNodes(w, wSeq, lcsSeq, matchings);
         
         //The following is missing from the algorithm, but is important
-        markChildrenInOrder(w);
-        markChildrenInOrder(x);
+        markChildrenInOrder(w, matchings);
+        markChildrenInOrder(x, matchings);
     }
 
     /**
@@ -407,7 +792,7 @@ public final class EditScript {
      */
     private void outputDebug() {
 
-        if (DiffFactory.isDebug()) {
+        if (mOptions.isDebug()) {
             System.err.println("Result:");
             try {
                 DOMOps.outputXML(mDoc1, System.err);
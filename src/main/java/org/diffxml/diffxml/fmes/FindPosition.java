@@ -54,8 +54,21 @@ public class FindPosition {
      * @param matchings the set of matching nodes
      */
     public FindPosition(final Node x, final NodePairs matchings) {
+        this(x, matchings, null);
+    }
+
+    /**
+     * Finds the child number to insert a node as, using an index of sibling
+     * positions.
+     *
+     * @param x         the node with no partner
+     * @param matchings the set of matching nodes
+     * @param positions index of sibling positions, may be null
+     */
+    public FindPosition(final Node x, final NodePairs matchings,
+            final PositionIndex positions) {
 
-        Node v = getInOrderLeftSibling(x);
+        Node v = getInOrderLeftSibling(x, matchings);
 
         if (v == null) {
             
@@ -73,7 +86,7 @@ public class FindPosition {
             Node u = matchings.getPartner(v);
             assert (u != null);
 
-            ChildNumber uChildNo = new ChildNumber(u);
+            ChildNumber uChildNo = new ChildNumber(u, positions);
             Node w = matchings.getPartner(x);
 
             //Need position after u
@@ -108,12 +121,14 @@ public class FindPosition {
      * Gets the rightmost left sibling of n marked "inorder".
      *
      * @param n Node to find "in order" left sibling of
+     * @param matchings the set of matching nodes
      * @return  Either the "in order" left sibling or null if none
      */
-    private static Node getInOrderLeftSibling(final Node n) {
+    private static Node getInOrderLeftSibling(final Node n,
+            final NodePairs matchings) {
         
         Node curr = n.getPreviousSibling();
-        while (curr != null && !NodeOps.isInOrder(curr)) {
+        while (curr != null && !matchings.isInOrder(curr)) {
             curr = curr.getPreviousSibling();
         }
 
@@ -31,10 +31,22 @@ import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.Diff;
 import org.diffxml.diffxml.DiffException;
 import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.ParserSource;
+import org.diffxml.diffxml.fmes.delta.DULStreamDelta;
+import org.diffxml.diffxml.fmes.delta.DeltaInitialisationException;
 
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -51,20 +63,109 @@ import javax.xml.parsers.ParserConfigurationException;
  */
 public class Fmes implements Diff {
 
+    /**
+     * Runs the parses of second files, on daemon threads that are kept 
+     * for a while so following diffs can reuse them.
+     */
+    private static final Executor PARSE_EXECUTOR = 
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread ret = new Thread(r, "diffxml-parser");
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
+
+    /**
+     * The options for the diff.
+     */
+    private final DiffOptions mOptions;
+
+    /**
+     * Supplies the parsers for files.
+     */
+    private final ParserSource mParsers;
+
+    /**
+     * Runs the parse of the second file of a diff.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Creates a diff using the options currently set in DiffFactory.
+     */
+    public Fmes() {
+        this(DiffFactory.getOptions());
+    }
+
+    /**
+     * Creates a diff with the given options.
+     *
+     * @param options The options for the diff
+     */
+    public Fmes(final DiffOptions options) {
+        this(options, new FactoryParserSource(options), PARSE_EXECUTOR);
+    }
+
+    /**
+     * Creates a diff with the given options that reads files with parsers
+     * from the given source, such as a pool.
+     *
+     * The second file of a diff is parsed on a shared daemon thread.
+     *
+     * @param options The options for the diff
+     * @param parsers Supplies the parsers for files, which must be set up
+     *                with DOMOps.initParser for the options
+     */
+    public Fmes(final DiffOptions options, final ParserSource parsers) {
+        this(options, parsers, PARSE_EXECUTOR);
+    }
+
+    /**
+     * Creates a diff with the given options that reads files with parsers
+     * from the given source, such as a pool.
+     *
+     * @param options The options for the diff
+     * @param parsers Supplies the parsers for files, which must be set up
+     *                with DOMOps.initParser for the options
+     * @param executor Runs the parse of the second file while the first is
+     *                 parsed on the calling thread
+     */
+    public Fmes(final DiffOptions options, final ParserSource parsers,
+            final Executor executor) {
+
+        mOptions = options;
+        mParsers = parsers;
+        mExecutor = executor;
+    }
+
     /**
      * Determines if the given node should be ignored.
      *
-     * Examines the node's type against settings.
+     * Examines the node's type against the options currently set in 
+     * DiffFactory.
      *
      * @return True if the node is banned, false otherwise
      * @param  n   The node to be checked
      */
-
     public static boolean isBanned(final Node n) {
+        return isBanned(n, DiffFactory.getOptions());
+    }
+
+    /**
+     * Determines if the given node should be ignored.
+     *
+     * Examines the node's type against the options.
+     *
+     * @return True if the node is banned, false otherwise
+     * @param  n   The node to be checked
+     * @param  options The options for the diff
+     */
+    public static boolean isBanned(final Node n, final DiffOptions options) {
         
         boolean ret = false;
         // Check if ignorable whitespace
-        if (DiffFactory.isIgnoreWhitespaceNodes() && DOMOps.isText(n)) {
+        if (options.isIgnoreWhitespaceNodes() && DOMOps.isText(n)) {
             StringTokenizer st = new StringTokenizer(n.getNodeValue());
             if (!st.hasMoreTokens()) {
                 ret = true;
@@ -72,13 +173,13 @@ public class Fmes implements Diff {
         }
 
         // Check if ignorable comment
-        if (DiffFactory.isIgnoreComments()
+        if (options.isIgnoreComments()
                 && (n.getNodeType() == Node.COMMENT_NODE)) {
             ret = true;
         }
 
         // Check if ignorable pi
-        if (DiffFactory.isIgnoreProcessingInstructions()
+        if (options.isIgnoreProcessingInstructions()
                 && (n.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE)) {
             ret = true;
         }
@@ -89,6 +190,8 @@ public class Fmes implements Diff {
     /**
      * Calls fmes diff on two files.
      *
+     * The files are parsed at the same time.
+     *
      * @return       The delta
      * @param file1  The original file
      * @param file2  The modified file
@@ -97,38 +200,172 @@ public class Fmes implements Diff {
     public final Document diff(final File file1, final File file2) 
     throws DiffException {
         
+        Document[] docs = parse(file1, file2);
+        return diff(docs[0], docs[1]);
+    }
+
+    /**
+     * Calls fmes diff on two files, writing the delta to a stream.
+     *
+     * The files are parsed at the same time. The delta is written as it is
+     * created rather than built in memory.
+     *
+     * @param file1  The original file
+     * @param file2  The modified file
+     * @param os     The stream to write the delta to
+     * @return       True if the files differ
+     * @throws DiffException If something goes wrong during the diff
+     **/
+    public final boolean diff(final File file1, final File file2, 
+            final OutputStream os) throws DiffException {
         
-        DocumentBuilderFactory fac = DocumentBuilderFactory.newInstance();
-        DOMOps.initParser(fac);
+        Document[] docs = parse(file1, file2);
+        return diff(docs[0], docs[1], os);
+    }
 
-        DocumentBuilder db = null;
-        Document doc1 = null;
-        Document doc2 = null;
+    /**
+     * Checks whether two files differ, without creating the delta.
+     *
+     * The files are read side by side as NodeStreams and compared node by
+     * node, so neither is held in memory. Banned nodes are left out of 
+     * both files. Files that can't be read as a NodeStream are diffed as 
+     * DOM documents.
+     *
+     * @param file1  The original file
+     * @param file2  The modified file
+     * @return       True if the files differ in a node that isn't banned
+     * @throws DiffException If something goes wrong during the diff
+     **/
+    public final boolean differ(final File file1, final File file2) 
+    throws DiffException {
 
+        boolean ret;
         try {
-            db = fac.newDocumentBuilder();
-            doc1 = db.parse(file1);
-        } catch (ParserConfigurationException e) {
-            throw new DiffException("Failed to set up XML parser", e);
-        } catch (IOException e) {
-            throw new DiffException("Failed to parse file "
-                    + file1.getAbsolutePath(), e);            
-        } catch (SAXException e) {
-            throw new DiffException("Failed to parse file "
-                    + file1.getAbsolutePath(), e);                        
+            ret = NodeStream.differ(file1, file2, mOptions);
+        } catch (DiffException e) {
+            //Fall through to the DOM diff, which reports any real errors
+            ret = diff(file1, file2).getDocumentElement().hasChildNodes();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Calls fmes diff on two documents that are still being produced.
+     *
+     * Lets callers overlap reading and parsing the documents with other 
+     * work, such as a previous diff.
+     *
+     * @return       The delta
+     * @param doc1   The original document
+     * @param doc2   The modified document
+     * @throws DiffException If either document can't be produced or 
+     *                       something goes wrong during the diff
+     **/
+    public final Document diff(final Future<Document> doc1, 
+            final Future<Document> doc2) throws DiffException {
+        return diff(getDocument(doc1), getDocument(doc2));
+    }
+
+    /**
+     * Calls fmes diff on two documents that are still being produced, 
+     * writing the delta to a stream.
+     *
+     * @param doc1   The original document
+     * @param doc2   The modified document
+     * @param os     The stream to write the delta to
+     * @return       True if the documents differ
+     * @throws DiffException If either document can't be produced or 
+     *                       something goes wrong during the diff
+     **/
+    public final boolean diff(final Future<Document> doc1, 
+            final Future<Document> doc2, final OutputStream os) 
+    throws DiffException {
+        return diff(getDocument(doc1), getDocument(doc2), os);
+    }
+
+    /**
+     * Parses two files at the same time, each with its own parser.
+     *
+     * The second file is parsed by the executor while the first is parsed
+     * on the calling thread.
+     *
+     * @param file1 The first file
+     * @param file2 The second file
+     * @return The two parsed documents, in order
+     * @throws DiffException If either file can't be parsed
+     */
+    private Document[] parse(final File file1, final File file2) 
+    throws DiffException {
+
+        FutureTask<Document> doc2 = new FutureTask<Document>(
+                new Callable<Document>() {
+                    public Document call() throws DiffException {
+                        return parse(mParsers.getParser(), file2);
+                    }
+                });
+        mExecutor.execute(doc2);
+
+        Document doc1;
+        try {
+            doc1 = parse(mParsers.getParser(), file1);
+        } catch (DiffException e) {
+            doc2.cancel(true);
+            throw e;
         }
 
+        return new Document[] {doc1, getDocument(doc2)};
+    }
+
+    /**
+     * Waits for a document to be produced.
+     *
+     * @param future The document being produced
+     * @return The document
+     * @throws DiffException If the document couldn't be produced
+     */
+    private static Document getDocument(final Future<Document> future)
+    throws DiffException {
+
+        Document ret;
+        try {
+            ret = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiffException("Interrupted waiting for document", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DiffException) {
+                throw (DiffException) e.getCause();
+            }
+            throw new DiffException("Failed to produce document", e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parses a file.
+     *
+     * @param db The parser to use
+     * @param file The file to parse
+     * @return The parsed document
+     * @throws DiffException If the file can't be parsed
+     */
+    private static Document parse(final DocumentBuilder db, final File file)
+    throws DiffException {
+
+        Document ret;
         try {
-            doc2 = db.parse(file2);
+            ret = db.parse(file);
         } catch (IOException e) {
             throw new DiffException("Failed to parse file "
-                    + file2.getAbsolutePath(), e);            
+                    + file.getAbsolutePath(), e);            
         } catch (SAXException e) {
             throw new DiffException("Failed to parse file "
-                    + file2.getAbsolutePath(), e);                        
+                    + file.getAbsolutePath(), e);                        
         }
 
-        return diff(doc1, doc2);
+        return ret;
     }
 
     /**
@@ -147,15 +384,102 @@ public class Fmes implements Diff {
     public final Document diff(final Document doc1, final Document doc2) 
     throws DiffException  {
 
-        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        NodePairs matchings = Match.easyMatch(doc1, doc2, mOptions);
 
         Document delta = null;
         try {
-            delta = (new EditScript(doc1, doc2, matchings)).create();
+            delta = (new EditScript(doc1, doc2, matchings, mOptions)).create();
         } catch (DocumentCreationException e) {
             throw new DiffException("Failed to create Edit Script ", e); 
         }
 
         return delta;
     }
+
+    /**
+     * Differences two DOM documents, writing the delta to a stream.
+     *
+     * The delta is in DUL format and is written as it is created.
+     *
+     * @param doc1    The original document
+     * @param doc2    The new document
+     * @param os      The stream to write the delta to
+     * @return        True if the documents differ
+     * @throws DiffException If something goes wrong during the diff
+     */
+    public final boolean diff(final Document doc1, final Document doc2,
+            final OutputStream os) throws DiffException  {
+
+        NodePairs matchings = Match.easyMatch(doc1, doc2, mOptions);
+        EditScript es = new EditScript(doc1, doc2, matchings, mOptions);
+
+        DULStreamDelta delta;
+        try {
+            delta = new DULStreamDelta(os, es.getPositionIndex(), mOptions);
+        } catch (DeltaInitialisationException e) {
+            throw new DiffException("Failed to create Edit Script ", e); 
+        }
+
+        es.create(delta);
+        try {
+            delta.finish();
+        } catch (IOException e) {
+            throw new DiffException("Failed to write Edit Script ", e);
+        }
+
+        return delta.hasOperations();
+    }
+
+    /**
+     * Creates parsers from a factory set up with the options of a diff.
+     *
+     * The factory is looked up once, when the first parser is needed.
+     */
+    private static final class FactoryParserSource implements ParserSource {
+
+        /**
+         * The options for the diff.
+         */
+        private final DiffOptions mOptions;
+
+        /**
+         * The factory, or null until the first parser is needed.
+         */
+        private DocumentBuilderFactory mFactory;
+
+        /**
+         * Creates a source of parsers for the given options.
+         *
+         * @param options The options for the diff
+         */
+        FactoryParserSource(final DiffOptions options) {
+            mOptions = options;
+        }
+
+        /**
+         * Creates a new parser.
+         *
+         * Factories aren't guaranteed to be thread safe, so only one 
+         * parser is created at a time.
+         *
+         * @return A new DocumentBuilder
+         * @throws DiffException If the parser can't be created
+         */
+        public synchronized DocumentBuilder getParser() throws DiffException {
+
+            if (mFactory == null) {
+                mFactory = DocumentBuilderFactory.newInstance();
+                DOMOps.initParser(mFactory, mOptions);
+            }
+
+            DocumentBuilder ret;
+            try {
+                ret = mFactory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new DiffException("Failed to set up XML parser", e);
+            }
+
+            return ret;
+        }
+    }
 }
@@ -0,0 +1,227 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Matches elements by the keys set in the diff options.
+ *
+ * Record oriented documents often identify each record by an attribute or
+ * child element. Matching records by that key means a record with one
+ * changed field is updated rather than deleted and inserted in full.
+ *
+ * Each document is scanned once and keys are looked up in a hash map, so
+ * matching is linear in the size of the documents. Keys that occur more
+ * than once in either document are ambiguous and are left to the normal
+ * matching.
+ *
+ * @author Adrian Mouat
+ */
+final class KeyMatcher {
+
+    /**
+     * Separates the parts of a key. Can't occur in XML content.
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    /**
+     * Private constructor.
+     */
+    private KeyMatcher() {
+        //Shouldn't be called
+    }
+
+    /**
+     * Matches the elements of two documents that have the same key.
+     *
+     * @param nodes1 The nodes of the original document
+     * @param nodes2 The nodes of the modified document
+     * @param matchSet The matchings to add to
+     * @param matched The nodes already matched, matched nodes are added
+     * @param options The options for the diff
+     */
+    static void match(final List<Node> nodes1, final List<Node> nodes2,
+            final NodePairs matchSet, final Set<Node> matched,
+            final DiffOptions options) {
+
+        if (!options.hasMatchKeys()) {
+            return;
+        }
+
+        Map<String, Node> keys1 = getKeyedElements(nodes1, matched, options);
+        Map<String, Node> keys2 = getKeyedElements(nodes2, matched, options);
+
+        for (Map.Entry<String, Node> entry : keys1.entrySet()) {
+            Node n1 = entry.getValue();
+            Node n2 = keys2.get(entry.getKey());
+            if (n1 != null && n2 != null) {
+                matchSet.addSimilar(n1, n2);
+                matched.add(n1);
+                matched.add(n2);
+            }
+        }
+    }
+
+    /**
+     * Maps each unique key in a document to its element.
+     *
+     * Keys that occur more than once map to null. Keys are kept in the
+     * order they are first found.
+     *
+     * @param nodes The nodes of the document
+     * @param matched The nodes already matched
+     * @param options The options for the diff
+     * @return The elements by key
+     */
+    private static Map<String, Node> getKeyedElements(final List<Node> nodes,
+            final Set<Node> matched, final DiffOptions options) {
+
+        Map<String, Node> ret = new LinkedHashMap<String, Node>();
+        Set<String> duplicates = new HashSet<String>();
+        for (Node n : nodes) {
+            String key = getKey(n, matched, options);
+            if (key != null && !duplicates.contains(key)) {
+                if (ret.containsKey(key)) {
+                    ret.put(key, null);
+                    duplicates.add(key);
+                } else {
+                    ret.put(key, n);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the key of a node, including its namespace and name.
+     *
+     * @param n The node to get the key of
+     * @param matched The nodes already matched
+     * @param options The options for the diff
+     * @return The key, or null if n is matched, isn't an element with a key
+     *         rule or doesn't have the key
+     */
+    private static String getKey(final Node n, final Set<Node> matched,
+            final DiffOptions options) {
+
+        String ret = null;
+        if (n.getNodeType() == Node.ELEMENT_NODE && !matched.contains(n)) {
+            String value = getKeyValue(n, options);
+            if (value != null) {
+                StringBuilder key = new StringBuilder();
+                if (n.getNamespaceURI() != null) {
+                    key.append(n.getNamespaceURI().trim());
+                }
+                key.append(SEPARATOR).append(NodeOps.getLocalName(n));
+                key.append(SEPARATOR).append(value);
+                ret = key.toString();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the value of the key of an element.
+     *
+     * @param element The element to get the key value of
+     * @param options The options for the diff
+     * @return The value of the key attribute or the text of the key child,
+     *         or null if the element has no key
+     */
+    static String getKeyValue(final Node element, final DiffOptions options) {
+
+        String ret = null;
+        String rule = options.getMatchKey(NodeOps.getLocalName(element));
+        if (rule != null && rule.startsWith("@")) {
+            ret = getAttributeValue(element, rule.substring(1));
+        } else if (rule != null) {
+            Node curr = element;
+            String[] path = rule.split("/");
+            for (int i = 0; curr != null && i < path.length; i++) {
+                curr = getChildElement(curr, path[i]);
+            }
+            if (curr != null) {
+                ret = curr.getTextContent();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the value of the attribute of an element with the given local 
+     * name.
+     *
+     * @param element The element
+     * @param name The local name of the attribute
+     * @return The value of the attribute or null if there isn't one
+     */
+    private static String getAttributeValue(final Node element,
+            final String name) {
+
+        String ret = null;
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; ret == null && i < attrs.getLength(); i++) {
+            Node a = attrs.item(i);
+            if (!NodeOps.isNamespaceAttr(a)
+                    && NodeOps.getLocalName(a).equals(name)) {
+                ret = a.getNodeValue();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the first child element with the given local name.
+     *
+     * @param parent The parent node
+     * @param name The local name of the child
+     * @return The child element or null if there isn't one
+     */
+    private static Node getChildElement(final Node parent, final String name) {
+
+        Node ret = null;
+        for (Node kid = parent.getFirstChild(); ret == null && kid != null;
+                kid = kid.getNextSibling()) {
+            if (kid.getNodeType() == Node.ELEMENT_NODE
+                    && NodeOps.getLocalName(kid).equals(name)) {
+                ret = kid;
+            }
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Matches changed leaves to similar leaves of the other document.
+ *
+ * After exact matching, an unmatched text node, comment or processing
+ * instruction is matched to the most similar unmatched leaf of the same
+ * type under the partner of its parent, if they are similar enough. The
+ * edit script then updates the leaf rather than deleting it and inserting
+ * the new value in full.
+ *
+ * Similarity is the Jaccard coefficient of the sets of character bigrams
+ * of the values. Each value is turned into a sorted array of bigrams once,
+ * so comparing two leaves is a single merge of their arrays.
+ *
+ * @author Adrian Mouat
+ */
+final class LeafMatcher {
+
+    /**
+     * Lowest similarity for two leaves to be matched.
+     */
+    static final double THRESHOLD = 0.5;
+
+    /**
+     * Most candidates compared with each leaf, to bound the work on parents
+     * with many changed children.
+     */
+    static final int MAX_CANDIDATES = 50;
+
+    /**
+     * Private constructor.
+     */
+    private LeafMatcher() {
+        //Shouldn't be called
+    }
+
+    /**
+     * Matches the unmatched leaves of doc1 to similar leaves of doc2.
+     *
+     * @param doc1 The original document
+     * @param matchSet The matchings to add to
+     * @param options The options for the diff
+     */
+    static void match(final Document doc1, final NodePairs matchSet,
+            final DiffOptions options) {
+
+        Node n = doc1;
+        while (n != null) {
+            Node partner = matchSet.getPartner(n);
+            if (n.hasChildNodes() && matchSet.isMatched(n) 
+                    && partner != null && partner.hasChildNodes()) {
+                matchChildren(n, partner, matchSet, options);
+            }
+            n = SubtreeHash.nextInDocumentOrder(n);
+        }
+    }
+
+    /**
+     * Matches the unmatched leaf children of two matched parents.
+     *
+     * @param p1 The parent in doc1
+     * @param p2 The partner of p1
+     * @param matchSet The matchings to add to
+     * @param options The options for the diff
+     */
+    private static void matchChildren(final Node p1, final Node p2,
+            final NodePairs matchSet, final DiffOptions options) {
+
+        List<Node> leaves1 = getUnmatchedLeaves(p1, matchSet, options);
+        if (leaves1.isEmpty()) {
+            return;
+        }
+        List<Node> leaves2 = getUnmatchedLeaves(p2, matchSet, options);
+        if (leaves2.isEmpty()) {
+            return;
+        }
+
+        List<int[]> sigs2 = new ArrayList<int[]>(leaves2.size());
+        for (Node n2 : leaves2) {
+            sigs2.add(getSignature(n2.getNodeValue()));
+        }
+
+        for (Node n1 : leaves1) {
+            int[] sig1 = getSignature(n1.getNodeValue());
+            int best = -1;
+            double bestSim = THRESHOLD;
+            int tried = 0;
+            for (int i = 0; i < leaves2.size() && tried < MAX_CANDIDATES; 
+                    i++) {
+                Node n2 = leaves2.get(i);
+                if (n2 != null && isCandidate(n1, n2)) {
+                    tried++;
+                    double sim = similarity(sig1, sigs2.get(i));
+                    if (sim >= bestSim && (best == -1 || sim > bestSim)) {
+                        best = i;
+                        bestSim = sim;
+                    }
+                }
+            }
+            if (best != -1) {
+                matchSet.addSimilar(n1, leaves2.get(best));
+                leaves2.set(best, null);
+            }
+        }
+    }
+
+    /**
+     * Gets the children of a node that are unmatched leaves.
+     *
+     * @param parent The parent node
+     * @param matchSet The matchings
+     * @param options The options for the diff
+     * @return The unmatched text, comment and PI children, in order
+     */
+    private static List<Node> getUnmatchedLeaves(final Node parent,
+            final NodePairs matchSet, final DiffOptions options) {
+
+        List<Node> ret = new ArrayList<Node>();
+        for (Node kid = parent.getFirstChild(); kid != null;
+                kid = kid.getNextSibling()) {
+            switch (kid.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                case Node.COMMENT_NODE:
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    if (!matchSet.isMatched(kid) 
+                            && !Fmes.isBanned(kid, options)) {
+                        ret.add(kid);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Checks if two leaves can be matched as an update.
+     *
+     * They must be of the same type and processing instructions must have
+     * the same target, as only the value can be updated.
+     *
+     * @param n1 Leaf from doc1
+     * @param n2 Leaf from doc2
+     * @return True if n1 can be updated to n2
+     */
+    static boolean isCandidate(final Node n1, final Node n2) {
+
+        boolean ret = n1.getNodeType() == n2.getNodeType();
+        if (ret && n1.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
+            ret = n1.getNodeName().equals(n2.getNodeName());
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the sorted set of character bigrams of a value.
+     *
+     * The value is padded at each end, so one character values still have
+     * bigrams and the first and last characters count as much as the rest.
+     *
+     * @param value The value
+     * @return The distinct bigrams, each as two chars in an int, sorted
+     */
+    static int[] getSignature(final String value) {
+
+        int[] grams = new int[value.length() + 1];
+        char prev = '\u0000';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            grams[i] = (prev << Character.SIZE) | c;
+            prev = c;
+        }
+        grams[value.length()] = prev << Character.SIZE;
+        Arrays.sort(grams);
+
+        int size = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (size == 0 || grams[i] != grams[size - 1]) {
+                grams[size] = grams[i];
+                size++;
+            }
+        }
+
+        int[] ret = new int[size];
+        System.arraycopy(grams, 0, ret, 0, size);
+        return ret;
+    }
+
+    /**
+     * Calculates the Jaccard similarity of two signatures.
+     *
+     * @param a Sorted distinct bigrams
+     * @param b Sorted distinct bigrams
+     * @return The size of the intersection over the size of the union
+     */
+    static double similarity(final int[] a, final int[] b) {
+
+        int i = 0;
+        int j = 0;
+        int common = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return (double) common / (a.length + b.length - common);
+    }
+}
@@ -25,15 +25,20 @@ package org.diffxml.diffxml.fmes;
 
 import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.Set;
 
-import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 import org.w3c.dom.traversal.NodeFilter;
@@ -67,6 +72,8 @@ public final class Match {
     /**
      * Performs fast match algorithm on given DOM documents.
      * 
+     *  Uses the options currently set in DiffFactory.
+     * 
      *  TODO: May want to consider starting at same point in 2nd tree somehow, 
      *  may lead to better matches.
      * 
@@ -79,18 +86,38 @@ public final class Match {
      */
     public static NodePairs easyMatch(final Document doc1,
             final Document doc2) {
+        return easyMatch(doc1, doc2, DiffFactory.getOptions());
+    }
+
+    /**
+     * Performs fast match algorithm on given DOM documents.
+     * 
+     * @param doc1
+     *            The original document
+     * @param doc2
+     *            The modified document
+     * @param options
+     *            The options for the diff
+     * 
+     * @return NodeSet containing pairs of matching nodes.
+     */
+    public static NodePairs easyMatch(final Document doc1,
+            final Document doc2, final DiffOptions options) {
 
         NodePairs matchSet = new NodePairs();
+        NodeKeys keys = new NodeKeys(options);
+        matchSet.setKeys(keys);
 
         doc1.getDocumentElement().normalize();
         doc2.getDocumentElement().normalize();
 
-        List<NodeDepth> list1 = initialiseAndOrderNodes(doc1);
-        List<NodeDepth> list2 = initialiseAndOrderNodes(doc2);
+        List<Node> list1 = initialiseAndOrderNodes(doc1);
+        List<Node> list2 = initialiseAndOrderNodes(doc2);
         
         //Explicitly add document elements, doctype elements and root
         matchSet.add(doc1, doc2);
-        matchSet.add(doc1.getDocumentElement(), doc2.getDocumentElement());
+        matchSet.addSimilar(doc1.getDocumentElement(), 
+                doc2.getDocumentElement());
         
         //Kill any doctype nodes - they can't be edited effectively with DOM
         //nor can xpath select them
@@ -101,37 +128,294 @@ public final class Match {
             doc2.removeChild(doc2.getDoctype());
         }
         
+        //Match unchanged parts of the documents in one go
+        Set<Node> matched = matchIdenticalSubtrees(doc1, doc2,
+                matchSet, keys);
+
+        //Then elements with the same key, even if they have changed
+        KeyMatcher.match(list1, list2, matchSet, matched, options);
+
+        //Only nodes with the same matching key can match, so bucket list 2
+        List<Node> nodes2 = new ArrayList<Node>(list2.size());
+        for (Node n2 : list2) {
+            if (!matched.contains(n2)) {
+                nodes2.add(n2);
+            }
+        }
+        CandidateIndex candidates = new CandidateIndex(nodes2, keys);
+
         // Proceed bottom up on List 1
-        for (NodeDepth nd1 : list1) {
-            Node n1 = nd1.getNode();
-            
-            for (NodeDepth nd2 : list2) {                   
-                Node n2 = nd2.getNode();
-                
-                if (compareNodes(n1, n2)) {
+        for (Node n1 : list1) {
+            if (matched.contains(n1)) {
+                continue;
+            }
+
+            Iterator<Node> it = candidates.candidates(n1);
+            while (it.hasNext()) {
+                Node n2 = it.next();
+
+                if (compareNodes(n1, n2, keys)) {
                     matchSet.add(n1, n2);
-                    
+
                     //Don't want to consider it again
-                    list2.remove(nd2);
+                    it.remove();
                     break;
                 }
             }
         }
 
-        outputDebug(matchSet, doc1);
+        //Finally pair up changed leaves so they can be updated
+        LeafMatcher.match(doc1, matchSet, options);
+
+        outputDebug(matchSet, doc1, options);
         return matchSet;
     }
 
+    /**
+     * Matches subtrees of doc1 to identical subtrees of doc2.
+     * 
+     * The subtrees of doc1 are tried largest first, so a small subtree can't
+     * take the partner of a node in a larger identical subtree.
+     * All the nodes in a matched subtree are matched to their counterparts 
+     * and marked in order, and the roots are recorded in the matchings so 
+     * the edit script can skip them.
+     * 
+     * Only elements with children are considered; leaf nodes are left to
+     * the node by node matching.
+     * 
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @param matchSet The set of matchings to add to
+     * @param keys The keys of the nodes for the diff
+     * @return The nodes of both documents that were matched
+     */
+    private static Set<Node> matchIdenticalSubtrees(final Document doc1,
+            final Document doc2, final NodePairs matchSet,
+            final NodeKeys keys) {
+        
+        DiffOptions options = keys.getOptions();
+        Set<Node> matched = Collections.newSetFromMap(
+                new IdentityHashMap<Node, Boolean>());
+        
+        SubtreeHash hashes1 = new SubtreeHash(doc1, keys);
+        SubtreeHash hashes2 = new SubtreeHash(doc2, keys);
+        matchSet.register(hashes1.getNodes());
+        matchSet.register(hashes2.getNodes());
+        
+        Map<Long, LinkedList<Node>> roots = 
+            new HashMap<Long, LinkedList<Node>>();
+        for (Node n2 : hashes2.getNodes()) {
+            if (isSubtreeCandidate(n2, options)) {
+                Long hash = hashes2.getHash(n2);
+                LinkedList<Node> bucket = roots.get(hash);
+                if (bucket == null) {
+                    bucket = new LinkedList<Node>();
+                    roots.put(hash, bucket);
+                }
+                bucket.add(n2);
+            }
+        }
+        
+        List<Node> candidates = new ArrayList<Node>();
+        for (Node n1 : hashes1.getNodes()) {
+            if (n1 != doc1.getDocumentElement() 
+                    && isSubtreeCandidate(n1, options)) {
+                candidates.add(n1);
+            }
+        }
+        sortBySize(candidates, hashes1);
+        
+        for (Node n1 : candidates) {
+            //Nodes inside a larger matched subtree are already matched
+            if (!matched.contains(n1)) {
+                Node n2 = findIdenticalSubtree(n1, 
+                        roots.get(hashes1.getHash(n1)), matched, keys);
+                if (n2 != null) {
+                    matchSubtrees(n1, n2, matchSet, matched, options);
+                    matchSet.addIdenticalSubtrees(n1, n2);
+                }
+            }
+        }
+        
+        return matched;
+    }
+
+    /**
+     * Sorts subtree roots by decreasing size.
+     * 
+     * The sort is stable, so roots of the same size stay in document order.
+     * 
+     * @param roots The roots of the subtrees to sort
+     * @param hashes The hashes and sizes of the subtrees
+     */
+    private static void sortBySize(final List<Node> roots, 
+            final SubtreeHash hashes) {
+        
+        Collections.sort(roots, new Comparator<Node>() {
+            public int compare(final Node a, final Node b) {
+                return hashes.getSize(b) - hashes.getSize(a);
+            }
+        });
+    }
+
+    /**
+     * Returns the first unmatched subtree in the candidates that is 
+     * identical to the given subtree.
+     * 
+     * Matched candidates are removed as they are found.
+     * 
+     * @param n1 Root of the subtree to find a match for
+     * @param candidates Roots of subtrees with the same hash, may be null
+     * @param matched The nodes already matched to identical subtrees
+     * @param keys The keys of the nodes for the diff
+     * @return The root of the identical subtree or null if there isn't one
+     */
+    private static Node findIdenticalSubtree(final Node n1,
+            final List<Node> candidates, final Set<Node> matched,
+            final NodeKeys keys) {
+        
+        Node ret = null;
+        if (candidates != null) {
+            Iterator<Node> it = candidates.iterator();
+            while (ret == null && it.hasNext()) {
+                Node n2 = it.next();
+                if (matched.contains(n2)) {
+                    it.remove();
+                } else if (compareSubtrees(n1, n2, keys)) {
+                    it.remove();
+                    ret = n2;
+                }
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Checks if a node can be the root of an identical subtree match.
+     * 
+     * @param n The node to check
+     * @param options The options for the diff
+     * @return True if n is an element with at least one child that isn't
+     *         banned and isn't banned itself
+     */
+    private static boolean isSubtreeCandidate(final Node n,
+            final DiffOptions options) {
+        
+        return n.getNodeType() == Node.ELEMENT_NODE
+            && !Fmes.isBanned(n, options)
+            && !getUnbannedChildren(n, options).isEmpty();
+    }
+    
+    /**
+     * Gets the children of a node that are not banned.
+     * 
+     * @param n The parent node
+     * @param options The options for the diff
+     * @return The children of n that are not banned, in order
+     */
+    private static List<Node> getUnbannedChildren(final Node n,
+            final DiffOptions options) {
+        
+        List<Node> kids = new ArrayList<Node>();
+        for (Node kid = n.getFirstChild(); kid != null; 
+                kid = kid.getNextSibling()) {
+            if (!Fmes.isBanned(kid, options)) {
+                kids.add(kid);
+            }
+        }
+        
+        return kids;
+    }
+    
+    /**
+     * Checks if two subtrees would match node for node.
+     * 
+     * @param a Root of the first subtree
+     * @param b Root of the second subtree
+     * @param keys The keys of the nodes for the diff
+     * @return True if every node matches its counterpart
+     */
+    private static boolean compareSubtrees(final Node a, final Node b,
+            final NodeKeys keys) {
+        
+        DiffOptions options = keys.getOptions();
+        boolean ret = true;
+        LinkedList<Node> stack = new LinkedList<Node>();
+        stack.push(a);
+        stack.push(b);
+        
+        while (ret && !stack.isEmpty()) {
+            Node y = stack.pop();
+            Node x = stack.pop();
+            
+            if (compareNodes(x, y, keys)) {
+                List<Node> xKids = getUnbannedChildren(x, options);
+                List<Node> yKids = getUnbannedChildren(y, options);
+                if (xKids.size() == yKids.size()) {
+                    for (int i = 0; i < xKids.size(); i++) {
+                        stack.push(xKids.get(i));
+                        stack.push(yKids.get(i));
+                    }
+                } else {
+                    ret = false;
+                }
+            } else {
+                ret = false;
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Matches every node of a subtree to its counterpart in an identical
+     * subtree and marks them in order.
+     * 
+     * @param a Root of the first subtree
+     * @param b Root of the identical subtree
+     * @param matchSet The matchings to add to
+     * @param matched Set to record the matched nodes in
+     * @param options The options for the diff
+     */
+    private static void matchSubtrees(final Node a, final Node b, 
+            final NodePairs matchSet, final Set<Node> matched,
+            final DiffOptions options) {
+        
+        LinkedList<Node> stack = new LinkedList<Node>();
+        stack.push(a);
+        stack.push(b);
+        
+        while (!stack.isEmpty()) {
+            Node y = stack.pop();
+            Node x = stack.pop();
+            
+            matchSet.add(x, y);
+            matched.add(x);
+            matched.add(y);
+            matchSet.setInOrder(x);
+            matchSet.setInOrder(y);
+            
+            List<Node> xKids = getUnbannedChildren(x, options);
+            List<Node> yKids = getUnbannedChildren(y, options);
+            for (int i = 0; i < xKids.size(); i++) {
+                stack.push(xKids.get(i));
+                stack.push(yKids.get(i));
+            }
+        }
+    }
+
     /**
      * Outputs information on the matches for debug purposes.
      * 
      * @param matchSet The set of matching Nodes.
      * @param doc The first document being differenced
+     * @param options The options for the diff
      */
     private static void outputDebug(final NodePairs matchSet,
-            final Document doc) {
+            final Document doc, final DiffOptions options) {
         
-        if (DiffFactory.isDebug()) {
+        if (options.isDebug()) {
             NodeIterator ni = ((DocumentTraversal) doc).createNodeIterator(
                     doc.getDocumentElement(), NodeFilter.SHOW_ALL, null, false);
  
@@ -168,67 +452,41 @@ public final class Match {
      */
     public static boolean compareElements(final Node a, final Node b) {
 
-        boolean ret = false;
-        
-        if (equalsOrBothNullOrEmpty(a.getNamespaceURI(), b.getNamespaceURI())) {
-                
-            if (NodeOps.getLocalName(a).equals(NodeOps.getLocalName(b))) {
-
-                //Compare attributes
+        return compareNames(a, b) && new AttributeSignature(a).equals(
+                new AttributeSignature(b));
+    }
 
-                //Attributes are equal until we find one that doesn't match
-                ret = true;
+    /**
+     * Compares two elements using their cached attribute signatures.
+     * 
+     * @param a
+     *            First element
+     * @param b
+     *            Potential match for b
+     * @param keys
+     *            The keys of the nodes for the diff
+     * @return true if nodes match, false otherwise
+     */
+    static boolean compareElements(final Node a, final Node b,
+            final NodeKeys keys) {
 
-                NamedNodeMap aAttrs = a.getAttributes();
-                NamedNodeMap bAttrs = b.getAttributes();
+        return compareNames(a, b) 
+            && keys.getSignature(a).equals(keys.getSignature(b));
+    }
 
-                int noAAttrs = 0;
-                if (aAttrs != null) {
-                    noAAttrs = aAttrs.getLength();
-                }
-       
-                int i = 0;
-                int numANonXMLNSAttrs = 0;
-                while (ret && (i < noAAttrs)) {
-                    // Check if attr exists in other tag if not xmlns
-                    Attr aItem = (Attr) aAttrs.item(i);
-                    if (!NodeOps.isNamespaceAttr(aItem)) {
-                        numANonXMLNSAttrs++;
-                        
-                        Attr bItem = (Attr) bAttrs.getNamedItemNS(
-                                aItem.getNamespaceURI(), 
-                                aItem.getLocalName()); 
-                        if (bItem == null || !bItem.getNodeValue().equals(
-                                aAttrs.item(i).getNodeValue())) {
-                            ret = false;
-                        } 
-                    }
-                    i++;
-                }
-                
-                //Finally we need to check there are no extra attributes in b
-                //that are not xmlns attributes
-                if (ret != false) {
-                    int noBAttrs = 0;
-                    int numBNonXMLNSAttrs = 0;
-                    if (bAttrs != null) {
-                        noBAttrs = bAttrs.getLength();
-                    }
-                    for (i = 0; i < noBAttrs; i++) {
-                        if (!NodeOps.isNamespaceAttr(bAttrs.item(i))) {
-                            numBNonXMLNSAttrs++;
-                        }
-                    }
+    /**
+     * Checks if two elements have the same namespace and local name.
+     * 
+     * @param a
+     *            First element
+     * @param b
+     *            Element to compare with a
+     * @return true if the names match, false otherwise
+     */
+    private static boolean compareNames(final Node a, final Node b) {
 
-                    if (numBNonXMLNSAttrs != numANonXMLNSAttrs) {
-                        ret = false;
-                    }
-                }
-                
-            }
-        }
-        
-        return ret;
+        return equalsOrBothNullOrEmpty(a.getNamespaceURI(), b.getNamespaceURI())
+            && NodeOps.getLocalName(a).equals(NodeOps.getLocalName(b));
     }
 
     /**
@@ -250,54 +508,22 @@ public final class Match {
     /**
      * Compares two text nodes to determine if they should be matched.
      * 
-     * Takes into account whitespace options.
+     * Takes into account whitespace and case options, by comparing the text
+     * normalized under them. The normalized text of each node is calculated
+     * once per diff and cached in the keys.
      * 
      * @param a
      *            First node
      * @param b
      *            Potential match for a
+     * @param keys
+     *            The keys of the nodes for the diff
      * @return True if nodes match, false otherwise
      */
+    private static boolean compareTextNodes(final Node a, final Node b,
+            final NodeKeys keys) {
 
-    private static boolean compareTextNodes(final Node a, final Node b) {
-
-        String aString = a.getNodeValue();
-        String bString = b.getNodeValue();
-
-        if (DiffFactory.isIgnoreAllWhitespace()) {
-            // Remove whitespace from nodes before comparison
-            // TODO: Check nextToken doesn't skip first
-            StringTokenizer st = new StringTokenizer(aString);
-            StringBuffer stringBuf = new StringBuffer(aString.length());
-            
-            while (st.hasMoreTokens()) {
-                stringBuf.append(st.nextToken());
-            }
-            aString = stringBuf.toString();
-
-            st = new StringTokenizer(bString);
-            stringBuf = new StringBuffer(bString.length());         
-            while (st.hasMoreTokens()) {
-                stringBuf.append(st.nextToken());
-            }
-            bString = stringBuf.toString();
-            
-        } else if (DiffFactory.isIgnoreLeadingWhitespace()) {
-            // Ignore leading ws
-            // just call trim
-            aString = aString.trim();
-            bString = bString.trim();
-        }
-
-        // Check case optn
-        boolean ret;
-        if (DiffFactory.isIgnoreCase()) {
-            ret = (aString.equalsIgnoreCase(bString));
-        } else {
-            ret = (aString.equals(bString));
-        }
-        
-        return ret;
+        return keys.sameKey(a, b);
     }
 
     /**
@@ -310,9 +536,12 @@ public final class Match {
      *            first node
      * @param b
      *            potential match for a
+     * @param keys
+     *            The keys of the nodes for the diff
      * @return true if nodes match, false otherwise
      */
-    private static boolean compareNodes(final Node a, final Node b) {
+    private static boolean compareNodes(final Node a, final Node b,
+            final NodeKeys keys) {
 
         boolean ret = false;
 
@@ -320,11 +549,11 @@ public final class Match {
 
             switch (a.getNodeType()) {
                 case Node.ELEMENT_NODE :
-                    ret = compareElements(a, b);
+                    ret = compareElements(a, b, keys);
                     break;
                 case Node.TEXT_NODE:
                 case Node.CDATA_SECTION_NODE:
-                    ret = compareTextNodes(a, b);
+                    ret = compareTextNodes(a, b, keys);
                     break;
                 case Node.DOCUMENT_NODE :
                     //Always match document nodes
@@ -343,33 +572,52 @@ public final class Match {
      * 
      * Does *NOT* include root or documentElement
      * 
-     * TreeSet is sorted in reverse order of depth according to
-     * NodeInfoComparator.
+     * Nodes are returned in reverse order of depth, with nodes at the same
+     * depth in document order. The depth is tracked during a single walk of
+     * the document and the nodes are bucketed by depth, so no sort is needed.
      * 
      * @param doc The document to be initialised and ordered.
      * @return A depth-ordered list of the nodes in the doc.
      */
-    private static List<NodeDepth> initialiseAndOrderNodes(
+    private static List<Node> initialiseAndOrderNodes(
             final Document doc) {
 
-        NodeIterator ni = ((DocumentTraversal) doc).createNodeIterator(
-                doc, NodeFilter.SHOW_ALL, null, false);
+        List<List<Node>> buckets = new ArrayList<List<Node>>();
+        int count = 0;
 
-        List<NodeDepth> depthSorted = new ArrayList<NodeDepth>();
-             
-        Node n;
-        while ((n = ni.nextNode()) != null) {
+        Node n = doc;
+        int depth = 0;
+        while (n != null) {
             if (!(NodeOps.checkIfSameNode(doc, n) 
                     || NodeOps.checkIfSameNode(doc.getDocumentElement(), n)
                     || n.getNodeType() == Node.DOCUMENT_TYPE_NODE)) {
-                depthSorted.add(new NodeDepth(n));
+                while (buckets.size() <= depth) {
+                    buckets.add(new ArrayList<Node>());
+                }
+                buckets.get(depth).add(n);
+                count++;
+            }
+
+            //Move to the next node in document order, tracking the depth
+            if (n.getFirstChild() != null) {
+                n = n.getFirstChild();
+                depth++;
+            } else {
+                while (n != null && n.getNextSibling() == null) {
+                    n = n.getParentNode();
+                    depth--;
+                }
+                if (n != null) {
+                    n = n.getNextSibling();
+                }
             }
         }
-        
-        ni.detach();
-        Collections.sort(depthSorted, new NodeDepthComparator());
+
+        List<Node> depthSorted = new ArrayList<Node>(count);
+        for (int i = buckets.size() - 1; i >= 0; i--) {
+            depthSorted.addAll(buckets.get(i));
+        }
         
         return depthSorted;
     }
 }
-
@@ -26,6 +26,8 @@ package org.diffxml.diffxml.fmes;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Node;
 
@@ -46,10 +48,28 @@ public class NodeFifo {
      */
     private final Queue<Node> mFifo;
 
+    /**
+     * The options for the diff, used to skip banned nodes.
+     */
+    private final DiffOptions mOptions;
+
     /**
      * Default constructor.
+     * 
+     * Uses the options currently set in DiffFactory.
      */
     NodeFifo() {
+        this(DiffFactory.getOptions());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param options The options for the diff
+     */
+    NodeFifo(final DiffOptions options) {
+        
+        mOptions = options;
         
         /*
          * TODO: Check if ArrayList is faster.
@@ -108,7 +128,7 @@ public class NodeFifo {
 
         if (kids != null) {
             for (int i = 0; i < kids.getLength(); i++) {
-                if (Fmes.isBanned(kids.item(i))) {
+                if (Fmes.isBanned(kids.item(i), mOptions)) {
                     continue;
                 }
 
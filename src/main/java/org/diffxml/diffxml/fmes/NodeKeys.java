@@ -0,0 +1,132 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.w3c.dom.Node;
+
+/**
+ * Cache of the matching keys of nodes for a single diff.
+ *
+ * The key of a node, including its text normalized under the whitespace
+ * and case options, and the attribute signature of each element are
+ * calculated once and reused by every comparison and index that needs them.
+ * The nodes must not change while the keys are in use.
+ *
+ * @author Adrian Mouat
+ */
+final class NodeKeys {
+
+    /**
+     * The options the keys are calculated with.
+     */
+    private final DiffOptions mOptions;
+
+    /**
+     * The key of each node seen so far.
+     */
+    private final Map<Node, String> mKeys =
+        new IdentityHashMap<Node, String>();
+
+    /**
+     * The attribute signature of each element seen so far.
+     */
+    private final Map<Node, AttributeSignature> mSignatures =
+        new IdentityHashMap<Node, AttributeSignature>();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param options The options for the diff
+     */
+    NodeKeys(final DiffOptions options) {
+        mOptions = options;
+    }
+
+    /**
+     * Returns the options the keys are calculated with.
+     *
+     * @return The options for the diff
+     */
+    DiffOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * Returns the matching key of a node, calculating it if needed.
+     *
+     * @param n The node to get the key of
+     * @return The key for the node, as given by CandidateIndex.getKey
+     */
+    String getKey(final Node n) {
+
+        String ret = mKeys.get(n);
+        if (ret == null) {
+            AttributeSignature sig = null;
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                sig = getSignature(n);
+            }
+            ret = CandidateIndex.getKey(n, mOptions, sig);
+            mKeys.put(n, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the attribute signature of an element, calculating it if
+     * needed.
+     *
+     * @param element The element to get the signature of
+     * @return The attribute signature of the element
+     */
+    AttributeSignature getSignature(final Node element) {
+
+        AttributeSignature ret = mSignatures.get(element);
+        if (ret == null) {
+            ret = new AttributeSignature(element);
+            mSignatures.put(element, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if two nodes have the same key.
+     *
+     * The cached string hashes are compared first, so most unequal keys are
+     * rejected without comparing their characters.
+     *
+     * @param a The first node
+     * @param b The second node
+     * @return True if the keys of a and b are equal
+     */
+    boolean sameKey(final Node a, final Node b) {
+
+        String aKey = getKey(a);
+        String bKey = getKey(b);
+        return aKey.hashCode() == bKey.hashCode() && aKey.equals(bKey);
+    }
+}
@@ -116,15 +116,30 @@ public final class NodeOps {
      * @return The XPath to the node as a String
      */
     public static String getXPath(final Node n) {
+        return getXPath(n, null);
+    }
+
+    /**
+     * Calculates an XPath that uniquely identifies the given node, using an
+     * index of sibling positions.
+     * 
+     * Paths are cached by the index, so only paths under a changed list of
+     * siblings are recalculated.
+     * 
+     * @param n The node to calculate the XPath for.
+     * @param positions Index of sibling positions, may be null
+     * @return The XPath to the node as a String
+     */
+    public static String getXPath(final Node n,
+            final PositionIndex positions) {
 
- 
         String xpath;
         
         if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
             //Slightly special case for attributes as they are considered to
             //have no parent
             ((Attr) n).getOwnerElement();
-            xpath = getXPath(((Attr) n).getOwnerElement())
+            xpath = getXPath(((Attr) n).getOwnerElement(), positions)
                  + "/@" + n.getNodeName();
             
         } else if (n.getNodeType() == Node.DOCUMENT_NODE) {
@@ -135,6 +150,10 @@ public final class NodeOps {
             throw new IllegalArgumentException(
                     "DocumentType nodes cannot be identified with XPath");
             
+        } else if (positions != null) {
+            
+            xpath = positions.getPath(n);
+            
         } else if (n.getParentNode().getNodeType() == Node.DOCUMENT_NODE) {
             
             ChildNumber cn = new ChildNumber(n);
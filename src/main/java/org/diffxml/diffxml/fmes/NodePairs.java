@@ -20,31 +20,174 @@ Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
 Author: Adrian Mouat
 email: adrian.mouat@gmail.com
  */
-
 package org.diffxml.diffxml.fmes;
 
 import org.w3c.dom.Node;
-import java.util.ArrayList;
+
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * Class to hold pairs of nodes.
- * TODO: Test if any performance benefit from using UserData.
+ * 
+ * Also holds the per node state of a diff run, so nothing is stored in the
+ * nodes themselves. Each node is given a dense integer id the first time it
+ * is seen and the partner, matched, in order, identical subtree and similar
+ * state are kept in arrays indexed by that id. Ids are found through an
+ * identity hash table of ints, so looking one up doesn't allocate.
  */
 public class NodePairs {
 
     /**
-     * Key for user data on whether the node is matched.
+     * Initial capacity of the per node arrays.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The node with each id.
+     */
+    private Node[] mNodes = new Node[INITIAL_CAPACITY];
+
+    /**
+     * Hash table from node identity to id, with linear probing.
+     * 
+     * Each slot holds an id plus one, or 0 if it is empty. Kept at most half
+     * full and its length a power of 2.
+     */
+    private int[] mTable = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * Number of nodes with an id.
+     */
+    private int mNoIds = 0;
+
+    /**
+     * The partner of each node, indexed by id, in both directions.
+     */
+    private Node[] mPartners = new Node[INITIAL_CAPACITY];
+
+    /**
+     * Number of nodes with a partner.
+     */
+    private int mSize = 0;
+
+    /**
+     * Ids of the nodes marked matched.
+     */
+    private final BitSet mMatched = new BitSet();
+
+    /**
+     * Ids of the nodes marked out of order. Nodes are in order by default.
      */
-    private static final String MATCHED = "matched";
-    
+    private final BitSet mOutOfOrder = new BitSet();
+
     /**
-     * Internal list to store nodes.
+     * Ids of the roots of subtrees that were matched as a whole to an
+     * identical subtree.
      */
-    private ArrayList<Node> mPairs = new ArrayList<Node>();
+    private final BitSet mIdenticalSubtrees = new BitSet();
+
+    /**
+     * Ids of the nodes matched to a partner that may not be equal to them.
+     */
+    private final BitSet mSimilar = new BitSet();
+
+    /**
+     * The keys the nodes were matched with, or null if not known.
+     */
+    private NodeKeys mKeys = null;
+
+    /**
+     * Assigns ids to the given nodes, in order.
+     * 
+     * Nodes that already have an id keep it. Registering the nodes of both
+     * documents up front keeps the ids dense and in traversal order; nodes
+     * that aren't registered are given an id when first marked.
+     * 
+     * @param nodes The nodes to assign ids to
+     */
+    final void register(final List<Node> nodes) {
+        
+        for (Node n : nodes) {
+            getId(n);
+        }
+    }
+
+    /**
+     * Returns the id of a node, assigning one if it doesn't have one.
+     * 
+     * @param n The node to get the id of
+     * @return The id of n
+     */
+    private int getId(final Node n) {
+        
+        int slot = findSlot(n);
+        int ret = mTable[slot] - 1;
+        if (ret == -1) {
+            ret = mNoIds++;
+            if (ret == mNodes.length) {
+                Node[] grown = new Node[mNodes.length * 2];
+                System.arraycopy(mNodes, 0, grown, 0, mNodes.length);
+                mNodes = grown;
+                grown = new Node[mPartners.length * 2];
+                System.arraycopy(mPartners, 0, grown, 0, mPartners.length);
+                mPartners = grown;
+            }
+            mNodes[ret] = n;
+            mTable[slot] = ret + 1;
+            if (mNoIds * 2 > mTable.length) {
+                rehash();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the id of a node without assigning one.
+     * 
+     * @param n The node to find the id of, may be null
+     * @return The id of n, or -1 if it doesn't have one
+     */
+    private int findId(final Node n) {
+        
+        int ret = -1;
+        if (n != null) {
+            ret = mTable[findSlot(n)] - 1;
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the slot of the table holding a node, or the empty slot it 
+     * would go in.
+     * 
+     * @param n The node to find
+     * @return The index of the slot
+     */
+    private int findSlot(final Node n) {
+        
+        int mask = mTable.length - 1;
+        int ret = System.identityHashCode(n) & mask;
+        while (mTable[ret] != 0 && mNodes[mTable[ret] - 1] != n) {
+            ret = (ret + 1) & mask;
+        }
+        return ret;
+    }
+
+    /**
+     * Doubles the size of the table, putting every node back in it.
+     */
+    private void rehash() {
+        
+        mTable = new int[mTable.length * 2];
+        for (int id = 0; id < mNoIds; id++) {
+            mTable[findSlot(mNodes[id])] = id + 1;
+        }
+    }
 
     /**
      * Adds a pair of nodes to the set.
-     * Sets UserData as matched.
+     * Marks both nodes as matched.
      * 
      * @param x
      *            first node
@@ -57,52 +200,154 @@ public class NodePairs {
             throw new NullPointerException("Nodes cannot be null");
         }
         
-        mPairs.add(x);
-        mPairs.add(y);
-        setMatched(x, y);
+        int xId = getId(x);
+        int yId = getId(y);
+        setPartner(xId, y);
+        setPartner(yId, x);
+        mMatched.set(xId);
+        mMatched.set(yId);
     }
 
     /**
-     * Mark the node as being "matched".
-     *
-     * @param n the node to mark as "matched"
+     * Adds a pair of nodes that are similar but may not be equal.
+     * 
+     * Used for pairs that weren't matched on their content, such as the 
+     * document elements and nodes matched by key or by similarity, so the
+     * edit script only has to compare these pairs.
+     * 
+     * @param x first node
+     * @param y partner of first node
      */
-    private static void setMatched(final Node n) {
-        n.setUserData(MATCHED, true, null);
+    public final void addSimilar(final Node x, final Node y) {
+        
+        add(x, y);
+        mSimilar.set(getId(x));
+        mSimilar.set(getId(y));
+    }
+
+    /**
+     * Check if node was matched to a partner that may not be equal to it.
+     * 
+     * @param n node to check
+     * @return true if n was added with addSimilar
+     */
+    public final boolean isSimilar(final Node n) {
+        
+        int id = findId(n);
+        return id != -1 && mSimilar.get(id);
+    }
+
+    /**
+     * Sets the keys the nodes were matched with.
+     * 
+     * @param keys The keys of the nodes for the diff
+     */
+    final void setKeys(final NodeKeys keys) {
+        mKeys = keys;
+    }
+
+    /**
+     * Returns the keys the nodes were matched with.
+     * 
+     * @return The keys of the nodes for the diff, or null if not known
+     */
+    final NodeKeys getKeys() {
+        return mKeys;
+    }
+
+    /**
+     * Sets the partner of the node with the given id.
+     * 
+     * @param id The id of the node
+     * @param partner The new partner, or null to clear it
+     */
+    private void setPartner(final int id, final Node partner) {
+        
+        if (mPartners[id] == null && partner != null) {
+            mSize++;
+        } else if (mPartners[id] != null && partner == null) {
+            mSize--;
+        }
+        mPartners[id] = partner;
+    }
+
+    /**
+     * Adds a pair of identical subtrees to the set.
+     * 
+     * Every node in the subtree must already have been matched to its
+     * counterpart in the other subtree.
+     * 
+     * @param x root of the first subtree
+     * @param y root of the identical subtree
+     */
+    public final void addIdenticalSubtrees(final Node x, final Node y) {
+        
+        if (x == null || y == null) {
+            throw new NullPointerException("Nodes cannot be null");
+        }
+
+        mIdenticalSubtrees.set(getId(x));
+        mIdenticalSubtrees.set(getId(y));
+    }
+
+    /**
+     * Check if node is the root of a subtree matched to an identical subtree.
+     * 
+     * The children of such nodes are all matched and in order.
+     * 
+     * @param n node to check
+     * @return true if n is the root of an identical subtree
+     */
+    public final boolean isIdenticalSubtree(final Node n) {
+        
+        int id = findId(n);
+        return id != -1 && mIdenticalSubtrees.get(id);
     }
 
     /**
      * Check if node is marked "matched".
      *
-     * Made static so that I can use a instance method later if it is faster or
-     * better.
-     * 
      * @param n node to check
      * @return true if marked "matched", false otherwise
      */
     public final boolean isMatched(final Node n) {
         
-        boolean ret;
-        Object data = n.getUserData(MATCHED);
-        if (data == null) {
-            ret = false;
-        } else {
-            ret = (Boolean) data;
-        }
-        return ret;
+        int id = findId(n);
+        return id != -1 && mMatched.get(id);
     }
-    
+
     /**
-     * Mark a pair of nodes as matched.
+     * Mark the node as being "inorder".
      *
-     * @param nodeA  The unmatched partner of nodeB
-     * @param nodeB  The unmatched partner of nodeA
+     * @param n the node to mark as "inorder"
      */
-    private static void setMatched(final Node nodeA, final Node nodeB) {
-        setMatched(nodeA);
-        setMatched(nodeB);
+    public final void setInOrder(final Node n) {
+        mOutOfOrder.clear(getId(n));
     }
-    
+
+    /**
+     * Mark the node as not being "inorder".
+     *
+     * @param n the node to mark as not "inorder"
+     */
+    public final void setOutOfOrder(final Node n) {
+        mOutOfOrder.set(getId(n));
+    }
+
+    /**
+     * Check if node is marked "inorder".
+     *
+     * Note that nodes are inorder by default.
+     *
+     * @param n node to check
+     * @return false if the node was marked out of order, true otherwise
+     */
+    public final boolean isInOrder(final Node n) {
+        
+        int id = findId(n);
+        return id == -1 || !mOutOfOrder.get(id);
+    }
+
     /**
      * Returns the partner of a given node. Returns null if the node does not
      * exist.
@@ -112,19 +357,12 @@ public class NodePairs {
      * @return the partner of n.
      */
     public final Node getPartner(final Node n) {
-
+        
         Node ret = null;
-        int in = mPairs.indexOf(n);
-
-        if (in != -1) {
-
-            if ((in % 2) == 1) {
-                ret = mPairs.get(--in);
-            } else {
-                ret = mPairs.get(++in);
-            }
+        int id = findId(n);
+        if (id != -1) {
+            ret = mPartners[id];
         }
-
         return ret;
     }
 
@@ -136,7 +374,7 @@ public class NodePairs {
      * @return The number of nodes stored.
      */
     public final int size() {
-        return mPairs.size();
+        return mSize;
     }
 
     /**
@@ -147,11 +385,23 @@ public class NodePairs {
     public final void remove(final Node n) {
         
         Node nMatch = getPartner(n);
+        clear(findId(n));
+        clear(findId(nMatch));
+    }
+
+    /**
+     * Clears the partner, matched, identical subtree and similar state of a
+     * node.
+     * 
+     * @param id The id of the node, or -1 for none
+     */
+    private void clear(final int id) {
         
-        nMatch.setUserData(MATCHED, null, null);
-        n.setUserData(MATCHED, null, null);
-        
-        mPairs.remove(getPartner(n));
-        mPairs.remove(n);
+        if (id != -1) {
+            setPartner(id, null);
+            mMatched.clear(id);
+            mIdenticalSubtrees.clear(id);
+            mSimilar.clear(id);
+        }
     }
 }
@@ -24,12 +24,13 @@ email: adrian.mouat@gmail.com
 package org.diffxml.diffxml.fmes;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.diffxml.diffxml.DOMOps;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -59,11 +60,15 @@ public final class NodeSequence {
         if (set1 != null && set2 != null) {
             List<Node> resultSet = new ArrayList<Node>(set1.getLength());
 
-            List<Node> set2list = Arrays.asList(
-                    DOMOps.getElementsOfNodeList(set2));
+            Set<Node> set2nodes = Collections.newSetFromMap(
+                    new IdentityHashMap<Node, Boolean>(set2.getLength()));
+            for (int i = 0; i < set2.getLength(); i++) {
+                set2nodes.add(set2.item(i));
+            }
 
             for (int i = 0; i < set1.getLength(); i++) {
-                if (set2list.contains(matchings.getPartner(set1.item(i)))) {
+                Node partner = matchings.getPartner(set1.item(i));
+                if (partner != null && set2nodes.contains(partner)) {
                     resultSet.add(set1.item(i));
                 }            
             }
@@ -79,7 +84,10 @@ public final class NodeSequence {
      * "Matched" Nodes are considered equal.
      * The returned nodes are from s1.
      * 
-     * TODO: Check for better algorithms
+     * If every Node in each sequence is partnered with a Node in the other,
+     * as with sequences from getSequence, the LCS is found as a longest
+     * increasing subsequence in O(n log n) time. Otherwise the quadratic
+     * dynamic programming algorithm is used.
      * 
      * @param s1 First Node sequence 
      * @param s2 Second Node sequence
@@ -88,6 +96,117 @@ public final class NodeSequence {
      */
     public static List<Node> getLCS(final Node[] s1, final Node[] s2, 
             final NodePairs matchings) {
+
+        List<Node> ret;
+        int[] positions = getPartnerPositions(s1, s2, matchings);
+        if (positions == null) {
+            ret = getLCSByTable(s1, s2, matchings);
+        } else {
+            ret = getLIS(s1, positions);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Finds the position in s2 of the partner of each Node in s1.
+     * 
+     * @param s1 First Node sequence 
+     * @param s2 Second Node sequence
+     * @param matchings Set of matching Nodes
+     * @return The positions, or null if the sequences aren't permutations of
+     *         each others partners
+     */
+    private static int[] getPartnerPositions(final Node[] s1, final Node[] s2,
+            final NodePairs matchings) {
+
+        if (s1.length != s2.length) {
+            return null;
+        }
+
+        Map<Node, Integer> s2positions =
+            new IdentityHashMap<Node, Integer>(s2.length);
+        for (int i = 0; i < s2.length; i++) {
+            s2positions.put(s2[i], i);
+        }
+
+        int[] ret = new int[s1.length];
+        boolean[] used = new boolean[s2.length];
+        for (int i = 0; i < s1.length; i++) {
+            Node partner = matchings.getPartner(s1[i]);
+            Integer pos = null;
+            if (partner != null) {
+                pos = s2positions.get(partner);
+            }
+            if (pos == null || used[pos]) {
+                return null;
+            }
+            used[pos] = true;
+            ret[i] = pos;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the Nodes forming the longest increasing subsequence of positions.
+     * 
+     * Uses patience sorting; tails[k] holds the index of the smallest
+     * position ending an increasing subsequence of length k + 1.
+     * 
+     * @param s1 Node sequence
+     * @param positions The position of the partner of each Node in s1
+     * @return The Nodes from s1 in the longest increasing subsequence
+     */
+    private static List<Node> getLIS(final Node[] s1, final int[] positions) {
+
+        int[] tails = new int[positions.length];
+        int[] previous = new int[positions.length];
+        int length = 0;
+
+        for (int i = 0; i < positions.length; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[tails[mid]] < positions[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low > 0) {
+                previous[i] = tails[low - 1];
+            } else {
+                previous[i] = -1;
+            }
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        List<Node> ret = new ArrayList<Node>(length);
+        if (length > 0) {
+            for (int i = tails[length - 1]; i != -1; i = previous[i]) {
+                ret.add(s1[i]);
+            }
+        }
+        Collections.reverse(ret);
+
+        return ret;
+    }
+
+    /**
+     * Gets the Longest Common Subsequence using a dynamic programming table.
+     * 
+     * @param s1 First Node sequence 
+     * @param s2 Second Node sequence
+     * @param matchings Set of matching Nodes
+     * @return A list of Nodes representing the Longest Common Subsequence 
+     */
+    private static List<Node> getLCSByTable(final Node[] s1, final Node[] s2, 
+            final NodePairs matchings) {
        
         int[][] num = new int[s1.length + 1][s2.length + 1];
 
@@ -0,0 +1,483 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml.fmes;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import org.diffxml.diffxml.DiffException;
+import org.diffxml.diffxml.DiffOptions;
+import org.w3c.dom.Node;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Reads the matching keys of the nodes of a document from XmlPullParser 
+ * events, in document order.
+ *
+ * The nodes are those of a normalized DOM of the document with the doctype
+ * removed: adjacent text is merged, CDATA sections are kept separate and 
+ * whitespace outside the document element is dropped. Banned nodes are 
+ * left out. Each key is the one CandidateIndex.getKey gives the DOM node, 
+ * and the end of each element is read as END_ELEMENT.
+ *
+ * Two documents with the same sequence of keys only differ in banned nodes,
+ * so comparing the sequences tells whether documents differ without 
+ * holding either of them in memory. This is only used for --brief (-q),
+ * through Fmes.differ; the diff itself is still made on DOM documents.
+ *
+ * Documents with a doctype or in an encoding other than UTF-8 can't be
+ * read, as entities and default attributes from the DTD would be lost.
+ *
+ * @author Adrian Mouat
+ */
+final class NodeStream {
+
+    /**
+     * Read at the end of an element. Keys are never empty.
+     */
+    static final String END_ELEMENT = "";
+
+    /**
+     * Separates the parts of a key. Can't occur in XML content.
+     */
+    private static final char SEPARATOR = AttributeSignature.SEPARATOR;
+
+    /**
+     * Factory for the pull parsers.
+     */
+    private static XmlPullParserFactory factory;
+
+    /**
+     * The parser reading the document.
+     */
+    private final XmlPullParser mParser;
+
+    /**
+     * The options for the diff.
+     */
+    private final DiffOptions mOptions;
+
+    /**
+     * The next event of the parser, not yet read.
+     */
+    private int mEvent;
+
+    /**
+     * Depth of the parser, the document being at depth 0.
+     */
+    private int mDepth = 0;
+
+    /**
+     * Creates a stream reading the given document.
+     *
+     * @param is The document to read
+     * @param options The options for the diff
+     * @throws DiffException If the document can't be read or can't be 
+     *                       read as a stream
+     */
+    NodeStream(final InputStream is, final DiffOptions options) 
+    throws DiffException {
+
+        mOptions = options;
+        try {
+            mParser = newParser();
+            mParser.setInput(is, null);
+            mEvent = mParser.nextToken();
+            checkEncoding(mParser);
+        } catch (XmlPullParserException e) {
+            throw new DiffException("Failed to parse document", e);
+        } catch (IOException e) {
+            throw new DiffException("Failed to parse document", e);
+        }
+    }
+
+    /**
+     * Checks whether two files differ, reading them side by side.
+     *
+     * @param file1 The original file
+     * @param file2 The modified file
+     * @param options The options for the diff
+     * @return True if the files differ in a node that isn't banned
+     * @throws DiffException If either file can't be read or can't be read
+     *                       as a stream
+     */
+    static boolean differ(final File file1, final File file2, 
+            final DiffOptions options) throws DiffException {
+
+        boolean ret;
+        InputStream is1 = open(file1);
+        try {
+            InputStream is2 = open(file2);
+            try {
+                ret = differ(is1, is2, options);
+            } finally {
+                close(is2);
+            }
+        } finally {
+            close(is1);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Checks whether two documents differ, reading them side by side.
+     *
+     * Both documents are read to the end, so malformed documents are 
+     * reported even after a difference has been found.
+     *
+     * @param is1 The original document
+     * @param is2 The modified document
+     * @param options The options for the diff
+     * @return True if the documents differ in a node that isn't banned
+     * @throws DiffException If either document can't be read or can't be 
+     *                       read as a stream
+     */
+    static boolean differ(final InputStream is1, final InputStream is2, 
+            final DiffOptions options) throws DiffException {
+
+        NodeStream stream1 = new NodeStream(is1, options);
+        NodeStream stream2 = new NodeStream(is2, options);
+
+        boolean ret = false;
+        String key1 = stream1.next();
+        String key2 = stream2.next();
+        while (!ret && key1 != null) {
+            ret = !key1.equals(key2);
+            key1 = stream1.next();
+            key2 = stream2.next();
+        }
+        ret = ret || key2 != null;
+
+        stream1.skipToEnd();
+        stream2.skipToEnd();
+
+        return ret;
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param file The file to open
+     * @return A buffered stream of the file
+     * @throws DiffException If the file can't be opened
+     */
+    private static InputStream open(final File file) throws DiffException {
+
+        InputStream ret;
+        try {
+            ret = new BufferedInputStream(new FileInputStream(file));
+        } catch (IOException e) {
+            throw new DiffException("Failed to parse file "
+                    + file.getAbsolutePath(), e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Closes a stream, ignoring any error.
+     *
+     * @param is The stream to close
+     */
+    private static void close(final InputStream is) {
+
+        try {
+            is.close();
+        } catch (IOException e) {
+            //Nothing was written, so nothing can be lost
+        }
+    }
+
+    /**
+     * Creates a namespace aware pull parser.
+     *
+     * @return A new parser
+     * @throws XmlPullParserException If the parser can't be created
+     */
+    private static synchronized XmlPullParser newParser() 
+    throws XmlPullParserException {
+
+        if (factory == null) {
+            factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+        }
+
+        return factory.newPullParser();
+    }
+
+    /**
+     * Checks the document is in an encoding the parser decodes correctly.
+     *
+     * Without an encoding the parser reads UTF-8, which is only correct 
+     * for UTF-8 and ASCII documents.
+     *
+     * @param parser The parser, after the XML declaration has been read
+     * @throws XmlPullParserException If the encoding isn't supported
+     */
+    private static void checkEncoding(final XmlPullParser parser) 
+    throws XmlPullParserException {
+
+        String encoding = parser.getInputEncoding();
+        if (encoding != null) {
+            boolean supported;
+            try {
+                Charset charset = Charset.forName(encoding);
+                supported = charset.equals(Charset.forName("UTF-8"))
+                    || charset.equals(Charset.forName("US-ASCII"));
+            } catch (IllegalArgumentException e) {
+                supported = false;
+            }
+            if (!supported) {
+                throw new XmlPullParserException("Encoding " + encoding 
+                        + " isn't supported");
+            }
+        }
+    }
+
+    /**
+     * Reads the key of the next node that isn't banned.
+     *
+     * @return The key of the node, END_ELEMENT at the end of an element or
+     *         null at the end of the document
+     * @throws DiffException If the document is malformed or can't be read
+     *                       as a stream
+     */
+    String next() throws DiffException {
+
+        String ret = null;
+        try {
+            while (ret == null && mEvent != XmlPullParser.END_DOCUMENT) {
+                ret = readNode();
+            }
+        } catch (XmlPullParserException e) {
+            throw new DiffException("Failed to parse document", e);
+        } catch (IOException e) {
+            throw new DiffException("Failed to parse document", e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Reads the rest of the document, checking it is well formed.
+     *
+     * @throws DiffException If the document is malformed or can't be read
+     *                       as a stream
+     */
+    void skipToEnd() throws DiffException {
+
+        while (next() != null) {
+            //Only the errors are wanted
+        }
+    }
+
+    /**
+     * Reads the node starting at the next event.
+     *
+     * @return The key of the node, END_ELEMENT at the end of an element or
+     *         null if the event doesn't start a node or the node is banned
+     * @throws XmlPullParserException If the document is malformed or 
+     *                                unsupported
+     * @throws IOException If the document can't be read
+     */
+    private String readNode() throws XmlPullParserException, IOException {
+
+        String ret = null;
+        if (mEvent == XmlPullParser.TEXT 
+                || mEvent == XmlPullParser.ENTITY_REF) {
+            //Reads ahead to the end of the text
+            ret = readText();
+        } else {
+            switch (mEvent) {
+                case XmlPullParser.START_TAG:
+                    mDepth++;
+                    ret = getElementKey();
+                    break;
+                case XmlPullParser.END_TAG:
+                    mDepth--;
+                    ret = END_ELEMENT;
+                    break;
+                case XmlPullParser.CDSECT:
+                    ret = getTextKey(Node.CDATA_SECTION_NODE, 
+                            mParser.getText());
+                    break;
+                case XmlPullParser.COMMENT:
+                    if (!mOptions.isIgnoreComments()) {
+                        ret = getKey(Node.COMMENT_NODE, mParser.getText());
+                    }
+                    break;
+                case XmlPullParser.PROCESSING_INSTRUCTION:
+                    if (!mOptions.isIgnoreProcessingInstructions()) {
+                        ret = getKey(Node.PROCESSING_INSTRUCTION_NODE, 
+                                getData(mParser.getText()));
+                    }
+                    break;
+                case XmlPullParser.DOCDECL:
+                    throw new XmlPullParserException(
+                            "Doctypes aren't supported");
+                default:
+                    //Ignorable whitespace outside the document element
+            }
+            mEvent = mParser.nextToken();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Reads adjacent text and entity references, which make up one text 
+     * node.
+     *
+     * @return The key of the text node, or null if it is outside the 
+     *         document element or banned
+     * @throws XmlPullParserException If the document is malformed or 
+     *                                unsupported
+     * @throws IOException If the document can't be read
+     */
+    private String readText() throws XmlPullParserException, IOException {
+
+        StringBuilder text = new StringBuilder();
+        while (mEvent == XmlPullParser.TEXT 
+                || mEvent == XmlPullParser.ENTITY_REF) {
+            if (mParser.getText() == null) {
+                throw new XmlPullParserException(
+                        "Unresolved entity " + mParser.getName());
+            }
+            //Text outside the document element isn't kept
+            if (mDepth > 0) {
+                text.append(mParser.getText());
+            }
+            mEvent = mParser.nextToken();
+        }
+
+        String ret = null;
+        if (text.length() > 0) {
+            ret = getTextKey(Node.TEXT_NODE, text.toString());
+        }
+
+        return ret;
+    }
+
+    /**
+     * Calculates the key of a text or CDATA node, as CandidateIndex.getKey.
+     *
+     * @param type The node type
+     * @param text The text of the node
+     * @return The key of the node, or null if it is banned
+     */
+    private String getTextKey(final int type, final String text) {
+
+        String ret = null;
+        if (!mOptions.isIgnoreWhitespaceNodes()
+                || new StringTokenizer(text).hasMoreTokens()) {
+            ret = getKey(type, CandidateIndex.normalizeText(text, mOptions));
+        }
+
+        return ret;
+    }
+
+    /**
+     * Calculates the key of a node made up of its type and value.
+     *
+     * @param type The node type
+     * @param value The value of the node
+     * @return The key of the node
+     */
+    private static String getKey(final int type, final String value) {
+        return Integer.toString(type) + SEPARATOR + value;
+    }
+
+    /**
+     * Calculates the key of the element at the current start tag, as 
+     * CandidateIndex.getKey.
+     *
+     * Namespace declarations aren't reported as attributes by the parser,
+     * so they are left out as in the DOM key.
+     *
+     * @return The key of the element
+     */
+    private String getElementKey() {
+
+        String[] attrs = new String[mParser.getAttributeCount()];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = mParser.getAttributeNamespace(i).trim() + SEPARATOR 
+                + mParser.getAttributeName(i) + SEPARATOR 
+                + mParser.getAttributeValue(i);
+        }
+        Arrays.sort(attrs);
+
+        StringBuilder key = new StringBuilder();
+        key.append(Node.ELEMENT_NODE).append(SEPARATOR);
+        key.append(mParser.getNamespace().trim()).append(SEPARATOR);
+        key.append(mParser.getName());
+        for (String attr : attrs) {
+            key.append(SEPARATOR).append(attr);
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns the data of a processing instruction.
+     *
+     * As in DOM, the data is the content after the target and any 
+     * whitespace following it.
+     *
+     * @param content The target and data of the processing instruction
+     * @return The data of the processing instruction
+     */
+    private static String getData(final String content) {
+
+        int start = 0;
+        while (start < content.length() 
+                && !isXMLWhitespace(content.charAt(start))) {
+            start++;
+        }
+        while (start < content.length() 
+                && isXMLWhitespace(content.charAt(start))) {
+            start++;
+        }
+
+        return content.substring(start);
+    }
+
+    /**
+     * Checks if a character is XML whitespace.
+     *
+     * @param c The character to check
+     * @return True if c is a space, tab, carriage return or line feed
+     */
+    private static boolean isXMLWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
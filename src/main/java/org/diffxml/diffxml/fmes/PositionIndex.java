@@ -0,0 +1,759 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.diffxml.diffxml.DOMOps;
+import org.w3c.dom.Node;
+
+/**
+ * Index of the positions of nodes amongst their siblings.
+ *
+ * The children of each parent are held in an order-statistic tree (a treap
+ * ordered by DOM position) which keeps counts of XPath steps, text lengths
+ * and non-text nodes for each subtree. This allows the DOM child number,
+ * XPath child number and character position of a node to be found in
+ * logarithmic time.
+ *
+ * The children of a parent are indexed the first time one of them is
+ * queried. After that the index must be told of every change to the
+ * children through removing and inserted.
+ *
+ * XPaths of nodes are also cached. Each cached path records the cached path
+ * of its parent and the generation of its parent's children, so a change to
+ * a list of children only invalidates the paths below it.
+ *
+ * @author Adrian Mouat
+ */
+public final class PositionIndex {
+
+    /**
+     * Seed for priorities, so the shape of the trees is repeatable.
+     */
+    private static final long SEED = 0x5DEECE66DL;
+
+    /**
+     * Source of priorities for tree entries.
+     */
+    private final Random mPriorities = new Random(SEED);
+
+    /**
+     * The root of the tree for each indexed parent.
+     */
+    private final Map<Node, Entry> mRoots = new IdentityHashMap<Node, Entry>();
+
+    /**
+     * The tree entry for each node with an indexed parent.
+     */
+    private final Map<Node, Entry> mEntries =
+        new IdentityHashMap<Node, Entry>();
+
+    /**
+     * The generation of the children of each changed parent.
+     */
+    private final Map<Node, Long> mGenerations =
+        new IdentityHashMap<Node, Long>();
+
+    /**
+     * The last generation handed out.
+     */
+    private long mLastGeneration = 0;
+
+    /**
+     * The cached XPath of each node.
+     */
+    private final Map<Node, CachedPath> mPaths =
+        new IdentityHashMap<Node, CachedPath>();
+
+    /**
+     * Path of the document, the parent of the document element.
+     */
+    private static final CachedPath DOCUMENT_PATH =
+        new CachedPath("", null, 0);
+
+    /**
+     * A cached XPath.
+     */
+    private static final class CachedPath {
+
+        /** The XPath. */
+        private final String mPath;
+
+        /** The path of the parent the path was made from. */
+        private final CachedPath mParent;
+
+        /** The generation of the parent's children. */
+        private final long mGeneration;
+
+        /**
+         * Creates a cached path.
+         *
+         * @param path The XPath
+         * @param parent The path of the parent
+         * @param generation The generation of the parent's children
+         */
+        private CachedPath(final String path, final CachedPath parent,
+                final long generation) {
+
+            mPath = path;
+            mParent = parent;
+            mGeneration = generation;
+        }
+    }
+
+    /**
+     * Entry for a node in the tree of its parent.
+     */
+    private static final class Entry {
+
+        /** The node. */
+        private final Node mNode;
+
+        /** Heap priority. */
+        private final int mPriority;
+
+        /** Left subtree, holding earlier siblings. */
+        private Entry mLeft;
+
+        /** Right subtree, holding later siblings. */
+        private Entry mRight;
+
+        /** Parent in the tree. */
+        private Entry mParent;
+
+        /** 1 if the node starts a new XPath step, else 0. */
+        private int mStep;
+
+        /** Text length of the node, 0 if not text. */
+        private final int mTextLength;
+
+        /** 1 if the node isn't text, else 0. */
+        private final int mNonText;
+
+        /** Number of entries in this subtree. */
+        private int mSize;
+
+        /** Number of XPath steps in this subtree. */
+        private int mSteps;
+
+        /** Total text length in this subtree. */
+        private long mTextLengths;
+
+        /** Number of non-text nodes in this subtree. */
+        private int mNonTexts;
+
+        /**
+         * Creates an entry for a node.
+         *
+         * @param n The node
+         * @param priority Heap priority of the entry
+         */
+        private Entry(final Node n, final int priority) {
+
+            mNode = n;
+            mPriority = priority;
+            if (DOMOps.isText(n)) {
+                mTextLength = n.getNodeValue().length();
+                mNonText = 0;
+            } else {
+                mTextLength = 0;
+                mNonText = 1;
+            }
+            update();
+        }
+
+        /**
+         * Recalculates the totals of this subtree from its children.
+         */
+        private void update() {
+
+            mSize = 1;
+            mSteps = mStep;
+            mTextLengths = mTextLength;
+            mNonTexts = mNonText;
+            if (mLeft != null) {
+                mSize += mLeft.mSize;
+                mSteps += mLeft.mSteps;
+                mTextLengths += mLeft.mTextLengths;
+                mNonTexts += mLeft.mNonTexts;
+            }
+            if (mRight != null) {
+                mSize += mRight.mSize;
+                mSteps += mRight.mSteps;
+                mTextLengths += mRight.mTextLengths;
+                mNonTexts += mRight.mNonTexts;
+            }
+        }
+    }
+
+    /**
+     * Determines whether a node starts a new XPath step.
+     *
+     * Text nodes following text nodes are coalesced in XPath, and empty text
+     * nodes and doctypes aren't counted.
+     *
+     * @param n The node
+     * @param prev The sibling before n, may be null
+     * @return 1 if n starts a new step, else 0
+     */
+    static int getStep(final Node n, final Node prev) {
+
+        int ret = 1;
+        if ((DOMOps.isText(n) && DOMOps.isText(prev))
+                || NodeOps.nodeIsEmptyText(n)
+                || n.getNodeType() == Node.DOCUMENT_TYPE_NODE) {
+            ret = 0;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the DOM child number of a node.
+     *
+     * @param n The node, which must have a parent
+     * @return The DOM child number, starting from 0
+     */
+    int getDOM(final Node n) {
+        return (int) countBefore(getEntry(n), Count.SIZE);
+    }
+
+    /**
+     * Gets the XPath child number of a node.
+     *
+     * @param n The node, which must have a parent
+     * @return The XPath child number
+     */
+    int getXPath(final Node n) {
+
+        Entry e = getEntry(n);
+        return (int) countBefore(e, Count.STEPS) + e.mStep;
+    }
+
+    /**
+     * Gets the XPath character position of a node.
+     *
+     * This is one more than the length of the text nodes directly before the
+     * node.
+     *
+     * @param n The node, which must have a parent
+     * @return The character position
+     */
+    int getXPathCharPos(final Node n) {
+
+        Entry e = getEntry(n);
+        long ret = 1 + countBefore(e, Count.TEXT);
+        Entry last = getLastNonTextBefore(e);
+        if (last != null) {
+            ret -= countBefore(last, Count.TEXT);
+        }
+
+        return (int) ret;
+    }
+
+    /**
+     * Gets the XPath of a node made of node() steps.
+     *
+     * @param n An element, text, comment or processing instruction node
+     * @return The XPath to the node
+     */
+    String getPath(final Node n) {
+        return getCachedPath(n).mPath;
+    }
+
+    /**
+     * Gets the cached path of a node, recalculating it if it or the path of
+     * any ancestor is out of date.
+     *
+     * @param n The node
+     * @return The up to date path of n
+     */
+    private CachedPath getCachedPath(final Node n) {
+
+        Node parent = n.getParentNode();
+        CachedPath parentPath;
+        if (parent.getNodeType() == Node.DOCUMENT_NODE) {
+            parentPath = DOCUMENT_PATH;
+        } else {
+            parentPath = getCachedPath(parent);
+        }
+
+        long generation = getGeneration(parent);
+        CachedPath ret = mPaths.get(n);
+        if (ret == null || ret.mParent != parentPath
+                || ret.mGeneration != generation) {
+            ret = new CachedPath(
+                    parentPath.mPath + "/node()[" + getXPath(n) + "]",
+                    parentPath, generation);
+            mPaths.put(n, ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the generation of the children of a node.
+     *
+     * @param parent The node
+     * @return The generation of its children
+     */
+    private long getGeneration(final Node parent) {
+
+        long ret = 0;
+        Long generation = mGenerations.get(parent);
+        if (generation != null) {
+            ret = generation;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Marks the children of a node as changed, invalidating their paths.
+     *
+     * @param parent The node whose children have changed
+     */
+    private void changed(final Node parent) {
+
+        mLastGeneration++;
+        mGenerations.put(parent, mLastGeneration);
+    }
+
+    /**
+     * Gets the last sibling before the given node that isn't text.
+     *
+     * @param n The node, which must have a parent
+     * @return The last non-text sibling before n, or null if none
+     */
+    Node getLastNonTextBefore(final Node n) {
+
+        Node ret = null;
+        Entry last = getLastNonTextBefore(getEntry(n));
+        if (last != null) {
+            ret = last.mNode;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Must be called before a node is removed from its parent.
+     *
+     * @param n The node about to be removed
+     */
+    void removing(final Node n) {
+
+        Node parent = n.getParentNode();
+        if (parent == null) {
+            return;
+        }
+        changed(parent);
+        if (!mRoots.containsKey(parent)) {
+            return;
+        }
+
+        Entry e = mEntries.remove(n);
+        int pos = (int) countBefore(e, Count.SIZE);
+        Entry[] split = split(mRoots.get(parent), pos);
+        Entry[] rest = split(split[1], 1);
+        setRoot(parent, merge(split[0], rest[1]));
+
+        Node next = n.getNextSibling();
+        if (next != null) {
+            setStep(mEntries.get(next), getStep(next, n.getPreviousSibling()));
+        }
+    }
+
+    /**
+     * Must be called after a node has been added to a parent.
+     *
+     * @param n The node that has been added
+     */
+    void inserted(final Node n) {
+
+        Node parent = n.getParentNode();
+        if (parent == null) {
+            return;
+        }
+        changed(parent);
+        if (!mRoots.containsKey(parent)) {
+            return;
+        }
+
+        Node prev = n.getPreviousSibling();
+        int pos = 0;
+        if (prev != null) {
+            pos = (int) countBefore(mEntries.get(prev), Count.SIZE) + 1;
+        }
+
+        Entry e = newEntry(n, prev);
+        Entry[] split = split(mRoots.get(parent), pos);
+        setRoot(parent, merge(merge(split[0], e), split[1]));
+
+        Node next = n.getNextSibling();
+        if (next != null) {
+            setStep(mEntries.get(next), getStep(next, n));
+        }
+    }
+
+    /**
+     * Must be called after the value of a node has changed.
+     *
+     * @param n The node whose value has changed
+     */
+    void updated(final Node n) {
+
+        Node parent = n.getParentNode();
+        changed(parent);
+        Entry old = mEntries.get(n);
+        if (old == null) {
+            return;
+        }
+
+        //Replace the entry, as the text length is fixed when it is created
+        Entry[] split = split(mRoots.get(parent),
+                (int) countBefore(old, Count.SIZE));
+        Entry[] rest = split(split[1], 1);
+        Entry e = newEntry(n, n.getPreviousSibling());
+        setRoot(parent, merge(merge(split[0], e), rest[1]));
+    }
+
+    /**
+     * Drops the index of the children of a node.
+     *
+     * Must be called before children are moved out of a node without going
+     * through removing.
+     *
+     * @param parent The node whose children shouldn't be indexed
+     */
+    void discard(final Node parent) {
+
+        changed(parent);
+        if (mRoots.remove(parent) != null) {
+            for (Node kid = parent.getFirstChild(); kid != null;
+                    kid = kid.getNextSibling()) {
+                mEntries.remove(kid);
+            }
+        }
+    }
+
+    /**
+     * Gets the entry for a node, indexing its siblings if needed.
+     *
+     * @param n The node
+     * @return The entry for n
+     */
+    private Entry getEntry(final Node n) {
+
+        Entry ret = mEntries.get(n);
+        if (ret == null) {
+            Node parent = n.getParentNode();
+            if (parent == null) {
+                throw new IllegalArgumentException("Node must have parent");
+            }
+            index(parent);
+            ret = mEntries.get(n);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Builds the tree for the children of a node.
+     *
+     * @param parent The node to index the children of
+     */
+    private void index(final Node parent) {
+
+        Entry root = null;
+        Node prev = null;
+        for (Node kid = parent.getFirstChild(); kid != null;
+                kid = kid.getNextSibling()) {
+            root = merge(root, newEntry(kid, prev));
+            prev = kid;
+        }
+        setRoot(parent, root);
+    }
+
+    /**
+     * Creates and registers the entry for a node.
+     *
+     * @param n The node
+     * @param prev The sibling before n, may be null
+     * @return The new entry
+     */
+    private Entry newEntry(final Node n, final Node prev) {
+
+        Entry ret = new Entry(n, mPriorities.nextInt());
+        ret.mStep = getStep(n, prev);
+        ret.update();
+        mEntries.put(n, ret);
+
+        return ret;
+    }
+
+    /**
+     * Sets the root of the tree for a parent.
+     *
+     * @param parent The parent node
+     * @param root The new root, may be null
+     */
+    private void setRoot(final Node parent, final Entry root) {
+
+        if (root != null) {
+            root.mParent = null;
+        }
+        mRoots.put(parent, root);
+    }
+
+    /**
+     * Changes the step count of an entry and updates the totals above it.
+     *
+     * @param e The entry
+     * @param step The new step count
+     */
+    private static void setStep(final Entry e, final int step) {
+
+        if (e.mStep != step) {
+            e.mStep = step;
+            for (Entry curr = e; curr != null; curr = curr.mParent) {
+                curr.update();
+            }
+        }
+    }
+
+    /**
+     * The totals that can be counted.
+     */
+    private enum Count {
+        /** Number of entries. */
+        SIZE,
+        /** Number of XPath steps. */
+        STEPS,
+        /** Length of text. */
+        TEXT,
+        /** Number of non-text nodes. */
+        NON_TEXTS
+    }
+
+    /**
+     * Gets the value an entry adds to a total.
+     *
+     * @param e The entry
+     * @param count The total
+     * @return The value of e alone
+     */
+    private static long value(final Entry e, final Count count) {
+
+        long ret;
+        switch (count) {
+            case SIZE:
+                ret = 1;
+                break;
+            case STEPS:
+                ret = e.mStep;
+                break;
+            case TEXT:
+                ret = e.mTextLength;
+                break;
+            default:
+                ret = e.mNonText;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets a total of a subtree.
+     *
+     * @param e The root of the subtree, may be null
+     * @param count The total to get
+     * @return The total
+     */
+    private static long total(final Entry e, final Count count) {
+
+        long ret = 0;
+        if (e != null) {
+            switch (count) {
+                case SIZE:
+                    ret = e.mSize;
+                    break;
+                case STEPS:
+                    ret = e.mSteps;
+                    break;
+                case TEXT:
+                    ret = e.mTextLengths;
+                    break;
+                default:
+                    ret = e.mNonTexts;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets a total of the entries before the given entry.
+     *
+     * @param e The entry
+     * @param count The total to get
+     * @return The total of the entries before e
+     */
+    private static long countBefore(final Entry e, final Count count) {
+
+        long ret = total(e.mLeft, count);
+        for (Entry curr = e; curr.mParent != null; curr = curr.mParent) {
+            Entry par = curr.mParent;
+            if (curr == par.mRight) {
+                ret += total(par.mLeft, count) + value(par, count);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the last entry before the given entry that isn't text.
+     *
+     * @param e The entry
+     * @return The last non-text entry before e, or null if none
+     */
+    private static Entry getLastNonTextBefore(final Entry e) {
+
+        long k = countBefore(e, Count.NON_TEXTS);
+        if (k == 0) {
+            return null;
+        }
+
+        Entry root = e;
+        while (root.mParent != null) {
+            root = root.mParent;
+        }
+
+        //Find the kth non-text entry
+        Entry curr = root;
+        while (true) {
+            long left = total(curr.mLeft, Count.NON_TEXTS);
+            if (k <= left) {
+                curr = curr.mLeft;
+            } else if (k == left + curr.mNonText) {
+                return curr;
+            } else {
+                k -= left + curr.mNonText;
+                curr = curr.mRight;
+            }
+        }
+    }
+
+    /**
+     * Splits a tree into the first pos entries and the rest.
+     *
+     * @param e The root of the tree, may be null
+     * @param pos The number of entries in the first tree
+     * @return The roots of the two trees
+     */
+    private static Entry[] split(final Entry e, final int pos) {
+
+        Entry[] ret;
+        if (e == null) {
+            ret = new Entry[2];
+        } else if (total(e.mLeft, Count.SIZE) < pos) {
+            ret = split(e.mRight,
+                    pos - (int) total(e.mLeft, Count.SIZE) - 1);
+            setRight(e, ret[0]);
+            ret[0] = e;
+        } else {
+            ret = split(e.mLeft, pos);
+            setLeft(e, ret[1]);
+            ret[1] = e;
+        }
+
+        if (ret[0] != null) {
+            ret[0].mParent = null;
+        }
+        if (ret[1] != null) {
+            ret[1].mParent = null;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Joins two trees, all entries of a coming before those of b.
+     *
+     * @param a The root of the first tree, may be null
+     * @param b The root of the second tree, may be null
+     * @return The root of the joined tree
+     */
+    private static Entry merge(final Entry a, final Entry b) {
+
+        Entry ret;
+        if (a == null) {
+            ret = b;
+        } else if (b == null) {
+            ret = a;
+        } else if (a.mPriority > b.mPriority) {
+            setRight(a, merge(a.mRight, b));
+            ret = a;
+        } else {
+            setLeft(b, merge(a, b.mLeft));
+            ret = b;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Sets the left subtree of an entry and updates its totals.
+     *
+     * @param e The entry
+     * @param left The new left subtree, may be null
+     */
+    private static void setLeft(final Entry e, final Entry left) {
+
+        e.mLeft = left;
+        if (left != null) {
+            left.mParent = e;
+        }
+        e.update();
+    }
+
+    /**
+     * Sets the right subtree of an entry and updates its totals.
+     *
+     * @param e The entry
+     * @param right The new right subtree, may be null
+     */
+    private static void setRight(final Entry e, final Entry right) {
+
+        e.mRight = right;
+        if (right != null) {
+            right.mParent = e;
+        }
+        e.update();
+    }
+}
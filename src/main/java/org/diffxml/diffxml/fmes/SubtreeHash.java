@@ -0,0 +1,163 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Calculates a hash of every subtree in a document.
+ *
+ * The hash of a node combines the matching key of the node with the hashes
+ * of its children in order, so subtrees that would match node for node
+ * have the same hash. Banned nodes are left out.
+ *
+ * @author Adrian Mouat
+ */
+final class SubtreeHash {
+
+    /**
+     * Multiplier used when combining hashes.
+     */
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Hash of each node, including its children.
+     */
+    private final Map<Node, Long> mHashes;
+
+    /**
+     * Number of nodes in the subtree of each node, not counting banned 
+     * nodes.
+     */
+    private final Map<Node, Integer> mSizes;
+
+    /**
+     * The nodes of the document in document order.
+     */
+    private final List<Node> mNodes;
+
+    /**
+     * Calculates the subtree hashes for the given document.
+     *
+     * @param doc The document to hash
+     * @param keys The keys of the nodes for the diff
+     */
+    SubtreeHash(final Document doc, final NodeKeys keys) {
+
+        mNodes = new ArrayList<Node>();
+        Node n = doc;
+        while (n != null) {
+            mNodes.add(n);
+            n = nextInDocumentOrder(n);
+        }
+
+        mHashes = new IdentityHashMap<Node, Long>(mNodes.size());
+        mSizes = new IdentityHashMap<Node, Integer>(mNodes.size());
+
+        //Children always follow their parent in document order, so going
+        //backwards means the children are hashed first
+        for (int i = mNodes.size() - 1; i >= 0; i--) {
+            Node curr = mNodes.get(i);
+            long hash = keys.getKey(curr).hashCode();
+            int size = 1;
+            for (Node kid = curr.getFirstChild(); kid != null;
+                    kid = kid.getNextSibling()) {
+                if (!Fmes.isBanned(kid, keys.getOptions())) {
+                    hash = mix(hash * PRIME + mHashes.get(kid));
+                    size += mSizes.get(kid);
+                }
+            }
+            mHashes.put(curr, hash);
+            mSizes.put(curr, size);
+        }
+    }
+
+    /**
+     * Returns the node following the given node in document order.
+     *
+     * @param n The current node
+     * @return The next node, or null if n is the last node
+     */
+    static Node nextInDocumentOrder(final Node n) {
+
+        Node next = n.getFirstChild();
+        Node curr = n;
+        while (next == null && curr != null) {
+            next = curr.getNextSibling();
+            curr = curr.getParentNode();
+        }
+
+        return next;
+    }
+
+    /**
+     * Spreads the bits of a hash value.
+     *
+     * @param h The value to mix
+     * @return The mixed value
+     */
+    private static long mix(final long h) {
+
+        long ret = h ^ (h >>> 33);
+        ret *= 0xff51afd7ed558ccdL;
+        return ret ^ (ret >>> 33);
+    }
+
+    /**
+     * Returns the hash of the subtree rooted at the given node.
+     *
+     * @param n A node from the hashed document
+     * @return The hash of the subtree
+     */
+    long getHash(final Node n) {
+        return mHashes.get(n);
+    }
+
+    /**
+     * Returns the number of nodes in the subtree rooted at the given node.
+     *
+     * Banned nodes are not counted.
+     *
+     * @param n A node from the hashed document
+     * @return The size of the subtree
+     */
+    int getSize(final Node n) {
+        return mSizes.get(n);
+    }
+
+    /**
+     * Returns the nodes of the document in document order.
+     *
+     * @return The nodes of the document
+     */
+    List<Node> getNodes() {
+        return mNodes;
+    }
+}
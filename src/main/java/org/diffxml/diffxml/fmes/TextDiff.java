@@ -0,0 +1,414 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.diffxml.diffxml.DiffOptions.TextDiffMode;
+
+/**
+ * Finds the changed parts of a text value.
+ *
+ * The values are split into characters or words and compared with Myers'
+ * O(ND) algorithm, after removing their common start and end. The time and
+ * the result are proportional to the size of the change rather than the
+ * length of the text, so a small change to a large text node can be
+ * patched with a few deletes and inserts inside the node.
+ *
+ * @author Adrian Mouat
+ */
+final class TextDiff {
+
+    /**
+     * Most tokens that may be deleted or inserted before giving up and
+     * replacing the whole value.
+     */
+    static final int MAX_EDITS = 1000;
+
+    /**
+     * Rough number of characters an operation adds to a delta, used to
+     * decide if patching part of the text is worthwhile.
+     */
+    static final int OPERATION_SIZE = 40;
+
+    /**
+     * A changed part of the text.
+     *
+     * Characters are deleted from the old text and replaced by characters
+     * of the new text. Either length may be zero.
+     */
+    static final class Hunk {
+
+        /** Offset of the change in the old text. */
+        private final int mOldStart;
+
+        /** Number of characters deleted from the old text. */
+        private final int mOldLength;
+
+        /** Offset of the replacement in the new text. */
+        private final int mNewStart;
+
+        /** Number of characters inserted from the new text. */
+        private final int mNewLength;
+
+        /**
+         * Creates a hunk.
+         *
+         * @param oldStart Offset of the change in the old text
+         * @param oldLength Number of characters deleted
+         * @param newStart Offset of the replacement in the new text
+         * @param newLength Number of characters inserted
+         */
+        private Hunk(final int oldStart, final int oldLength, 
+                final int newStart, final int newLength) {
+
+            mOldStart = oldStart;
+            mOldLength = oldLength;
+            mNewStart = newStart;
+            mNewLength = newLength;
+        }
+
+        /**
+         * Gets the offset of the change in the old text.
+         *
+         * @return The offset, from 0
+         */
+        int getOldStart() {
+            return mOldStart;
+        }
+
+        /**
+         * Gets the number of characters deleted from the old text.
+         *
+         * @return The number of characters deleted
+         */
+        int getOldLength() {
+            return mOldLength;
+        }
+
+        /**
+         * Gets the offset of the replacement in the new text.
+         *
+         * @return The offset, from 0
+         */
+        int getNewStart() {
+            return mNewStart;
+        }
+
+        /**
+         * Gets the number of characters inserted from the new text.
+         *
+         * @return The number of characters inserted
+         */
+        int getNewLength() {
+            return mNewLength;
+        }
+    }
+
+    /** Letters and digits, which make up words. */
+    private static final int WORD = 0;
+
+    /** Whitespace, runs of which are one token. */
+    private static final int SPACE = 1;
+
+    /** Anything else, each of which is a token. */
+    private static final int OTHER = 2;
+
+    /**
+     * Private constructor.
+     */
+    private TextDiff() {
+        //Shouldn't be called
+    }
+
+    /**
+     * Finds the changes that turn one text into another.
+     *
+     * Returns null if the texts are the same or too different, or if 
+     * replacing the whole text would give as small a delta.
+     *
+     * @param a The old text
+     * @param b The new text
+     * @param mode Whether to compare characters or words
+     * @return The changes, in order, or null
+     */
+    static List<Hunk> diff(final String a, final String b, 
+            final TextDiffMode mode) {
+
+        Map<String, Integer> ids = null;
+        if (mode == TextDiffMode.WORDS) {
+            ids = new HashMap<String, Integer>();
+        }
+        int[] startsA = getTokenStarts(a, mode);
+        int[] startsB = getTokenStarts(b, mode);
+        int[] tokensA = getTokens(a, startsA, ids);
+        int[] tokensB = getTokens(b, startsB, ids);
+
+        //Remove the common start and end
+        int lengthA = tokensA.length;
+        int lengthB = tokensB.length;
+        int prefix = 0;
+        while (prefix < lengthA && prefix < lengthB 
+                && tokensA[prefix] == tokensB[prefix]) {
+            prefix++;
+        }
+        while (lengthA > prefix && lengthB > prefix
+                && tokensA[lengthA - 1] == tokensB[lengthB - 1]) {
+            lengthA--;
+            lengthB--;
+        }
+
+        boolean[] deleted = new boolean[tokensA.length];
+        boolean[] inserted = new boolean[tokensB.length];
+        if (!compare(tokensA, tokensB, prefix, lengthA - prefix, 
+                lengthB - prefix, deleted, inserted)) {
+            return null;
+        }
+
+        List<Hunk> ret = getHunks(startsA, startsB, deleted, inserted);
+
+        //Compare the size of the operations with a single update
+        int size = 0;
+        for (Hunk h : ret) {
+            size += h.getNewLength();
+            if (h.getOldLength() > 0) {
+                size += OPERATION_SIZE;
+            }
+            if (h.getNewLength() > 0) {
+                size += OPERATION_SIZE;
+            }
+        }
+        if (ret.isEmpty() || size >= b.length() + OPERATION_SIZE) {
+            ret = null;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the offsets of the tokens of a text.
+     *
+     * In word mode, runs of letters and digits and runs of whitespace are
+     * single tokens, otherwise each character is a token. Surrogate pairs
+     * are never split.
+     *
+     * @param s The text
+     * @param mode Whether to split into characters or words
+     * @return The start of each token, followed by the length of s
+     */
+    private static int[] getTokenStarts(final String s, 
+            final TextDiffMode mode) {
+
+        int[] ret = new int[s.length() + 1];
+        int count = 0;
+        int i = 0;
+        while (i < s.length()) {
+            ret[count++] = i;
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            int type = getType(c);
+            if (mode == TextDiffMode.WORDS && type != OTHER) {
+                while (i < s.length() && getType(s.codePointAt(i)) == type) {
+                    i += Character.charCount(s.codePointAt(i));
+                }
+            }
+        }
+        ret[count] = s.length();
+
+        return Arrays.copyOf(ret, count + 1);
+    }
+
+    /**
+     * Gets the kind of token a character belongs to.
+     *
+     * @param c The code point
+     * @return WORD, SPACE or OTHER
+     */
+    private static int getType(final int c) {
+
+        int ret = OTHER;
+        if (Character.isLetterOrDigit(c)) {
+            ret = WORD;
+        } else if (Character.isWhitespace(c)) {
+            ret = SPACE;
+        }
+        return ret;
+    }
+
+    /**
+     * Turns the tokens of a text into numbers that are equal for equal
+     * tokens.
+     *
+     * @param s The text
+     * @param starts The offsets of the tokens
+     * @param ids The numbers given to words, or null to use code points
+     * @return The number for each token
+     */
+    private static int[] getTokens(final String s, final int[] starts,
+            final Map<String, Integer> ids) {
+
+        int[] ret = new int[starts.length - 1];
+        for (int i = 0; i < ret.length; i++) {
+            if (ids == null) {
+                ret[i] = s.codePointAt(starts[i]);
+            } else {
+                String word = s.substring(starts[i], starts[i + 1]);
+                Integer id = ids.get(word);
+                if (id == null) {
+                    id = Integer.valueOf(ids.size());
+                    ids.put(word, id);
+                }
+                ret[i] = id.intValue();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Marks the tokens deleted and inserted by a shortest edit script.
+     *
+     * Uses Myers' greedy algorithm, keeping the furthest reaching path on 
+     * each diagonal for each number of edits, then walking back from the end
+     * to find the edits.
+     *
+     * @param a The old tokens
+     * @param b The new tokens
+     * @param start The offset of the part to compare in both arrays
+     * @param n The number of old tokens to compare
+     * @param m The number of new tokens to compare
+     * @param deleted Set for each old token that is deleted
+     * @param inserted Set for each new token that is inserted
+     * @return False if more than MAX_EDITS edits are needed
+     */
+    private static boolean compare(final int[] a, final int[] b, 
+            final int start, final int n, final int m, 
+            final boolean[] deleted, final boolean[] inserted) {
+
+        int limit = Math.min(n + m, MAX_EDITS);
+        int offset = limit + 1;
+        int[] v = new int[2 * limit + 3];
+        List<int[]> trace = new ArrayList<int[]>();
+
+        int edits = -1;
+        for (int d = 0; d <= limit && edits == -1; d++) {
+            trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d 
+                        && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[start + x] == b[start + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    edits = d;
+                    break;
+                }
+            }
+        }
+        if (edits == -1) {
+            return false;
+        }
+
+        int x = n;
+        int y = m;
+        for (int d = edits; d > 0; d--) {
+            //Furthest points after d - 1 edits, for diagonals -d to d
+            int[] prev = trace.get(d);
+            int k = x - y;
+            int prevK;
+            if (k == -d || (k != d && prev[k - 1 + d] < prev[k + 1 + d])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = prev[prevK + d];
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                x--;
+                y--;
+            }
+            if (x == prevX) {
+                inserted[start + prevY] = true;
+            } else {
+                deleted[start + prevX] = true;
+            }
+            x = prevX;
+            y = prevY;
+        }
+
+        return true;
+    }
+
+    /**
+     * Groups adjacent deleted and inserted tokens into hunks.
+     *
+     * @param startsA The offsets of the old tokens
+     * @param startsB The offsets of the new tokens
+     * @param deleted Whether each old token is deleted
+     * @param inserted Whether each new token is inserted
+     * @return The hunks, in order
+     */
+    private static List<Hunk> getHunks(final int[] startsA, 
+            final int[] startsB, final boolean[] deleted, 
+            final boolean[] inserted) {
+
+        List<Hunk> ret = new ArrayList<Hunk>();
+        int i = 0;
+        int j = 0;
+        while (i < deleted.length || j < inserted.length) {
+            int i0 = i;
+            int j0 = j;
+            while ((i < deleted.length && deleted[i]) 
+                    || (j < inserted.length && inserted[j])) {
+                if (i < deleted.length && deleted[i]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            if (i != i0 || j != j0) {
+                ret.add(new Hunk(startsA[i0], startsA[i] - startsA[i0],
+                        startsB[j0], startsB[j] - startsB[j0]));
+            } else {
+                //Unchanged token in both texts
+                i++;
+                j++;
+            }
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,437 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml.fmes.delta;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.fmes.ChildNumber;
+import org.diffxml.diffxml.fmes.NodeOps;
+import org.diffxml.diffxml.fmes.PositionIndex;
+import org.diffxml.dul.DULConstants;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Creates the operations of a DUL delta.
+ * 
+ * Works out the attributes of each operation. Subclasses decide how the 
+ * operations are stored or written.
+ * 
+ * @author Adrian Mouat
+ */
+public abstract class AbstractDULDelta implements DeltaIF {
+
+    /**
+     * Index of sibling positions in the document being changed.
+     */
+    private final PositionIndex mPositions;
+
+    /**
+     * The options for the diff.
+     */
+    private final DiffOptions mOptions;
+
+    /**
+     * Constructor.
+     * 
+     * @param positions Index of sibling positions, may be null
+     * @param options The options for the diff
+     */
+    protected AbstractDULDelta(final PositionIndex positions, 
+            final DiffOptions options) {
+        mPositions = positions;
+        mOptions = options;
+    }
+
+    /**
+     * Gets the options the delta is created with.
+     * 
+     * @return The options for the diff
+     */
+    protected final DiffOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * Starts a new operation.
+     * 
+     * @param name The name of the operation element
+     */
+    protected abstract void startOperation(final String name);
+
+    /**
+     * Adds an attribute to the current operation.
+     * 
+     * @param name The name of the attribute
+     * @param value The value of the attribute
+     */
+    protected abstract void addAttribute(final String name, 
+            final String value);
+
+    /**
+     * Finishes the current operation.
+     * 
+     * @param text The text content of the operation, may be null
+     */
+    protected abstract void endOperation(final String text);
+
+    /**
+     * Finishes the current operation with a copy of a subtree as its 
+     * content.
+     * 
+     * @param n The root of the subtree
+     */
+    protected abstract void endSubtreeOperation(final Node n);
+
+    /**
+     * Gets the attributes of the delta element.
+     * 
+     * These hold the context information and options the delta was made
+     * with.
+     * 
+     * @return The attribute names and values, in order
+     */
+    protected final Map<String, String> getDeltaAttributes() {
+
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        
+        //Append any context information
+        if (mOptions.isContext()) {
+            ret.put(DULConstants.SIBLING_CONTEXT, 
+                    Integer.toString(mOptions.getSiblingContext()));
+            ret.put(DULConstants.PARENT_CONTEXT,
+                    Integer.toString(mOptions.getParentContext()));
+            ret.put(DULConstants.PARENT_SIBLING_CONTEXT,
+                    Integer.toString(mOptions.getParentSiblingContext()));
+        }
+
+        if (mOptions.isReversePatch()) {
+            ret.put(DULConstants.REVERSE_PATCH, DULConstants.TRUE);
+        }
+
+        if (!mOptions.isResolveEntities()) {
+            ret.put(DULConstants.RESOLVE_ENTITIES, DULConstants.FALSE);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Adds inserts for attributes of a node to an EditScript.
+     * 
+     * @param attrs
+     *            the attributes to be added
+     * @param path
+     *            the path to the node they are to be added to
+     */
+    public final void addAttrsToDelta(final NamedNodeMap attrs, 
+            final String path) {
+
+        int numAttrs;
+        if (attrs == null) {
+            numAttrs = 0;
+        } else {
+            numAttrs = attrs.getLength();
+        }
+
+        for (int i = 0; i < numAttrs; i++) {
+            insert(attrs.item(i), path, 0, 1);
+        }
+    }
+
+    /**
+     * Appends an insert operation to the EditScript given the inserted node, 
+     * XPath to parent, character position & child number.
+     * 
+     * Set charpos to 1 if not needed.
+     * 
+     * The attributes of an element are held by a copy of the element in the
+     * operation rather than each needing an insert of its own.
+     * 
+     * @param n The node to insert
+     * @param parent The path to the node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     */
+    public final void insert(final Node n, final String parent, 
+            final int childno, final int charpos) {
+
+        startInsert(n, parent, childno, charpos);
+        if (n.getNodeType() == Node.ELEMENT_NODE && n.hasAttributes()) {
+            endSubtreeOperation(n.cloneNode(false));
+        } else {
+            endOperation(n.getNodeValue());
+        }
+    }
+
+    /**
+     * Appends an insert operation for an element and all its contents to
+     * the EditScript.
+     * 
+     * The operation holds a copy of the element, so its attributes and
+     * children don't need operations of their own.
+     * 
+     * @param n The element to insert
+     * @param parent The Node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     */
+    public final void insertSubtree(final Node n, final Node parent, 
+            final int childno, final int charpos) {
+
+        startInsert(n, NodeOps.getXPath(parent, mPositions), childno, 
+                charpos);
+        //Stops indenting serializers adding whitespace to the content
+        addAttribute(DULConstants.XML_SPACE, DULConstants.PRESERVE);
+        endSubtreeOperation(n);
+    }
+
+    /**
+     * Starts an insert operation and adds its attributes.
+     * 
+     * @param n The node to insert
+     * @param parent The path to the node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     */
+    private void startInsert(final Node n, final String parent, 
+            final int childno, final int charpos) {
+
+        startOperation(DULConstants.INSERT);
+        
+        addAttribute(DULConstants.PARENT, parent);
+        addAttribute(DULConstants.NODETYPE, 
+                Integer.toString(n.getNodeType()));
+
+        if (n.getNodeType() != Node.ATTRIBUTE_NODE) {
+            addAttribute(DULConstants.CHILDNO, Integer.toString(childno));
+        }
+
+        if (n.getNodeType() == Node.ATTRIBUTE_NODE 
+                || n.getNodeType() == Node.ELEMENT_NODE 
+                || n.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
+            if (n.getLocalName() != null) {
+                addAttribute(DULConstants.NAMESPACE, n.getNamespaceURI());
+                addAttribute(DULConstants.NAME, n.getLocalName());
+            } else {
+                addAttribute(DULConstants.NAME, n.getNodeName());
+            }
+        }
+        
+        if (charpos > 1) {
+            addAttribute(DULConstants.CHARPOS, Integer.toString(charpos));
+        }
+    }
+
+    /**
+     * Appends an insert operation to the EditScript given the inserted node, 
+     * parent Node, character position & child number.
+     * 
+     * @param n The node to insert
+     * @param parent The Node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     */
+    public final void insert(final Node n, final Node parent, 
+            final int childno, final int charpos) {
+
+        insert(n, NodeOps.getXPath(parent, mPositions), childno, charpos);
+    }
+    
+    /**
+     * Adds a delete operation to the EditScript for the given Node.
+     * 
+     * @param n The Node that is to be deleted
+     */
+    public final void delete(final Node n) {
+        
+        startOperation(DULConstants.DELETE);
+        addAttribute(DULConstants.NODE, NodeOps.getXPath(n, mPositions));
+        
+        if (DOMOps.isText(n)) {
+            
+            ChildNumber cn = new ChildNumber(n, mPositions);
+            int charpos = cn.getXPathCharPos();
+            
+            if (charpos >= 1) {
+                addAttribute(DULConstants.CHARPOS, 
+                        Integer.toString(charpos));
+            }
+
+            addAttribute(DULConstants.LENGTH, 
+                    Integer.toString(n.getTextContent().length()));
+        }
+
+        endOperation(null);
+    }
+
+    /**
+     * Adds a delete operation to the EditScript for part of a text node.
+     * 
+     * @param n The text node to delete from
+     * @param charpos The character position of the first character deleted
+     * @param length The number of characters to delete
+     */
+    public final void delete(final Node n, final int charpos, 
+            final int length) {
+
+        if (!DOMOps.isText(n)) {
+            throw new IllegalArgumentException("Node must be text");
+        }
+        if (charpos < 1 || length < 1) {
+            throw new IllegalArgumentException(
+                    "Character position and length must be >= 1");
+        }
+
+        startOperation(DULConstants.DELETE);
+        addAttribute(DULConstants.NODE, NodeOps.getXPath(n, mPositions));
+        addAttribute(DULConstants.CHARPOS, Integer.toString(charpos));
+        addAttribute(DULConstants.LENGTH, Integer.toString(length));
+        endOperation(null);
+    }
+
+    /**
+     * Adds a Move operation to the EditScript. 
+     * 
+     * @param n The node being moved
+     * @param parent XPath to the new parent Node
+     * @param childno Child number of the parent n will become
+     * @param ncharpos The new character position for the Node
+     */
+    public final void move(final Node n, final Node parent,
+            final int childno, final int ncharpos) {
+        
+        if (ncharpos < 1) {
+            throw new IllegalArgumentException(
+                    "New Character position must be >= 1");
+        }
+        
+        startOperation(DULConstants.MOVE);
+        addAttribute(DULConstants.NODE, NodeOps.getXPath(n, mPositions));
+        
+        int ocharpos = new ChildNumber(n, mPositions).getXPathCharPos();
+        addAttribute(DULConstants.OLD_CHARPOS, Integer.toString(ocharpos));
+        addAttribute(DULConstants.NEW_CHARPOS, Integer.toString(ncharpos));
+
+        if (DOMOps.isText(n)) {
+            addAttribute(DULConstants.LENGTH, 
+                    Integer.toString(n.getNodeValue().length()));
+        }
+
+        addAttribute(DULConstants.PARENT, 
+                NodeOps.getXPath(parent, mPositions));
+        addAttribute(DULConstants.CHILDNO, Integer.toString(childno));
+
+        endOperation(null);
+    }
+
+    /**
+     * Adds an update operation to the delta.
+     * 
+     * @param w The node to update
+     * @param x The node to update it to
+     */
+    public final void update(final Node w, final Node x) {
+        
+        String path = NodeOps.getXPath(w, mPositions);
+        String value;
+        boolean rename = true;
+        if (w.getNodeType() == Node.ELEMENT_NODE) {
+            updateAttributes((Element) w, (Element) x);
+            value = x.getNodeName();
+            //Only the attributes differ if the names are the same
+            rename = !(value.equals(w.getNodeName()) 
+                    && equalsOrBothNull(w.getNamespaceURI(), 
+                            x.getNamespaceURI()));
+        } else {
+            value = x.getNodeValue();
+        } 
+        
+        if (rename) {
+            startOperation(DULConstants.UPDATE);
+            addAttribute(DULConstants.NODE, path);
+            endOperation(value);
+        }
+    }
+    
+    /**
+     * Checks if two strings are equal or both null.
+     * 
+     * @param a String to compare to b
+     * @param b String to compare to a
+     * @return True if the strings are equal or both null
+     */
+    private static boolean equalsOrBothNull(final String a, final String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Updates the attributes of element w to be the same as x's.
+     * 
+     * Ignores xmlns attributes - these are assumed to be part of the document
+     * structure rather than the content. Different namespaces will cause
+     * comparison of elements etc to fail.
+     * 
+     * @param w The Element to update the attributes of
+     * @param x The element holding the correct attributes
+     */
+    private void updateAttributes(final Element w, final Element x) {
+    
+        NamedNodeMap wAttrs = w.getAttributes();
+        NamedNodeMap xAttrs = x.getAttributes();
+        
+        //Delete any attrs of w not in x, update others
+        for (int i = 0; i < wAttrs.getLength(); i++) {
+            
+            Node wAttr = wAttrs.item(i);
+            
+            if (!NodeOps.isNamespaceAttr(wAttr)) { 
+                Node xAttr = xAttrs.getNamedItemNS(wAttr.getNamespaceURI(), wAttr.getLocalName());
+                if (xAttr == null) {
+                    delete(wAttrs.item(i));
+                } else if (!wAttr.getNodeValue().equals(xAttr.getNodeValue())) {
+                    update(wAttr, xAttr);
+                }
+            }
+        }
+        
+        //Add any attrs in x but not w
+        for (int j = 0; j < xAttrs.getLength(); j++) {
+
+            Node xAttr = xAttrs.item(j);
+            
+            if (!NodeOps.isNamespaceAttr(xAttr)) {
+                
+                if (wAttrs.getNamedItemNS(xAttr.getNamespaceURI(), 
+                        xAttr.getLocalName()) == null) {
+                    insert(xAttr, NodeOps.getXPath(w, mPositions), 0, 1);
+                }
+            }
+        }
+    }
+}
@@ -23,41 +23,74 @@ email: adrian.mouat@gmail.com
 
 package org.diffxml.diffxml.fmes.delta;
 
-import javax.xml.parsers.DocumentBuilder;
+import java.util.Map;
+
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
 import org.diffxml.diffxml.DOMOps;
-import org.diffxml.diffxml.fmes.ChildNumber;
-import org.diffxml.diffxml.fmes.NodeOps;
-import org.w3c.dom.NamedNodeMap;
+import org.diffxml.diffxml.fmes.PositionIndex;
+import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 import org.w3c.dom.Element; 
+import org.w3c.dom.Node;
 
 import org.diffxml.dul.DULConstants;
 
 /**
  * Handle operations related to creating a DUL delta.
  * 
+ * The delta is built as a DOM document.
+ * 
  * @author Adrian Mouat
  */
-public class DULDelta implements DeltaIF {
+public class DULDelta extends AbstractDULDelta
+    implements DocumentDeltaIF {
+
+    /**
+     * Used to create the delta documents.
+     * 
+     * Looking up the DOM implementation is slow, so it is only done once.
+     */
+    private static DOMImplementation domImplementation;
 
     /**
      * The EditScript we are creating.
      */
     private Document mEditScript;
     
+    /**
+     * The operation being added.
+     */
+    private Element mOperation;
+    
     /**
      * Creates a new, blank EditScript.
      * 
+     * Uses the options currently set in DiffFactory.
+     * 
      * @throws DeltaInitialisationException If the EditScript can't be 
      * initialised.
      */
     public DULDelta() throws DeltaInitialisationException {
+        this(null, DiffFactory.getOptions());
+    }
+    
+    /**
+     * Creates a new, blank EditScript which finds node positions using the
+     * given index.
+     * 
+     * @param positions Index of sibling positions, may be null
+     * @param options The options for the diff
+     * @throws DeltaInitialisationException If the EditScript can't be 
+     * initialised.
+     */
+    public DULDelta(final PositionIndex positions, final DiffOptions options)
+    throws DeltaInitialisationException {
         
+        super(positions, options);
         try {
             mEditScript = makeEmptyEditScript();
         } catch (ParserConfigurationException e) {
@@ -65,6 +98,23 @@ public class DULDelta implements DeltaIF {
         }
     }
     
+    /**
+     * Gets the DOM implementation used to create delta documents.
+     * 
+     * @return The DOM implementation
+     * @throws ParserConfigurationException If a parser can't be created
+     */
+    private static synchronized DOMImplementation getDOMImplementation()
+    throws ParserConfigurationException {
+
+        if (domImplementation == null) {
+            domImplementation = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().getDOMImplementation();
+        }
+
+        return domImplementation;
+    }
+
     /**
      * Get the XML Document for the EditScript.
      * 
@@ -83,33 +133,17 @@ public class DULDelta implements DeltaIF {
     * @throws ParserConfigurationException If a new document can't be created
     */
 
-   private static Document makeEmptyEditScript() 
+   private Document makeEmptyEditScript() 
    throws ParserConfigurationException {
 
-       DocumentBuilder builder = 
-           DocumentBuilderFactory.newInstance().newDocumentBuilder();
-       Document editScript = builder.newDocument();
+       Document editScript = 
+           getDOMImplementation().createDocument(null, null, null);
 
        Element docEl = editScript.createElementNS(
                DULConstants.DUL_NAMESPACE, DULConstants.DELTA);
 
-       //Append any context information
-       if (DiffFactory.isContext()) {
-           docEl.setAttribute(DULConstants.SIBLING_CONTEXT, 
-                   Integer.toString(DiffFactory.getSiblingContext()));
-           docEl.setAttribute(DULConstants.PARENT_CONTEXT,
-                   Integer.toString(DiffFactory.getParentContext()));
-           docEl.setAttribute(DULConstants.PARENT_SIBLING_CONTEXT,
-                   Integer.toString(DiffFactory.getParentSiblingContext()));
-       }
-
-       if (DiffFactory.isReversePatch()) {
-           docEl.setAttribute(DULConstants.REVERSE_PATCH, DULConstants.TRUE);
-       }
-
-       if (!DiffFactory.isResolveEntities()) {
-           docEl.setAttribute(
-                   DULConstants.RESOLVE_ENTITIES, DULConstants.FALSE);
+       for (Map.Entry<String, String> attr : getDeltaAttributes().entrySet()) {
+           docEl.setAttribute(attr.getKey(), attr.getValue());
        }
 
        editScript.appendChild(docEl);
@@ -118,233 +152,55 @@ public class DULDelta implements DeltaIF {
    }
    
     /**
-     * Adds inserts for attributes of a node to an EditScript.
+     * Starts a new operation element.
      * 
-     * @param attrs
-     *            the attributes to be added
-     * @param path
-     *            the path to the node they are to be added to
+     * @param name The name of the operation element
      */
-    public final void addAttrsToDelta(final NamedNodeMap attrs, 
-            final String path) {
-
-        int numAttrs;
-        if (attrs == null) {
-            numAttrs = 0;
-        } else {
-            numAttrs = attrs.getLength();
-        }
-
-        for (int i = 0; i < numAttrs; i++) {
-            insert(attrs.item(i), path, 0, 1);
-        }
+    protected final void startOperation(final String name) {
+        mOperation = mEditScript.createElement(name);
     }
 
     /**
-     * Appends an insert operation to the EditScript given the inserted node, 
-     * XPath to parent, character position & child number.
-     * 
-     * Set charpos to 1 if not needed.
+     * Adds an attribute to the current operation element.
      * 
-     * @param n The node to insert
-     * @param parent The path to the node to be parent of n
-     * @param childno The child number of the parent node that n will become
-     * @param charpos The character position to insert at
+     * @param name The name of the attribute
+     * @param value The value of the attribute
      */
-    public final void insert(final Node n, final String parent, 
-            final int childno, final int charpos) {
-
-        Element ins = mEditScript.createElement(DULConstants.INSERT);
-        
-        ins.setAttribute(DULConstants.PARENT, parent);
-        ins.setAttribute(DULConstants.NODETYPE, 
-                Integer.toString(n.getNodeType()));
-
-        if (n.getNodeType() != Node.ATTRIBUTE_NODE) {
-            ins.setAttribute(DULConstants.CHILDNO, Integer.toString(childno));
-        }
-
-        if (n.getNodeType() == Node.ATTRIBUTE_NODE 
-                || n.getNodeType() == Node.ELEMENT_NODE 
-                || n.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
-            if (n.getLocalName() != null) {
-                ins.setAttribute(DULConstants.NAMESPACE, n.getNamespaceURI());
-                ins.setAttribute(DULConstants.NAME, n.getLocalName());
-            } else {
-                ins.setAttribute(DULConstants.NAME, n.getNodeName());
-            }
-        }
-        
-        if (charpos > 1) {
-            ins.setAttribute(DULConstants.CHARPOS, Integer.toString(charpos));
-        }
-
-        String value = n.getNodeValue();
-        if (value != null) {
-            Node txt = mEditScript.createTextNode(value);
-            ins.appendChild(txt);
-        }
-
-        mEditScript.getDocumentElement().appendChild(ins);
-
-        outputDebug(ins);
-        
-        // Add any attributes
-        if (n.getNodeType() == Node.ELEMENT_NODE) {
-            //TODO: Update for using element names instead of node()
-            addAttrsToDelta(n.getAttributes(), 
-                    parent + "/node()[" + childno + "]");
-        }
+    protected final void addAttribute(final String name, final String value) {
+        mOperation.setAttribute(name, value);
     }
 
     /**
-     * Appends an insert operation to the EditScript given the inserted node, 
-     * parent Node, character position & child number.
-     * 
-     * @param n The node to insert
-     * @param parent The Node to be parent of n
-     * @param childno The child number of the parent node that n will become
-     * @param charpos The character position to insert at
-     */
-    public final void insert(final Node n, final Node parent, 
-            final int childno, final int charpos) {
-
-        insert(n, NodeOps.getXPath(parent), childno, charpos);
-    }
-    
-    /**
-     * Adds a delete operation to the EditScript for the given Node.
+     * Appends the current operation element to the EditScript.
      * 
-     * @param n The Node that is to be deleted
+     * @param text The text content of the operation, may be null
      */
-    public final void delete(final Node n) {
-        
-        Element del = mEditScript.createElement(DULConstants.DELETE);
-        del.setAttribute(DULConstants.NODE, NodeOps.getXPath(n));
-        
-        if (DOMOps.isText(n)) {
-            
-            ChildNumber cn = new ChildNumber(n);
-            int charpos = cn.getXPathCharPos();
-            
-            if (charpos >= 1) {
-                del.setAttribute(DULConstants.CHARPOS, 
-                        Integer.toString(charpos));
-            }
+    protected final void endOperation(final String text) {
 
-            del.setAttribute(DULConstants.LENGTH, 
-                    Integer.toString(n.getTextContent().length()));
+        if (text != null) {
+            Node txt = mEditScript.createTextNode(text);
+            mOperation.appendChild(txt);
         }
 
-        mEditScript.getDocumentElement().appendChild(del);
-
-        outputDebug(del);
+        mEditScript.getDocumentElement().appendChild(mOperation);
+        outputDebug(mOperation);
+        mOperation = null;
     }
 
     /**
-     * Adds a Move operation to the EditScript. 
-     * 
-     * @param n The node being moved
-     * @param parent XPath to the new parent Node
-     * @param childno Child number of the parent n will become
-     * @param ncharpos The new character position for the Node
+     * Appends the current operation element to the EditScript, holding a
+     * copy of a subtree.
+     *
+     * @param n The root of the subtree
      */
-    public final void move(final Node n, final Node parent,
-            final int childno, final int ncharpos) {
-        
-        if (ncharpos < 1) {
-            throw new IllegalArgumentException(
-                    "New Character position must be >= 1");
-        }
-        
-        Element mov = mEditScript.createElement(DULConstants.MOVE);
-        mov.setAttribute(DULConstants.NODE, NodeOps.getXPath(n));
-        
-        int ocharpos = new ChildNumber(n).getXPathCharPos();
-        mov.setAttribute(DULConstants.OLD_CHARPOS, Integer.toString(ocharpos));
-        mov.setAttribute(DULConstants.NEW_CHARPOS, Integer.toString(ncharpos));
-
-        if (DOMOps.isText(n)) {
-            mov.setAttribute(DULConstants.LENGTH, 
-                    Integer.toString(n.getNodeValue().length()));
-        }
-
-        mov.setAttribute(DULConstants.PARENT, NodeOps.getXPath(parent));
-        mov.setAttribute(DULConstants.CHILDNO, Integer.toString(childno));
+    protected final void endSubtreeOperation(final Node n) {
 
-        mEditScript.getDocumentElement().appendChild(mov);
-
-        outputDebug(mov);
+        mOperation.appendChild(mEditScript.importNode(n, true));
+        mEditScript.getDocumentElement().appendChild(mOperation);
+        outputDebug(mOperation);
+        mOperation = null;
     }
 
-    /**
-     * Adds an update operation to the delta.
-     * 
-     * @param w The node to update
-     * @param x The node to update it to
-     */
-    public final void update(final Node w, final Node x) {
-        
-        Element update = mEditScript.createElement(DULConstants.UPDATE);
-        update.setAttribute(DULConstants.NODE, NodeOps.getXPath(w));
-        
-        if (w.getNodeType() == Node.ELEMENT_NODE) {
-            update.setTextContent(x.getNodeName());
-            updateAttributes((Element) w, (Element) x);
-        } else {
-            update.setTextContent(x.getNodeValue());
-        } 
-        
-        mEditScript.getDocumentElement().appendChild(update);
-        
-        outputDebug(update);
-    }
-    
-    /**
-     * Updates the attributes of element w to be the same as x's.
-     * 
-     * Ignores xmlns attributes - these are assumed to be part of the document
-     * structure rather than the content. Different namespaces will cause
-     * comparison of elements etc to fail.
-     * 
-     * @param w The Element to update the attributes of
-     * @param x The element holding the correct attributes
-     */
-    private void updateAttributes(final Element w, final Element x) {
-    
-        NamedNodeMap wAttrs = w.getAttributes();
-        NamedNodeMap xAttrs = x.getAttributes();
-        
-        //Delete any attrs of w not in x, update others
-        for (int i = 0; i < wAttrs.getLength(); i++) {
-            
-            Node wAttr = wAttrs.item(i);
-            
-            if (!NodeOps.isNamespaceAttr(wAttr)) { 
-                Node xAttr = xAttrs.getNamedItemNS(wAttr.getNamespaceURI(), wAttr.getLocalName());
-                if (xAttr == null) {
-                    delete(wAttrs.item(i));
-                } else if (!wAttr.getNodeValue().equals(xAttr.getNodeValue())) {
-                    update(wAttr, xAttr);
-                }
-            }
-        }
-        
-        //Add any attrs in x but not w
-        for (int j = 0; j < xAttrs.getLength(); j++) {
-
-            Node xAttr = xAttrs.item(j);
-            
-            if (!NodeOps.isNamespaceAttr(xAttr)) {
-                
-                if (wAttrs.getNamedItemNS(xAttr.getNamespaceURI(), 
-                        xAttr.getLocalName()) == null) {
-                    insert(xAttr, NodeOps.getXPath(w), 0, 1);
-                }
-            }
-        }
-    }
-    
     /**
       * Outputs debug message for node.
       * 
@@ -352,7 +208,7 @@ public class DULDelta implements DeltaIF {
       */
     private void outputDebug(final Node n) {
 
-        if (DiffFactory.isDebug()) {
+        if (getOptions().isDebug()) {
             System.err.print("Applying: ");
             System.err.println(DOMOps.getNodeAsStringDeep(n));
         }
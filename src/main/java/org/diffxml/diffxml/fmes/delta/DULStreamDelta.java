@@ -0,0 +1,479 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml.fmes.delta;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.fmes.PositionIndex;
+import org.diffxml.dul.DULConstants;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes a DUL delta straight to a stream as it is created.
+ * 
+ * Unlike DULDelta no document is built, so memory use doesn't grow with the
+ * size of the delta. The output is the same as an indented DULDelta
+ * document. Call finish once the EditScript is complete to close the delta
+ * element.
+ * 
+ * @author Adrian Mouat
+ */
+public class DULStreamDelta extends AbstractDULDelta {
+
+    /**
+     * Encoding used for output.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Written before each operation.
+     */
+    private static final String INDENT = "\n    ";
+
+    /**
+     * Where the delta is written.
+     */
+    private final Writer mOut;
+
+    /**
+     * Name of the operation being added.
+     */
+    private String mOperation;
+
+    /**
+     * Attributes of the operation being added, sorted by name.
+     */
+    private final Map<String, String> mAttributes = 
+        new TreeMap<String, String>();
+
+    /**
+     * Whether any operations have been written.
+     */
+    private boolean mHasOperations = false;
+
+    /**
+     * First error that occurred writing the delta.
+     */
+    private IOException mError;
+
+    /**
+     * Starts writing a delta to the given stream.
+     * 
+     * @param os The stream to write to
+     * @param positions Index of sibling positions, may be null
+     * @param options The options for the diff
+     * @throws DeltaInitialisationException If the start of the delta can't
+     * be written
+     */
+    public DULStreamDelta(final OutputStream os, 
+            final PositionIndex positions, final DiffOptions options) 
+    throws DeltaInitialisationException {
+
+        super(positions, options);
+        try {
+            mOut = new BufferedWriter(new OutputStreamWriter(os, ENCODING));
+            mOut.write("<?xml version=\"1.0\" encoding=\"" + ENCODING 
+                    + "\" standalone=\"no\"?>\n");
+            mOut.write("<" + DULConstants.DELTA + " xmlns=\"" 
+                    + DULConstants.DUL_NAMESPACE + "\"");
+            for (Map.Entry<String, String> attr 
+                    : new TreeMap<String, String>(
+                            getDeltaAttributes()).entrySet()) {
+                writeAttribute(attr.getKey(), attr.getValue());
+            }
+        } catch (IOException e) {
+            throw new DeltaInitialisationException(
+                    "Failed to write delta", e);
+        }
+    }
+
+    /**
+     * Whether any operations have been written.
+     * 
+     * @return true if the delta isn't empty
+     */
+    public final boolean hasOperations() {
+        return mHasOperations;
+    }
+
+    /**
+     * Finishes the delta and flushes the stream.
+     * 
+     * The stream isn't closed.
+     * 
+     * @throws IOException If any part of the delta couldn't be written
+     */
+    public final void finish() throws IOException {
+
+        if (mError == null) {
+            try {
+                if (mHasOperations) {
+                    mOut.write("\n</" + DULConstants.DELTA + ">\n");
+                } else {
+                    mOut.write("/>\n");
+                }
+                mOut.flush();
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Starts a new operation.
+     * 
+     * @param name The name of the operation element
+     */
+    protected final void startOperation(final String name) {
+
+        mOperation = name;
+        mAttributes.clear();
+    }
+
+    /**
+     * Adds an attribute to the current operation.
+     * 
+     * @param name The name of the attribute
+     * @param value The value of the attribute
+     */
+    protected final void addAttribute(final String name, final String value) {
+        mAttributes.put(name, value);
+    }
+
+    /**
+     * Writes the current operation.
+     * 
+     * Errors are held until finish is called.
+     * 
+     * @param text The text content of the operation, may be null
+     */
+    protected final void endOperation(final String text) {
+
+        if (mError != null) {
+            return;
+        }
+
+        try {
+            writeOperationStart();
+            if (text == null || text.length() == 0) {
+                mOut.write("/>");
+            } else {
+                mOut.write('>');
+                writeEscaped(text, false);
+                mOut.write("</" + mOperation + ">");
+            }
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Writes the current operation, holding a copy of a subtree.
+     * 
+     * Errors are held until finish is called.
+     * 
+     * @param n The root of the subtree
+     */
+    protected final void endSubtreeOperation(final Node n) {
+
+        if (mError != null) {
+            return;
+        }
+
+        try {
+            writeOperationStart();
+            mOut.write('>');
+            writeSubtree(n);
+            mOut.write("</" + mOperation + ">");
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Writes the start tag of the current operation, without closing it.
+     * 
+     * @throws IOException If the tag can't be written
+     */
+    private void writeOperationStart() throws IOException {
+
+        if (!mHasOperations) {
+            mOut.write('>');
+            mHasOperations = true;
+        }
+        mOut.write(INDENT);
+        mOut.write('<');
+        mOut.write(mOperation);
+        for (Map.Entry<String, String> attr : mAttributes.entrySet()) {
+            writeAttribute(attr.getKey(), attr.getValue());
+        }
+    }
+
+    /**
+     * Writes a node and its descendants as XML.
+     * 
+     * Namespace declarations are added wherever the namespace of an 
+     * element or attribute isn't already in scope, so the subtree keeps its
+     * namespaces when the delta is parsed.
+     * 
+     * @param root The root of the subtree
+     * @throws IOException If the subtree can't be written
+     */
+    private void writeSubtree(final Node root) throws IOException {
+
+        //Prefixes bound by the open elements, the delta is the default
+        List<Map<String, String>> scopes = 
+            new ArrayList<Map<String, String>>();
+        Map<String, String> scope = new HashMap<String, String>();
+        scope.put("", DULConstants.DUL_NAMESPACE);
+
+        Node n = root;
+        while (true) {
+            boolean open = false;
+            switch (n.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    Map<String, String> inner = writeStartTag((Element) n, 
+                            scope);
+                    if (n.hasChildNodes()) {
+                        mOut.write('>');
+                        scopes.add(scope);
+                        scope = inner;
+                        open = true;
+                    } else {
+                        mOut.write("/>");
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                    writeEscaped(n.getNodeValue(), false);
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    mOut.write("<![CDATA[");
+                    mOut.write(n.getNodeValue().replace("]]>", 
+                            "]]]]><![CDATA[>"));
+                    mOut.write("]]>");
+                    break;
+                case Node.COMMENT_NODE:
+                    mOut.write("<!--" + n.getNodeValue() + "-->");
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    mOut.write("<?" + n.getNodeName());
+                    if (n.getNodeValue().length() > 0) {
+                        mOut.write(" " + n.getNodeValue());
+                    }
+                    mOut.write("?>");
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Can't write node type " + n.getNodeType());
+            }
+
+            if (open) {
+                n = n.getFirstChild();
+            } else {
+                while (n != root && n.getNextSibling() == null) {
+                    n = n.getParentNode();
+                    mOut.write("</" + n.getNodeName() + ">");
+                    scope = scopes.remove(scopes.size() - 1);
+                }
+                if (n == root) {
+                    break;
+                }
+                n = n.getNextSibling();
+            }
+        }
+    }
+
+    /**
+     * Writes the start of an element tag with its attributes, but doesn't
+     * close it.
+     * 
+     * @param e The element
+     * @param scope The prefixes bound outside the element
+     * @return The prefixes bound inside the element
+     * @throws IOException If the tag can't be written
+     */
+    private Map<String, String> writeStartTag(final Element e, 
+            final Map<String, String> scope) throws IOException {
+
+        Map<String, String> ret = new HashMap<String, String>(scope);
+        mOut.write('<');
+        mOut.write(e.getNodeName());
+
+        //Declarations are written where they are first needed, as the
+        //DOM serializer does, so both deltas are the same
+        NamedNodeMap attrs = e.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Node attr = attrs.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(
+                    attr.getNamespaceURI())) {
+                String prefix = "";
+                if (attr.getPrefix() != null) {
+                    prefix = attr.getLocalName();
+                }
+                declare(ret, prefix, attr.getNodeValue());
+            } else {
+                if (attr.getPrefix() != null) {
+                    declare(ret, attr.getPrefix(), attr.getNamespaceURI());
+                }
+                writeAttribute(attr.getNodeName(), attr.getNodeValue());
+            }
+        }
+        declare(ret, getPrefix(e), e.getNamespaceURI());
+
+        return ret;
+    }
+
+    /**
+     * Gets the prefix of a node.
+     * 
+     * @param n The node
+     * @return The prefix, or the empty string if there isn't one
+     */
+    private static String getPrefix(final Node n) {
+
+        String ret = n.getPrefix();
+        if (ret == null) {
+            ret = "";
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a namespace declaration if the prefix isn't already bound to
+     * the namespace.
+     * 
+     * @param scope The prefixes bound so far, updated with the declaration
+     * @param prefix The prefix, empty for the default namespace
+     * @param ns The namespace, may be null
+     * @throws IOException If the declaration can't be written
+     */
+    private void declare(final Map<String, String> scope, 
+            final String prefix, final String ns) throws IOException {
+
+        String uri = ns;
+        if (uri == null) {
+            uri = "";
+        }
+        String bound = scope.get(prefix);
+        if (bound == null) {
+            bound = "";
+        }
+
+        if (!prefix.equals(XMLConstants.XML_NS_PREFIX) && !uri.equals(bound)) {
+            scope.put(prefix, uri);
+            if (prefix.length() == 0) {
+                writeAttribute(XMLConstants.XMLNS_ATTRIBUTE, uri);
+            } else {
+                writeAttribute(XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, 
+                        uri);
+            }
+        }
+    }
+
+    /**
+     * Writes an attribute of an element.
+     * 
+     * @param name The name of the attribute
+     * @param value The value of the attribute, null is written as empty
+     * @throws IOException If the attribute can't be written
+     */
+    private void writeAttribute(final String name, final String value) 
+    throws IOException {
+
+        mOut.write(' ');
+        mOut.write(name);
+        mOut.write("=\"");
+        if (value != null) {
+            writeEscaped(value, true);
+        }
+        mOut.write('"');
+    }
+
+    /**
+     * Writes text, escaping markup characters.
+     * 
+     * Carriage returns, and whitespace in attributes, are written as 
+     * character references so they aren't normalized away when parsed.
+     * 
+     * @param text The text to write
+     * @param attribute Whether the text is an attribute value
+     * @throws IOException If the text can't be written
+     */
+    private void writeEscaped(final String text, final boolean attribute) 
+    throws IOException {
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    mOut.write("&amp;");
+                    break;
+                case '<':
+                    mOut.write("&lt;");
+                    break;
+                case '>':
+                    mOut.write("&gt;");
+                    break;
+                case '\r':
+                    mOut.write("&#13;");
+                    break;
+                case '"':
+                    if (attribute) {
+                        mOut.write("&quot;");
+                    } else {
+                        mOut.write(c);
+                    }
+                    break;
+                case '\n':
+                case '\t':
+                    if (attribute) {
+                        mOut.write("&#" + (int) c + ";");
+                    } else {
+                        mOut.write(c);
+                    }
+                    break;
+                default:
+                    mOut.write(c);
+            }
+        }
+    }
+}
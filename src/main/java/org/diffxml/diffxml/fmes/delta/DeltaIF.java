@@ -22,7 +22,6 @@ email: adrian.mouat@gmail.com
 */
 package org.diffxml.diffxml.fmes.delta;
 
-import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 /**
@@ -52,6 +51,15 @@ public interface DeltaIF {
      * @param n The Node that is to be deleted
      */
     void delete(final Node n);
+
+    /**
+     * Adds a delete operation to the EditScript for part of a text node.
+     * 
+     * @param n The text node to delete from
+     * @param charpos The character position of the first character deleted
+     * @param length The number of characters to delete
+     */
+    void delete(final Node n, final int charpos, final int length);
     
     /**
      * Adds an insert operation to the EditScript.
@@ -65,18 +73,23 @@ public interface DeltaIF {
             final int charpos);
 
     /**
-     * Adds an update operation to the EditScript.
+     * Adds an insert operation for an element and all its contents to the
+     * EditScript.
      * 
-     * @param w The node to be updated
-     * @param x The node it should be equal to
+     * @param n The element to insert, with its attributes and children
+     * @param parent The Node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
      */
-    void update(Node w, Node x);
+    void insertSubtree(final Node n, final Node parent, final int childno,
+            final int charpos);
 
     /**
-     * Get the XML Document for the EditScript.
+     * Adds an update operation to the EditScript.
      * 
-     * @return The EditScript as an XML document.
+     * @param w The node to be updated
+     * @param x The node it should be equal to
      */
-    Document getDocument();
+    void update(Node w, Node x);
 
 }
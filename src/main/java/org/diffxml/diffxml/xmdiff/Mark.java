@@ -29,7 +29,6 @@ import org.w3c.dom.Node;
 import org.w3c.dom.traversal.*;
 import org.w3c.dom.NodeList;
 import javax.xml.transform.TransformerException;
-import org.w3c.dom.NamedNodeMap;
 import java.io.File;
 
 import org.diffxml.diffxml.DOMOps;
@@ -170,21 +169,6 @@ public class Mark
             }
 
             es.insert(n, NodeOps.getXPath(par), index, charpos);
-
-            //Insert any attributes
-            NamedNodeMap attrs=n.getAttributes();
-            if (attrs!=null)
-            {
-                if (attrs.getLength()>0)
-                {
-                    //Get path
-                    ChildNumber cn2 = new ChildNumber(n);
-                    for (int j=0; j<attrs.getLength(); j++)
-                    {
-                        es.insert(attrs.item(j), NodeOps.getXPath(n), 0, -1);
-                    }
-                }
-            }
         }
 
 //      Leftmost nodes first 
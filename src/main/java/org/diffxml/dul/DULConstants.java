@@ -103,6 +103,12 @@ public final class DULConstants {
     /** Namespace attribute. **/
     public static final String NAMESPACE = "ns";
     
+    /** Whitespace handling attribute, set on inserts of whole subtrees. **/
+    public static final String XML_SPACE = "xml:space";
+    
+    /** Value of xml:space that keeps whitespace as it is. **/
+    public static final String PRESERVE = "preserve";
+    
     /** Namespace of DUL. **/
     public static final String DUL_NAMESPACE = "http://www.adrianmouat.com/dul";
     
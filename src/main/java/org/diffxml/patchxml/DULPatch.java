@@ -23,44 +23,86 @@ email: adrian.mouat@gmail.com
 package org.diffxml.patchxml;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
 
 import org.diffxml.diffxml.DOMOps;
-import org.diffxml.dul.DULConstants;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.Attr;
 import org.w3c.dom.NodeList;
-import org.w3c.dom.traversal.DocumentTraversal;
-import org.w3c.dom.traversal.NodeFilter;
-import org.w3c.dom.traversal.NodeIterator;
-
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
 
 public class DULPatch {
 
+    /**
+     * Parents whose children were changed by the last operation.
+     */
+    private final List<Node> mTouched = new ArrayList<Node>();
+
+    /**
+     * Used for paths that aren't DUL paths, created when first needed.
+     */
     private XPath mXPath;
 
+    /**
+     * Creates a patcher that makes its own XPath if one is needed.
+     */
+    public DULPatch() {
+        this(null);
+    }
+
+    /**
+     * Creates a patcher that evaluates paths that aren't DUL paths with the
+     * given XPath.
+     * 
+     * @param xpath The XPath to use, may be null
+     */
+    public DULPatch(final XPath xpath) {
+        mXPath = xpath;
+    }
+
+    /**
+     * Finds the node a path points to.
+     * 
+     * @param doc The document being patched
+     * @param path The path to resolve
+     * @return The node, or null if it doesn't exist
+     * @throws PatchFormatException If the XPath can't be evaluated
+     */
+    private Node resolve(final Document doc, final DULPath path) 
+    throws PatchFormatException {
+
+        if (mXPath == null && !path.isDULPath()) {
+            mXPath = XPathFactory.newInstance().newXPath();
+        }
+        return path.resolve(doc, mXPath);
+    }
+
     /**
      * Perform update operation.
      *
      * @param doc The document being patched
-     * @param op The update operation node
+     * @param op The update operation
      * @throws PatchFormatException If the operation is malformed
      */
-    private void doUpdate(final Document doc, final Node op) 
+    private void doUpdate(final Document doc, final PatchOperation op) 
     throws PatchFormatException {
 
-        NamedNodeMap opAttrs = op.getAttributes();
-        Node updateNode = getNamedNode(doc, opAttrs);
+        Node updateNode = getNamedNode(doc, op);
+        if (updateNode == null) {
+            throw new PatchFormatException("Could not resolve XPath for node");
+        }
+        touched(updateNode.getParentNode());
 
         if (updateNode.getNodeType() == Node.ELEMENT_NODE) {
-            Node newNode = doc.createElementNS(getNameSpaceFromAttr(opAttrs),
-                    op.getTextContent());
+            Node newNode = doc.createElementNS(op.getNamespace(),
+                    op.getValue());
             
             // Copy attributes to the new element
             NamedNodeMap attrs = updateNode.getAttributes();
@@ -76,132 +118,11 @@ public class DULPatch {
             updateNode.getParentNode().replaceChild(newNode, updateNode);
             
         } else {
-            updateNode.setNodeValue(op.getTextContent());
-        }
-
-    }
-
-    /**
-     * Get the parent node pointed to by the parent attribute.
-     *
-     * @param doc   document being patched
-     * @param attrs attributes of operation node
-     * @return the parent node
-     * @throws PatchFormatException If the patch is not formatted correctly
-     */
-    private Node getParentFromAttr(final Document doc, 
-            final NamedNodeMap attrs) throws PatchFormatException {
-        
-        Node parent = null;
-        try {
-            parent = (Node) mXPath.evaluate(
-                    attrs.getNamedItem(DULConstants.PARENT).getNodeValue(),
-                    doc.getDocumentElement(), 
-                    XPathConstants.NODE);
-        } catch (XPathExpressionException e) {
-            throw new PatchFormatException(
-                    "Could not resolve XPath for parent attribuute", e);
-        }
-        
-        return parent;
-    }
-
-    /**
-     * Get value of nodetype attribute.
-     *
-     * @param attrs attributes of operation node
-     * @return the value of nodetype
-     * @throws PatchFormatException If the nodetype is missing or malformed
-     */
-    private int getNodeTypeFromAttr(final NamedNodeMap attrs)
-    throws PatchFormatException {
-
-        int val;
-        Node type = attrs.getNamedItem(DULConstants.NODETYPE);
-        if (type != null) {
-            try {
-                val = Integer.valueOf(type.getNodeValue());
-            } catch (NumberFormatException e) {
-                throw new PatchFormatException("Invalid nodetype", e);
-            }
-        } else {
-            throw new PatchFormatException("No nodetype specified");
+            updateNode.setNodeValue(op.getValue());
         }
 
-        return val;
     }
 
-    /**
-     * Get value of length attribute.
-     *
-     * @param attrs attributes of operation node
-     * @return the value of the length attr
-     * @throws PatchFormatException If the length is missing or malformed
-     */
-    private int getLengthFromAttr(final NamedNodeMap attrs)
-    throws PatchFormatException {
-
-        int val;
-        Node type = attrs.getNamedItem(DULConstants.LENGTH);
-        if (type != null) {
-            try {
-                val = Integer.valueOf(type.getNodeValue());
-                if (val < 1) {
-                    throw new PatchFormatException("Invalid length");
-                }
-            } catch (NumberFormatException e) {
-                throw new PatchFormatException("Invalid length", e);
-            }
-        } else {
-            throw new PatchFormatException("No length specified");
-        }
-
-        return val;
-    }
-
-    /**
-     * Get value of name attribute.
-     *
-     * @param attrs attributes of operation node
-     * @return the value of the name  attribute
-     * @throws PatchFormatException If the name is missing
-     */
-    private String getNameFromAttr(final NamedNodeMap attrs)
-    throws PatchFormatException {
-
-        String val;
-        Node name = attrs.getNamedItem(DULConstants.NAME);
-        if (name != null) {
-            val = name.getNodeValue();
-        } else {
-            throw new PatchFormatException("No name specified");
-        }
-
-        return val;
-    }
-
-    /**
-     * Get value of namespace attribute.
-     * 
-     * Returns null if not existent, *does not* throw exception.
-     *
-     * @param attrs attributes of operation node
-     * @return the value of the name  attribute
-     */
-    private String getNameSpaceFromAttr(final NamedNodeMap attrs)
-    throws PatchFormatException {
-
-        String val;
-        Node name = attrs.getNamedItem(DULConstants.NAMESPACE);
-        if (name != null) {
-            val = name.getNodeValue();
-        } else {
-            val = null;
-        }
-
-        return val;
-    }
-    
     /**
      * Get the DOM Child Number equivalent of the XPath childnumber.
      *
@@ -230,98 +151,6 @@ public class DULPatch {
         return domIndex;
     }
 
-    /**
-     * Get the value associated with the operation node.
-     *
-     * Returns an empty sting if no value.
-     *
-     * @param op the operation node
-     * @throws PatchFormatException if there is an error parsing the node
-     * @return the string value of the node
-     */
-    private String getOpValue(final Node op) 
-        throws PatchFormatException {
-        
-        NodeList opKids = op.getChildNodes();
-
-        String value = "";
-        if (opKids.getLength() > 1) {
-            throw new PatchFormatException(
-                    "Unexpected children in insert operation");
-        } else if ((opKids.getLength() == 1)
-                && (DOMOps.isText(opKids.item(0)))) {
-            value = opKids.item(0).getNodeValue();
-        }
-
-        return value;
-    }
-
-    /**
-     * Get value of old_charpos attribute.
-     *
-     * Defaults to 1.
-     *
-     * @param opAttrs attributes of operation node
-     * @return the value of new_charpos
-     */
-    private int getOldCharPos(final NamedNodeMap opAttrs) {
-        
-        int oldCharPos = 1;
-
-        Node a = opAttrs.getNamedItem(DULConstants.OLD_CHARPOS);
-        if (a != null) {
-            oldCharPos = Integer.valueOf(a.getNodeValue());
-        }
-
-        return oldCharPos;
-    }
-
-    /**
-     * Get value of new_charpos attribute.
-     *
-     * Defaults to 1.
-     *
-     * @param opAttrs attributes of operation node
-     * @return the value of new_charpos
-     */
-    private int getNewCharPos(final NamedNodeMap opAttrs) {
-        
-        int newCharPos = 1;
-
-        Node a = opAttrs.getNamedItem(DULConstants.NEW_CHARPOS);
-        
-        if (a != null) {
-            newCharPos = Integer.valueOf(a.getNodeValue());
-        }
-
-        return newCharPos;
-    }
-
-    /**
-     * Get value of charpos attribute.
-     *
-     * Defaults to 1 if not present.
-     *
-     * @param opAttrs attributes of operation node
-     * @return the value of charpos
-     * @throws PatchFormatException for illegal charpos values
-     */
-    private int getCharPos(final NamedNodeMap opAttrs)
-    throws PatchFormatException {
-        
-        int charpos = 1;
-
-        Node a = opAttrs.getNamedItem(DULConstants.CHARPOS);
-        if (a != null) {
-            charpos = Integer.valueOf(a.getNodeValue());
-            if (charpos < 1) {
-                throw new PatchFormatException("charpos must be >= 1");
-            }
-        } 
-
-        return charpos;
-    }
-
     /**
      * Tests if previous node is a text node.
      *
@@ -469,35 +298,21 @@ public class DULPatch {
     }
     
     /**
-     * Get the DOM Child number of a node using "childno" attribute.
-     *
-     * If attribute doesn't exist, assumes childno = 1.
+     * Get the DOM Child number of a node from the XPath child number.
      *
-     * @param opAttrs  the attributes of the operation
+     * @param op       the operation
      * @param nodeType the nodeType to be inserted
      * @param siblings the siblings of the node
      * @return the DOM Child number of the node
      */
-    private int getDOMChildNo(final NamedNodeMap opAttrs,
-            final int nodeType, final NodeList siblings) 
-    throws PatchFormatException {
+    private int getDOMChildNo(final PatchOperation op,
+            final int nodeType, final NodeList siblings) {
         
-        // First XPath child is 1, first DOM is 0
-        int xpathcn = 1;
         int domcn = 0;
 
-        if (opAttrs.getNamedItem(DULConstants.CHILDNO) != null) {
-            try {
-                xpathcn = Integer.valueOf(opAttrs.getNamedItem(
-                            DULConstants.CHILDNO).getNodeValue());
-            } catch (NumberFormatException e) {
-                throw new PatchFormatException("Invalid childno", e);
-            }
-        }
-
         //Convert xpath childno to DOM childno
         if (nodeType != Node.ATTRIBUTE_NODE) {
-            domcn = getDOMChildNoFromXPath(siblings, xpathcn);
+            domcn = getDOMChildNoFromXPath(siblings, op.getChildNo());
         }
 
         return domcn;
@@ -507,53 +322,49 @@ public class DULPatch {
      * Apply insert operation to document.
      *
      * @param doc the document to be patched
-     * @param op  the insert operation node
-     * @throws PatchFormatException if there is an error parsing the op
+     * @param op  the insert operation
+     * @throws PatchFormatException if there is an error applying the op
      */
-    private void doInsert(final Document doc, final Node op) 
+    private void doInsert(final Document doc, final PatchOperation op) 
     throws PatchFormatException {
         
         Node ins;
 
-        //Get various variables need for insert
-        NamedNodeMap opAttrs = op.getAttributes();
-        int charpos = getCharPos(opAttrs);
-
-        //Element parent = null;
-        Node parentNode = getNamedParent(doc, opAttrs);
-        if (parentNode == null) {
-            throw new PatchFormatException(
-                    "Insert operation must specify valid parent.");
-        } 
-
+        Node parentNode = getNamedParent(doc, op);
+        touched(parentNode);
         NodeList siblings = parentNode.getChildNodes();
-        int nodeType = getNodeTypeFromAttr(opAttrs);
+        int nodeType = op.getNodeType();
+        int charpos = op.getCharPos();
 
-        int domcn = getDOMChildNo(opAttrs, nodeType, siblings);
+        int domcn = getDOMChildNo(op, nodeType, siblings);
 
         switch (nodeType) {
             case Node.TEXT_NODE:
 
-                ins = doc.createTextNode(getOpValue(op));
+                ins = doc.createTextNode(op.getValue());
                 insertNode(siblings, parentNode, domcn, charpos, ins, doc);
                 break;
 
             case Node.CDATA_SECTION_NODE:
                 
-                ins = doc.createCDATASection(getOpValue(op));
+                ins = doc.createCDATASection(op.getValue());
                 insertNode(siblings, parentNode, domcn, charpos, ins, doc);
                 break;
                 
             case Node.ELEMENT_NODE:
 
-                ins = doc.createElementNS(getNameSpaceFromAttr(opAttrs),
-                        getNameFromAttr(opAttrs));
+                if (op.getSubtree() == null) {
+                    ins = doc.createElementNS(op.getNamespace(), 
+                            op.getName());
+                } else {
+                    ins = importSubtree(doc, op.getSubtree(), parentNode);
+                }
                 insertNode(siblings, parentNode, domcn, charpos, ins, doc);
                 break;
 
             case Node.COMMENT_NODE:
 
-                ins = doc.createComment(getOpValue(op));
+                ins = doc.createComment(op.getValue());
                 insertNode(siblings, parentNode, domcn, charpos, ins, doc);
                 break;
 
@@ -562,27 +373,56 @@ public class DULPatch {
                 if (parentNode.getNodeType() != Node.ELEMENT_NODE) {
                     throw new PatchFormatException("Parent not an element");
                 }
-                ((Element) parentNode).setAttributeNS(
-                        getNameSpaceFromAttr(opAttrs),
-                        getNameFromAttr(opAttrs), getOpValue(op));
+                ((Element) parentNode).setAttributeNS(op.getNamespace(),
+                        op.getName(), op.getValue());
                 break;
             case Node.PROCESSING_INSTRUCTION_NODE:
                 
                 ins = doc.createProcessingInstruction(
-                        getNameFromAttr(opAttrs), getOpValue(op));
+                        op.getName(), op.getValue());
                 insertNode(siblings, parentNode, domcn, charpos, ins, doc);
                 break;
                 
-            case Node.DOCUMENT_TYPE_NODE:
-                
-                throw new PatchFormatException(
-                        "Cannot insert doctype nodes into existing documents");
-                
             default:
                 throw new PatchFormatException("Unknown NodeType " + nodeType);
         }
     }
 
+    /**
+     * Creates an element and its contents from the patch.
+     *
+     * Namespace declarations on the element that are already in scope at
+     * the parent are dropped, as they were only needed in the patch.
+     *
+     * @param doc the document being patched
+     * @param subtree the element in the patch
+     * @param parent the node the element will be inserted under
+     * @return the new element
+     */
+    private Node importSubtree(final Document doc, 
+            final PatchSubtree subtree, final Node parent) {
+
+        Element ret = (Element) subtree.create(doc);
+        NamedNodeMap attrs = ret.getAttributes();
+        for (int i = attrs.getLength() - 1; i >= 0; i--) {
+            Node attr = attrs.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(
+                    attr.getNamespaceURI())) {
+                String prefix = null;
+                if (attr.getPrefix() != null) {
+                    prefix = attr.getLocalName();
+                }
+                String inScope = parent.lookupNamespaceURI(prefix);
+                if (attr.getNodeValue().equals(
+                        inScope == null ? "" : inScope)) {
+                    ret.removeAttributeNode((Attr) attr);
+                }
+            }
+        }
+
+        return ret;
+    }
+
     /**
      * Delete the appropriate amount of text from a Node.
      * 
@@ -685,85 +525,75 @@ public class DULPatch {
     }
 
     /**
-     * Gets the node pointed to by the "parent" attribute.
+     * Gets the node pointed to by the parent of the operation.
      *
-     * @param doc     document being patched
-     * @param opAttrs attributes of operation node
-     * @throws PatchFormatException if there is an error parsing the attribute
-     * @return        node pointed to by "parent" attribute
+     * @param doc document being patched
+     * @param op  the operation
+     * @throws PatchFormatException if the parent doesn't exist
+     * @return    the parent node
      */
-    private Node getNamedParent(final Document doc, 
-            final NamedNodeMap opAttrs) throws PatchFormatException {
+    private Node getNamedParent(final Document doc, final PatchOperation op)
+    throws PatchFormatException {
         
-        String xPath;
-        Node n = opAttrs.getNamedItem(DULConstants.PARENT);
-        if (n != null) {
-            xPath = n.getNodeValue();
-        } else {
-            throw new PatchFormatException("No parent attribute");
-        }
-
-        Node ret = getNodeFromXPath(doc, xPath);
+        Node ret = resolve(doc, op.getParentPath());
         if (ret == null) {
             throw new PatchFormatException(
-                    "Failed to find parent node: " + xPath);
+                    "Failed to find parent node: " + op.getParent());
         }
         return ret;
     }
 
     /**
-     * Returns the node pointed to by a given xPath.
+     * Gets the node pointed to by the node of the operation.
      *
-     * @param doc   document being patched
-     * @param xPath xPath to the node
-     * @throws PatchFormatException if there is an error parsing the xpath
-     * @return      the node pointed to by the xPath
+     * @param doc document being patched
+     * @param op  the operation
+     * @throws PatchFormatException if there is an error evaluating the xpath
+     * @return    the node, or null if it doesn't exist
      */
-    private Node getNodeFromXPath(final Document doc, final String xPath) 
-    throws PatchFormatException {
+    private Node getNamedNode(final Document doc, final PatchOperation op) 
+        throws PatchFormatException {
 
-        Node n = null;
-        try {
-            //According to API returns *first* match,
-            //so should be first text node if text node matched
-            n = (Node) mXPath.evaluate(
-                    xPath,
-                    doc.getDocumentElement(), 
-                    XPathConstants.NODE);
-        } catch (XPathExpressionException e) {
-            throw new PatchFormatException(
-                    "Could not resolve XPath for node");
-        }
-        return n;
+        return resolve(doc, op.getNodePath());
     }
 
     /**
-     * Gets the node pointed to by the "node" attribute.
+     * Deletes text from a text node.
+     *
+     * Deletes to the end of the text if the operation doesn't give a length.
      *
-     * @param doc     document being patched
-     * @param opAttrs attributes of operation node
-     * @throws PatchFormatException if there is an error parsing the attribute
-     * @return        node pointed to by "node" attribute
+     * @param delNode the text node to delete text from
+     * @param charpos the character position at which to delete
+     * @param op      the operation
+     * @param doc     the document being deleted from
+     * @throws PatchFormatException if there is a problem with the patch
+     * @return A CDATA or text node with the deleted text
      */
-    private Node getNamedNode(final Document doc, final NamedNodeMap opAttrs) 
-        throws PatchFormatException {
+    private Node deleteText(final Node delNode, final int charpos, 
+            final PatchOperation op, final Document doc) 
+    throws PatchFormatException {
+
+        Node ret;
+        if (op.getLength() == PatchOperation.NO_LENGTH) {
+            ret = deleteText(delNode, charpos, doc);
+        } else {
+            ret = deleteText(delNode, charpos, op.getLength(), doc);
+        }
 
-        String xPath = opAttrs.getNamedItem(DULConstants.NODE).getNodeValue();
-        return getNodeFromXPath(doc, xPath);
+        return ret;
     }
 
     /**
      * Apply delete operation.
      *
      * @param doc document to be patched
-     * @param op  node holding details of delete
-     * @throws PatchFormatException if there is an error parsing the op
+     * @param op  the delete operation
+     * @throws PatchFormatException if there is an error applying the op
      */
-    private void doDelete(final Document doc, final Node op) 
+    private void doDelete(final Document doc, final PatchOperation op) 
     throws PatchFormatException {
 
-        NamedNodeMap opAttrs = op.getAttributes();
-        Node delNode = getNamedNode(doc, opAttrs);
+        Node delNode = getNamedNode(doc, op);
 
         if (delNode == null) {
             throw new PatchFormatException("Could not resolve XPath for node");
@@ -773,24 +603,10 @@ public class DULPatch {
             Attr delAttr = (Attr) delNode;
             delAttr.getOwnerElement().removeAttributeNode(delAttr);
         } else if (DOMOps.isText(delNode)) {
-            
-            //TODO Refactor - unnecessarily complex
-            int charpos = getCharPos(opAttrs);
-            boolean haveLength = true;
-            int length = 0;
-            
-            try {    
-                length = getLengthFromAttr(opAttrs);
-            } catch (PatchFormatException e) {
-                haveLength = false;
-            }
-            
-            if (haveLength) {
-                deleteText(delNode, charpos, length, doc);
-            } else {
-                deleteText(delNode, charpos, doc);
-            }
+            touched(delNode.getParentNode());
+            deleteText(delNode, op.getCharPos(), op, doc);
         } else {
+            touched(delNode.getParentNode());
             delNode.getParentNode().removeChild(delNode);
         }
     }
@@ -799,51 +615,91 @@ public class DULPatch {
      * Apply move operation.
      *
      * @param doc document to be patched
-     * @param op  node holding details of move
-     * @throws PatchFormatException if there is an error parsing the op
+     * @param op  the move operation
+     * @throws PatchFormatException if there is an error applying the op
      */
-    private void doMove(final Document doc, final Node op) 
+    private void doMove(final Document doc, final PatchOperation op) 
         throws PatchFormatException {
         
-        NamedNodeMap opAttrs = op.getAttributes();
-
-        Node moveNode = getNamedNode(doc, opAttrs);
+        Node moveNode = getNamedNode(doc, op);
         if (moveNode == null) {
             throw new PatchFormatException("Error applying patch.\n"
                     + "Node to move doesn't exist.");
         }
 
-        int oldCharPos = getOldCharPos(opAttrs);
-
         //Find position to move to
         //Get parent
-        Element parent = (Element) getNamedParent(doc, opAttrs);
+        Node parent = getNamedParent(doc, op);
+        if (parent.getNodeType() != Node.ELEMENT_NODE) {
+            throw new PatchFormatException("Parent not an element");
+        }
 
         NodeList newSiblings = parent.getChildNodes();
-        int domcn = getDOMChildNo(opAttrs, moveNode.getNodeType(), newSiblings);
-
-        //Get new charpos
-        int newCharPos = getNewCharPos(opAttrs);
+        int nodeType = moveNode.getNodeType();
+        touched(moveNode.getParentNode());
+        touched(parent);
 
         //Perform delete
         if (DOMOps.isText(moveNode)) {
-            Node text;
-            try {
-                int length = getLengthFromAttr(opAttrs);
-                text = deleteText(moveNode, oldCharPos, length, doc); 
-            } catch (PatchFormatException e) {
-                text = deleteText(moveNode, oldCharPos, doc);
-            }
-            moveNode = text;
+            moveNode = deleteText(moveNode, op.getOldCharPos(), op, doc);
         } else {
             moveNode = moveNode.getParentNode().removeChild(moveNode);
         }
-        
+
+        //The child number doesn't count the node being moved, so it must be
+        //resolved after the node has been removed
+        int domcn = getDOMChildNo(op, nodeType, newSiblings);
 
         //Perform insert
-        insertNode(newSiblings, parent, domcn, newCharPos, moveNode, doc);
+        insertNode(newSiblings, parent, domcn, op.getNewCharPos(), moveNode,
+                doc);
     }
   
+    /**
+     * Records that the children of a node are being changed.
+     *
+     * @param parent the node whose children are changed
+     */
+    private void touched(final Node parent) {
+
+        if (parent != null) {
+            mTouched.add(parent);
+        }
+    }
+
+    /**
+     * Normalizes the children of a node without descending into them.
+     *
+     * Adjacent text nodes are merged and empty text nodes are removed, as
+     * Node.normalize does.
+     *
+     * @param parent the node whose children are normalized
+     */
+    private void normalizeChildren(final Node parent) {
+
+        Node kid = parent.getFirstChild();
+        while (kid != null) {
+            Node next = kid.getNextSibling();
+            if (kid.getNodeType() == Node.TEXT_NODE) {
+                if (next != null && next.getNodeType() == Node.TEXT_NODE) {
+                    StringBuilder text = new StringBuilder(kid.getNodeValue());
+                    while (next != null 
+                            && next.getNodeType() == Node.TEXT_NODE) {
+                        text.append(next.getNodeValue());
+                        Node merged = next;
+                        next = next.getNextSibling();
+                        parent.removeChild(merged);
+                    }
+                    kid.setNodeValue(text.toString());
+                }
+                if (kid.getNodeValue().length() == 0) {
+                    parent.removeChild(kid);
+                }
+            }
+            kid = next;
+        }
+    }
+
     /**
      * Apply DUL patch to XML document.
      *
@@ -854,46 +710,50 @@ public class DULPatch {
     public final void apply(final Document doc, final Document patch) 
         throws PatchFormatException {
 
-        mXPath = XPathFactory.newInstance().newXPath();
-
-        NodeIterator ni = ((DocumentTraversal) patch).createNodeIterator(
-                patch.getDocumentElement(), NodeFilter.SHOW_ELEMENT,
-                null, false);
-
-        Node op = ni.nextNode();
+        apply(doc, new PatchPlan(patch));
+    }
 
-        //Check we have a delta
-        if (!op.getNodeName().equals(DULConstants.DELTA)) {
-            throw new PatchFormatException("All deltas must begin with a "
-                    + DULConstants.DELTA + " element.");
-        }
+    /**
+     * Apply a compiled DUL patch to XML document.
+     *
+     * @param doc  the XML document to be patched
+     * @param plan the compiled DUL patch
+     * @throws PatchFormatException if an operation can't be applied
+     */
+    public final void apply(final Document doc, final PatchPlan plan) 
+        throws PatchFormatException {
 
-        //Cycle through elements applying ops
-        op = ni.nextNode();
+        //Normalize essential for deletes to work
+        doc.normalize();
+        mTouched.clear();
 
-        while (op != null) {
-            //Normalize essential for deletes to work
-            doc.normalize();
-            String opName = op.getNodeName();
+        for (PatchOperation op : plan.getOperations()) {
+            //Only the children of nodes changed by the last operation can
+            //have become unnormalized
+            for (Node parent : mTouched) {
+                normalizeChildren(parent);
+            }
+            mTouched.clear();
 
             try {
-                if (opName.equals(DULConstants.UPDATE)) {
-                    doUpdate(doc, op);
-                } else if (opName.equals(DULConstants.INSERT)) {
-                    doInsert(doc, op);
-                } else if (opName.equals(DULConstants.DELETE)) {
-                    doDelete(doc, op);
-                } else if (opName.equals(DULConstants.MOVE)) {
-                    doMove(doc, op);
-                } else {
-                    throw new PatchFormatException(
-                            "Invalid element: " + opName);
+                switch (op.getType()) {
+                    case UPDATE:
+                        doUpdate(doc, op);
+                        break;
+                    case INSERT:
+                        doInsert(doc, op);
+                        break;
+                    case DELETE:
+                        doDelete(doc, op);
+                        break;
+                    default:
+                        doMove(doc, op);
                 }
 
                 if (PatchXML.debug) {
                     try {
                         System.err.print("At operation: ");
-                        System.err.println(DOMOps.getNodeAsStringDeep(op));
+                        System.err.println(op);
                         System.err.println("Result: ");
                         DOMOps.outputXML(doc, System.err);
                         System.err.println();
@@ -905,10 +765,8 @@ public class DULPatch {
                 }
             } catch (PatchFormatException e) {
                 throw new PatchFormatException(
-                        "Error at operation:\n"
-                        + DOMOps.getNodeAsStringDeep(op), e);
+                        "Error at operation:\n" + op, e);
             }
-            op = ni.nextNode();
         }
     }
 
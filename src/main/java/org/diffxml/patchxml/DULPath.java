@@ -0,0 +1,270 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.patchxml;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.diffxml.diffxml.DOMOps;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * A path to a node in a DUL delta.
+ * 
+ * DUL deltas are written with paths of the form /node()[1]/node()[2]/@attr,
+ * which are resolved by walking the children of each node directly. As in 
+ * XPath, adjacent text nodes count as a single child and doctypes aren't
+ * counted. Any other path is handed to JAXP XPath.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+final class DULPath {
+
+    /**
+     * Start of a child step.
+     */
+    private static final String NODE_STEP = "/node()[";
+
+    /**
+     * Start of an attribute step.
+     */
+    private static final String ATTR_STEP = "/@";
+
+    /**
+     * The path as written in the delta.
+     */
+    private final String mPath;
+
+    /**
+     * The XPath child numbers of each step, null if not a DUL path.
+     */
+    private final int[] mSteps;
+
+    /**
+     * Name of the attribute at the end of the path, may be null.
+     */
+    private final String mAttr;
+
+    /**
+     * Parses a path.
+     * 
+     * @param path The path as written in the delta
+     * @param xpath Used to check paths that aren't DUL paths
+     * @throws PatchFormatException If the path isn't a valid XPath
+     */
+    DULPath(final String path, final XPath xpath) 
+    throws PatchFormatException {
+
+        mPath = path;
+        mSteps = parseSteps(path);
+
+        if (mSteps == null) {
+            mAttr = null;
+            try {
+                xpath.compile(path);
+            } catch (XPathExpressionException e) {
+                throw new PatchFormatException("Invalid XPath: " + path, e);
+            }
+        } else {
+            int attr = path.indexOf(ATTR_STEP);
+            if (attr >= 0) {
+                mAttr = path.substring(attr + ATTR_STEP.length());
+            } else {
+                mAttr = null;
+            }
+        }
+    }
+
+    /**
+     * Parses the child numbers of a DUL path.
+     * 
+     * @param path The path
+     * @return The child numbers, or null if the path isn't a DUL path
+     */
+    private static int[] parseSteps(final String path) {
+
+        int count = 0;
+        int[] steps = new int[path.length() / NODE_STEP.length() + 1];
+        int pos = 0;
+        boolean valid = true;
+
+        if (path.equals("/")) {
+            pos = path.length();
+        }
+
+        while (valid && pos < path.length()) {
+            if (path.startsWith(NODE_STEP, pos)) {
+                pos += NODE_STEP.length();
+                int value = 0;
+                int start = pos;
+                while (pos < path.length() && pos - start < 9 
+                        && Character.isDigit(path.charAt(pos))) {
+                    value = value * 10 + (path.charAt(pos) - '0');
+                    pos++;
+                }
+                valid = (pos > start && pos < path.length()
+                        && path.charAt(pos) == ']');
+                steps[count++] = value;
+                pos++;
+            } else {
+                valid = (count > 0 && path.startsWith(ATTR_STEP, pos)
+                        && isName(path, pos + ATTR_STEP.length()));
+                pos = path.length();
+            }
+        }
+
+        int[] ret = null;
+        if (valid) {
+            ret = new int[count];
+            System.arraycopy(steps, 0, ret, 0, count);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Tests if the end of a string is a plain attribute name.
+     * 
+     * @param path The string
+     * @param start Where the name starts
+     * @return True if the name is non-empty and can't be an XPath expression
+     */
+    private static boolean isName(final String path, final int start) {
+
+        boolean ret = start < path.length();
+        for (int i = start; ret && i < path.length(); i++) {
+            char c = path.charAt(i);
+            ret = Character.isLetterOrDigit(c) || c == '_' || c == '-'
+                || c == '.' || c == ':';
+        }
+
+        return ret;
+    }
+
+    /**
+     * Determines whether a node starts a new XPath step.
+     *
+     * @param n The node
+     * @param prev The sibling before n, may be null
+     * @return true if n is counted as a child in XPath
+     */
+    private static boolean isStep(final Node n, final Node prev) {
+
+        return !((DOMOps.isText(n) && DOMOps.isText(prev))
+                || n.getNodeType() == Node.DOCUMENT_TYPE_NODE);
+    }
+
+    /**
+     * Gets the child at the given XPath child number.
+     * 
+     * For a run of text nodes, the first text node is returned.
+     * 
+     * @param parent The parent node
+     * @param childNo The XPath child number
+     * @return The child, or null if there is no such child
+     */
+    private static Node getChild(final Node parent, final int childNo) {
+
+        Node ret = null;
+        int count = 0;
+        Node prev = null;
+        for (Node kid = parent.getFirstChild(); kid != null && ret == null;
+                kid = kid.getNextSibling()) {
+            if (isStep(kid, prev)) {
+                count++;
+                if (count == childNo) {
+                    ret = kid;
+                }
+            }
+            prev = kid;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Whether the path is resolved without XPath.
+     * 
+     * @return True if the path is a DUL path
+     */
+    boolean isDULPath() {
+        return mSteps != null;
+    }
+
+    /**
+     * Finds the node the path points to.
+     * 
+     * Paths that aren't DUL paths are evaluated with the given XPath, so 
+     * the path can be shared by threads with an XPath each.
+     * 
+     * @param doc The document being patched
+     * @param xpath Used to evaluate paths that aren't DUL paths, may be null
+     * for DUL paths
+     * @return The node, or null if it doesn't exist
+     * @throws PatchFormatException If the XPath can't be evaluated
+     */
+    Node resolve(final Document doc, final XPath xpath) 
+    throws PatchFormatException {
+
+        Node ret;
+        if (mSteps == null) {
+            try {
+                ret = (Node) xpath.evaluate(mPath, doc.getDocumentElement(), 
+                        XPathConstants.NODE);
+            } catch (XPathExpressionException e) {
+                throw new PatchFormatException(
+                        "Could not resolve XPath for node");
+            }
+        } else {
+            ret = doc;
+            for (int i = 0; i < mSteps.length && ret != null; i++) {
+                ret = getChild(ret, mSteps[i]);
+            }
+            if (mAttr != null && ret != null) {
+                //Namespace declarations aren't attributes in XPath
+                if (ret.getNodeType() == Node.ELEMENT_NODE
+                        && !mAttr.equals("xmlns")
+                        && !mAttr.startsWith("xmlns:")) {
+                    ret = ret.getAttributes().getNamedItem(mAttr);
+                } else {
+                    ret = null;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the path as written in the delta.
+     * 
+     * @return The path
+     */
+    @Override
+    public String toString() {
+        return mPath;
+    }
+}
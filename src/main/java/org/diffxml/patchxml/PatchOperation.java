@@ -0,0 +1,621 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.patchxml;
+
+import javax.xml.xpath.XPath;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.dul.DULConstants;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A single operation from a DUL delta, parsed and validated.
+ * 
+ * All the attributes of the operation are read and checked when it is
+ * compiled, so applying it doesn't need to look at the delta again.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public final class PatchOperation {
+
+    /**
+     * The kinds of operation in a DUL delta.
+     */
+    public enum Type {
+
+        /** Insert operation. **/
+        INSERT,
+
+        /** Delete operation. **/
+        DELETE,
+
+        /** Move operation. **/
+        MOVE,
+
+        /** Update operation. **/
+        UPDATE
+    }
+
+    /**
+     * Value used for the length when no length was given.
+     */
+    static final int NO_LENGTH = -1;
+
+    /**
+     * The kind of operation.
+     */
+    private final Type mType;
+
+    /**
+     * The operation as written in the delta, used when reporting errors.
+     */
+    private final String mSource;
+
+    /**
+     * XPath of the node operated on.
+     */
+    private final String mNode;
+
+    /**
+     * Parsed path of the node operated on.
+     */
+    private final DULPath mNodePath;
+
+    /**
+     * XPath of the parent the node is placed under.
+     */
+    private final String mParent;
+
+    /**
+     * Parsed path of the parent the node is placed under.
+     */
+    private final DULPath mParentPath;
+
+    /**
+     * DOM type of the inserted node.
+     */
+    private final int mNodeType;
+
+    /**
+     * XPath child number of the node under the parent.
+     */
+    private final int mChildNo;
+
+    /**
+     * Character position of inserted or deleted text.
+     */
+    private final int mCharPos;
+
+    /**
+     * Character position of moved text in its old parent.
+     */
+    private final int mOldCharPos;
+
+    /**
+     * Character position of moved text in its new parent.
+     */
+    private final int mNewCharPos;
+
+    /**
+     * Number of characters deleted or moved, or NO_LENGTH.
+     */
+    private final int mLength;
+
+    /**
+     * Name of the inserted node.
+     */
+    private final String mName;
+
+    /**
+     * Namespace of the inserted or updated node.
+     */
+    private final String mNamespace;
+
+    /**
+     * The value of the inserted node or the new value of an updated node.
+     */
+    private final String mValue;
+
+    /**
+     * A copy of the inserted element with its contents, or null if only the
+     * element is inserted.
+     */
+    private final PatchSubtree mSubtree;
+
+    /**
+     * Parses and validates an operation element.
+     * 
+     * @param op The operation element
+     * @param xpath Used to compile paths that aren't plain DUL paths
+     * @throws PatchFormatException If the operation is malformed
+     */
+    PatchOperation(final Element op, final XPath xpath) 
+    throws PatchFormatException {
+        
+        mSource = describe(op);
+        mType = getType(op);
+        NamedNodeMap attrs = op.getAttributes();
+
+        for (Node kid = op.getFirstChild(); kid != null; 
+                kid = kid.getNextSibling()) {
+            if (kid.getNodeType() == Node.ELEMENT_NODE 
+                    && mType != Type.INSERT) {
+                throw new PatchFormatException(
+                        "Unexpected children in operation");
+            }
+        }
+
+        boolean hasNode = (mType != Type.INSERT);
+        boolean hasParent = (mType == Type.INSERT || mType == Type.MOVE);
+
+        if (hasNode) {
+            mNode = getRequiredAttr(attrs, DULConstants.NODE, "node");
+            mNodePath = new DULPath(mNode, xpath);
+        } else {
+            mNode = null;
+            mNodePath = null;
+        }
+
+        if (hasParent) {
+            mParent = getRequiredAttr(attrs, DULConstants.PARENT, "parent");
+            mParentPath = new DULPath(mParent, xpath);
+            mChildNo = getIntAttr(attrs, DULConstants.CHILDNO, 1, 
+                    Integer.MIN_VALUE);
+        } else {
+            mParent = null;
+            mParentPath = null;
+            mChildNo = 1;
+        }
+
+        mNamespace = getAttr(attrs, DULConstants.NAMESPACE);
+
+        if (mType == Type.INSERT || mType == Type.DELETE) {
+            mCharPos = getIntAttr(attrs, DULConstants.CHARPOS, 1, 1);
+        } else {
+            mCharPos = 1;
+        }
+
+        if (mType == Type.MOVE) {
+            mOldCharPos = getIntAttr(attrs, DULConstants.OLD_CHARPOS, 1, 1);
+            mNewCharPos = getIntAttr(attrs, DULConstants.NEW_CHARPOS, 1, 1);
+        } else {
+            mOldCharPos = 1;
+            mNewCharPos = 1;
+        }
+
+        if (mType == Type.DELETE || mType == Type.MOVE) {
+            mLength = getIntAttr(attrs, DULConstants.LENGTH, NO_LENGTH, 1);
+        } else {
+            mLength = NO_LENGTH;
+        }
+
+        if (mType == Type.INSERT) {
+            mNodeType = getIntAttr(attrs, DULConstants.NODETYPE, 0, 
+                    Integer.MIN_VALUE);
+            checkInsert(attrs);
+            if (needsName(mNodeType)) {
+                mName = getRequiredAttr(attrs, DULConstants.NAME, "name");
+            } else {
+                mName = null;
+            }
+            if (mNodeType == Node.ELEMENT_NODE) {
+                mSubtree = getSubtree(op);
+                mValue = "";
+            } else {
+                mSubtree = null;
+                mValue = getOpValue(op);
+            }
+        } else {
+            mNodeType = 0;
+            mName = null;
+            mValue = op.getTextContent();
+            mSubtree = null;
+        }
+    }
+
+    /**
+     * Describes an operation element as it was written in the delta.
+     * 
+     * Elements inside the operation are abbreviated to their names.
+     * 
+     * @param op The operation element
+     * @return The operation as a string
+     */
+    private static String describe(final Element op) {
+
+        StringBuilder ret = new StringBuilder();
+        ret.append('<').append(op.getNodeName());
+        NamedNodeMap attrs = op.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            ret.append(' ').append(attrs.item(i).getNodeName()).append("=\"");
+            appendEscaped(ret, attrs.item(i).getNodeValue());
+            ret.append('"');
+        }
+
+        if (op.hasChildNodes()) {
+            ret.append('>');
+            for (Node kid = op.getFirstChild(); kid != null; 
+                    kid = kid.getNextSibling()) {
+                if (kid.getNodeType() == Node.ELEMENT_NODE) {
+                    ret.append('<').append(kid.getNodeName()).append(">...</")
+                        .append(kid.getNodeName()).append('>');
+                } else {
+                    appendEscaped(ret, kid.getTextContent());
+                }
+            }
+            ret.append("</").append(op.getNodeName()).append('>');
+        } else {
+            ret.append("/>");
+        }
+
+        return ret.toString();
+    }
+
+    /**
+     * Appends text with the characters that are special in XML escaped.
+     * 
+     * @param sb The buffer to append to
+     * @param text The text to append
+     */
+    private static void appendEscaped(final StringBuilder sb, 
+            final String text) {
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Gets the type of an operation from its element name.
+     * 
+     * @param op The operation element
+     * @return The type of the operation
+     * @throws PatchFormatException If the element isn't an operation
+     */
+    private static Type getType(final Element op) 
+    throws PatchFormatException {
+
+        Type ret;
+        String opName = op.getNodeName();
+        if (opName.equals(DULConstants.UPDATE)) {
+            ret = Type.UPDATE;
+        } else if (opName.equals(DULConstants.INSERT)) {
+            ret = Type.INSERT;
+        } else if (opName.equals(DULConstants.DELETE)) {
+            ret = Type.DELETE;
+        } else if (opName.equals(DULConstants.MOVE)) {
+            ret = Type.MOVE;
+        } else {
+            throw new PatchFormatException("Invalid element: " + opName);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Checks the node type of an insert operation can be inserted.
+     * 
+     * @param attrs attributes of operation node
+     * @throws PatchFormatException If the node type is missing or invalid
+     */
+    private void checkInsert(final NamedNodeMap attrs) 
+    throws PatchFormatException {
+
+        if (attrs.getNamedItem(DULConstants.NODETYPE) == null) {
+            throw new PatchFormatException("No nodetype specified");
+        }
+
+        switch (mNodeType) {
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+            case Node.ELEMENT_NODE:
+            case Node.COMMENT_NODE:
+            case Node.ATTRIBUTE_NODE:
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                break;
+            case Node.DOCUMENT_TYPE_NODE:
+                throw new PatchFormatException(
+                        "Cannot insert doctype nodes into existing documents");
+            default:
+                throw new PatchFormatException("Unknown NodeType " + mNodeType);
+        }
+    }
+
+    /**
+     * Tests if an inserted node of the given type needs a name.
+     * 
+     * @param nodeType The DOM type of the inserted node
+     * @return True if the name attribute is required
+     */
+    private static boolean needsName(final int nodeType) {
+
+        return (nodeType == Node.ELEMENT_NODE
+                || nodeType == Node.ATTRIBUTE_NODE
+                || nodeType == Node.PROCESSING_INSTRUCTION_NODE);
+    }
+
+    /**
+     * Gets the value of an attribute of the operation.
+     * 
+     * @param attrs attributes of operation node
+     * @param name name of the attribute
+     * @return the value of the attribute or null if it doesn't exist
+     */
+    private static String getAttr(final NamedNodeMap attrs, 
+            final String name) {
+
+        String ret = null;
+        Node a = attrs.getNamedItem(name);
+        if (a != null) {
+            ret = a.getNodeValue();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the value of an attribute that must be present.
+     * 
+     * @param attrs attributes of operation node
+     * @param name name of the attribute
+     * @param desc description of the attribute for errors
+     * @return the value of the attribute
+     * @throws PatchFormatException If the attribute is missing
+     */
+    private static String getRequiredAttr(final NamedNodeMap attrs, 
+            final String name, final String desc) 
+    throws PatchFormatException {
+
+        String ret = getAttr(attrs, name);
+        if (ret == null) {
+            throw new PatchFormatException("No " + desc + " attribute");
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the value of an integer attribute.
+     * 
+     * @param attrs attributes of operation node
+     * @param name name of the attribute
+     * @param def value to return if the attribute doesn't exist
+     * @param min smallest legal value
+     * @return the value of the attribute
+     * @throws PatchFormatException If the value is malformed or too small
+     */
+    private static int getIntAttr(final NamedNodeMap attrs, final String name,
+            final int def, final int min) throws PatchFormatException {
+
+        int ret = def;
+        String val = getAttr(attrs, name);
+        if (val != null) {
+            try {
+                ret = Integer.parseInt(val);
+            } catch (NumberFormatException e) {
+                throw new PatchFormatException("Invalid " + name, e);
+            }
+            if (ret < min) {
+                throw new PatchFormatException(name + " must be >= " + min);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the value associated with the operation node.
+     *
+     * Returns an empty sting if no value.
+     *
+     * @param op the operation node
+     * @throws PatchFormatException if there is an error parsing the node
+     * @return the string value of the node
+     */
+    private static String getOpValue(final Node op) 
+    throws PatchFormatException {
+
+        Node kid = op.getFirstChild();
+
+        String ret = "";
+        if (kid != null && kid.getNextSibling() != null) {
+            throw new PatchFormatException(
+                    "Unexpected children in insert operation");
+        } else if (kid != null && DOMOps.isText(kid)) {
+            ret = kid.getNodeValue();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Gets the element inserted with its contents by an operation.
+     *
+     * The element must be the only child of the operation, apart from
+     * whitespace, and must have the name and namespace of the operation.
+     *
+     * @param op the operation node
+     * @throws PatchFormatException if the children are malformed
+     * @return a copy of the element, or null if the operation has no element
+     * child
+     */
+    private PatchSubtree getSubtree(final Node op) 
+    throws PatchFormatException {
+
+        Node element = null;
+        for (Node kid = op.getFirstChild(); kid != null; 
+                kid = kid.getNextSibling()) {
+            if (kid.getNodeType() == Node.ELEMENT_NODE && element == null) {
+                element = kid;
+            } else if (!(kid.getNodeType() == Node.TEXT_NODE
+                    && kid.getNodeValue().trim().length() == 0)) {
+                throw new PatchFormatException(
+                        "Unexpected children in insert operation");
+            }
+        }
+
+        PatchSubtree ret = null;
+        if (element != null) {
+            //Copied so later changes to the delta don't affect the plan
+            ret = new PatchSubtree(element);
+            if (!ret.hasName(mName, mNamespace)) {
+                throw new PatchFormatException(
+                        "Inserted element doesn't match name");
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The kind of operation
+     */
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * @return XPath of the node operated on, null for inserts
+     */
+    public String getNode() {
+        return mNode;
+    }
+
+    /**
+     * @return Parsed path of the node operated on, null for inserts
+     */
+    DULPath getNodePath() {
+        return mNodePath;
+    }
+
+    /**
+     * @return XPath of the parent, null for deletes and updates
+     */
+    public String getParent() {
+        return mParent;
+    }
+
+    /**
+     * @return Parsed path of the parent, null for deletes and updates
+     */
+    DULPath getParentPath() {
+        return mParentPath;
+    }
+
+    /**
+     * @return DOM type of the inserted node, 0 if not an insert
+     */
+    public int getNodeType() {
+        return mNodeType;
+    }
+
+    /**
+     * @return XPath child number under the parent, defaults to 1
+     */
+    public int getChildNo() {
+        return mChildNo;
+    }
+
+    /**
+     * @return Character position of inserted or deleted text
+     */
+    public int getCharPos() {
+        return mCharPos;
+    }
+
+    /**
+     * @return Character position of moved text in its old parent
+     */
+    public int getOldCharPos() {
+        return mOldCharPos;
+    }
+
+    /**
+     * @return Character position of moved text in its new parent
+     */
+    public int getNewCharPos() {
+        return mNewCharPos;
+    }
+
+    /**
+     * @return Number of characters deleted or moved, or -1 for all the 
+     * remaining text
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return Name of the inserted node, null if it has no name
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return Namespace of the inserted or updated node, may be null
+     */
+    public String getNamespace() {
+        return mNamespace;
+    }
+
+    /**
+     * @return The value of the inserted node or new value of updated node
+     */
+    public String getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return The inserted element with its contents, or null
+     */
+    PatchSubtree getSubtree() {
+        return mSubtree;
+    }
+
+    /**
+     * Returns the operation as it appeared in the delta.
+     * 
+     * @return String representation of the operation
+     */
+    @Override
+    public String toString() {
+        return mSource;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.patchxml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.dul.DULConstants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A DUL delta compiled into a list of operations.
+ * 
+ * The delta is parsed and validated once, after which the plan can be 
+ * applied to any number of documents with DULPatch. A plan holds no DOM 
+ * nodes and is never changed, so can be applied by several threads at once,
+ * each with its own DULPatch.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public final class PatchPlan {
+
+    /**
+     * The operations of the delta, in order.
+     */
+    private final List<PatchOperation> mOperations;
+
+    /**
+     * Compiles a DUL delta.
+     * 
+     * @param patch The DUL delta
+     * @throws PatchFormatException If the delta is malformed
+     */
+    public PatchPlan(final Document patch) throws PatchFormatException {
+        this(patch, XPathFactory.newInstance().newXPath());
+    }
+
+    /**
+     * Compiles a DUL delta, using the given XPath for paths that can't be 
+     * resolved natively.
+     * 
+     * The XPath is only used while compiling, so can be reused afterwards.
+     * 
+     * @param patch The DUL delta
+     * @param xpath The XPath used to compile paths
+     * @throws PatchFormatException If the delta is malformed
+     */
+    public PatchPlan(final Document patch, final XPath xpath) 
+    throws PatchFormatException {
+
+        Element delta = patch.getDocumentElement();
+
+        //Check we have a delta
+        if (delta == null 
+                || !delta.getNodeName().equals(DULConstants.DELTA)) {
+            throw new PatchFormatException("All deltas must begin with a "
+                    + DULConstants.DELTA + " element.");
+        }
+
+        List<PatchOperation> ops = new ArrayList<PatchOperation>();
+        for (Node op = delta.getFirstChild(); op != null; 
+                op = op.getNextSibling()) {
+            if (op.getNodeType() == Node.ELEMENT_NODE) {
+                try {
+                    ops.add(new PatchOperation((Element) op, xpath));
+                } catch (PatchFormatException e) {
+                    throw new PatchFormatException(
+                            "Error at operation:\n"
+                            + DOMOps.getNodeAsStringDeep(op), e);
+                }
+            }
+        }
+
+        mOperations = Collections.unmodifiableList(ops);
+    }
+
+    /**
+     * Returns the operations of the delta.
+     * 
+     * @return Unmodifiable list of the operations in order
+     */
+    public List<PatchOperation> getOperations() {
+        return mOperations;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+
+package org.diffxml.patchxml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * An element inserted with its contents by a patch, held as plain values.
+ * 
+ * The nodes are copied out of the delta when the plan is compiled and 
+ * created afresh in the patched document each time the plan is applied.
+ * Unlike a DOM node, which can change its internal caches when read, a 
+ * PatchSubtree is never changed after it is made, so several threads can
+ * apply the same plan at once.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+final class PatchSubtree {
+
+    /**
+     * DOM type of the node.
+     */
+    private final short mType;
+
+    /**
+     * Namespace of an element.
+     */
+    private final String mNamespace;
+
+    /**
+     * Qualified name of an element or entity reference, or target of a
+     * processing instruction.
+     */
+    private final String mName;
+
+    /**
+     * Content of a text, CDATA, comment or processing instruction node.
+     */
+    private final String mValue;
+
+    /**
+     * Namespace of each attribute of an element.
+     */
+    private final String[] mAttrNamespaces;
+
+    /**
+     * Qualified name of each attribute of an element.
+     */
+    private final String[] mAttrNames;
+
+    /**
+     * Value of each attribute of an element.
+     */
+    private final String[] mAttrValues;
+
+    /**
+     * The children of an element, in order.
+     */
+    private final PatchSubtree[] mChildren;
+
+    /**
+     * Copies a node and its contents.
+     * 
+     * @param n The node to copy
+     * @throws PatchFormatException If the node can't be inserted by a patch
+     */
+    PatchSubtree(final Node n) throws PatchFormatException {
+
+        mType = n.getNodeType();
+        switch (mType) {
+            case Node.ELEMENT_NODE:
+                mNamespace = n.getNamespaceURI();
+                mName = n.getNodeName();
+                mValue = null;
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                mNamespace = null;
+                mName = n.getNodeName();
+                mValue = null;
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                mNamespace = null;
+                mName = n.getNodeName();
+                mValue = n.getNodeValue();
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE:
+                mNamespace = null;
+                mName = null;
+                mValue = n.getNodeValue();
+                break;
+            default:
+                throw new PatchFormatException(
+                        "Unexpected node in inserted element: " 
+                        + n.getNodeName());
+        }
+
+        int noAttrs = 0;
+        NamedNodeMap attrs = null;
+        if (mType == Node.ELEMENT_NODE) {
+            attrs = n.getAttributes();
+            noAttrs = attrs.getLength();
+        }
+        mAttrNamespaces = new String[noAttrs];
+        mAttrNames = new String[noAttrs];
+        mAttrValues = new String[noAttrs];
+        for (int i = 0; i < noAttrs; i++) {
+            Node attr = attrs.item(i);
+            mAttrNamespaces[i] = attr.getNamespaceURI();
+            mAttrNames[i] = attr.getNodeName();
+            mAttrValues[i] = attr.getNodeValue();
+        }
+
+        //Entity references get their contents from the patched document
+        int noKids = 0;
+        if (mType == Node.ELEMENT_NODE) {
+            noKids = n.getChildNodes().getLength();
+        }
+        mChildren = new PatchSubtree[noKids];
+        int i = 0;
+        for (Node kid = n.getFirstChild(); i < noKids; 
+                kid = kid.getNextSibling()) {
+            mChildren[i++] = new PatchSubtree(kid);
+        }
+    }
+
+    /**
+     * Checks if the element has the given name and namespace.
+     * 
+     * @param name The local name
+     * @param namespace The namespace, null or empty for none
+     * @return True if the element has the name and namespace
+     */
+    boolean hasName(final String name, final String namespace) {
+
+        String localName = mName.substring(mName.indexOf(':') + 1);
+        return localName.equals(name)
+            && (mNamespace == null ? "" : mNamespace).equals(
+                    namespace == null ? "" : namespace);
+    }
+
+    /**
+     * Creates the node and its contents in a document.
+     * 
+     * @param doc The document to create the nodes in
+     * @return The new node, not yet inserted in the document
+     */
+    Node create(final Document doc) {
+
+        Node ret;
+        switch (mType) {
+            case Node.ELEMENT_NODE:
+                Element el = doc.createElementNS(mNamespace, mName);
+                for (int i = 0; i < mAttrNames.length; i++) {
+                    el.setAttributeNS(mAttrNamespaces[i], mAttrNames[i], 
+                            mAttrValues[i]);
+                }
+                for (PatchSubtree kid : mChildren) {
+                    el.appendChild(kid.create(doc));
+                }
+                ret = el;
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                ret = doc.createEntityReference(mName);
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ret = doc.createProcessingInstruction(mName, mValue);
+                break;
+            case Node.TEXT_NODE:
+                ret = doc.createTextNode(mValue);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                ret = doc.createCDATASection(mValue);
+                break;
+            default:
+                ret = doc.createComment(mValue);
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.diffxml.patchxml.PatchFormatException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Test the DiffEngine class.
+ *
+ * @author Adrian Mouat
+ *
+ */
+public class DiffEngineTest {
+
+    /**
+     * Original document used in the tests.
+     */
+    private static final String DOC1 = 
+        "<a><b>text</b><c x=\"1\"/><d/></a>";
+
+    /**
+     * Modified document used in the tests.
+     */
+    private static final String DOC2 = 
+        "<a><c x=\"2\"/><b>text</b><e>new</e></a>";
+
+    /**
+     * Parses a string with the engine.
+     *
+     * @param engine The engine to parse with
+     * @param xml The XML to parse
+     * @return The parsed document
+     * @throws Exception If the XML can't be parsed
+     */
+    private static Document parse(final DiffEngine engine, final String xml) 
+    throws Exception {
+        return engine.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    /**
+     * Writes a document to a string with the engine.
+     *
+     * @param engine The engine to write with
+     * @param doc The document to write
+     * @return The serialized document
+     * @throws IOException If the document can't be written
+     */
+    private static String write(final DiffEngine engine, final Document doc)
+    throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        engine.write(doc, os, false);
+        return os.toString("UTF-8");
+    }
+
+    /**
+     * Patching the original with the delta should give the modified 
+     * document, using the pooled objects more than once.
+     */
+    @Test
+    public final void testRoundTrip() {
+
+        DiffEngine engine = new DiffEngine(new DiffOptions.Builder().build());
+        try {
+            for (int i = 0; i < 3; i++) {
+                Document delta = engine.diff(parse(engine, DOC1), 
+                        parse(engine, DOC2));
+                Document doc = parse(engine, DOC1);
+                engine.patch(doc, delta);
+                assertEquals(write(engine, parse(engine, DOC2)), 
+                        write(engine, doc));
+            }
+        } catch (Exception e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Output should be the same as DOMOps.outputXML.
+     */
+    @Test
+    public final void testWrite() {
+
+        DiffEngine engine = new DiffEngine();
+        Document doc = TestDocHelper.createDocument(DOC1);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            DOMOps.outputXMLIndented(doc, os);
+            engine.write(doc, new ByteArrayOutputStream(), false);
+            ByteArrayOutputStream indented = new ByteArrayOutputStream();
+            engine.write(doc, indented, true);
+            assertEquals(os.toString("UTF-8"), indented.toString("UTF-8"));
+        } catch (IOException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Malformed deltas should be rejected.
+     */
+    @Test
+    public final void testInvalidPatch() {
+
+        DiffEngine engine = new DiffEngine();
+        Document doc = TestDocHelper.createDocument(DOC1);
+        Document patch = TestDocHelper.createDocument(
+                "<delta><delete/></delta>");
+        try {
+            engine.patch(doc, patch);
+            fail("Expected PatchFormatException");
+        } catch (PatchFormatException e) {
+            assertTrue(e.getMessage().startsWith("Error at operation"));
+        }
+    }
+
+    /**
+     * Diffing files with the pooled parsers should give the same delta as
+     * parsing them first, each time the engine is used.
+     */
+    @Test
+    public final void testDiffFiles() {
+
+        DiffEngine engine = new DiffEngine(new DiffOptions.Builder().build());
+        File file1 = new File("src/test/resources/suite/1A.xml");
+        File file2 = new File("src/test/resources/suite/1B.xml");
+        try {
+            String expected = write(engine, engine.diff(
+                    engine.parse(file1), engine.parse(file2)));
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected, 
+                        write(engine, engine.diff(file1, file2)));
+            }
+        } catch (Exception e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * A single engine can be shared by several threads.
+     */
+    @Test
+    public final void testSharedEngine() {
+
+        final DiffEngine engine = new DiffEngine();
+        final boolean[] failed = new boolean[1];
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        try {
+                            Document doc = parse(engine, DOC1);
+                            engine.patch(doc, engine.diff(
+                                    parse(engine, DOC1), 
+                                    parse(engine, DOC2)));
+                            if (!write(engine, doc).equals(
+                                    write(engine, parse(engine, DOC2)))) {
+                                failed[0] = true;
+                            }
+                        } catch (Exception e) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            fail("Interrupted");
+        }
+        assertFalse(failed[0]);
+    }
+}
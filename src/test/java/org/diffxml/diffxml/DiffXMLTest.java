@@ -25,16 +25,23 @@ package org.diffxml.diffxml;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.diffxml.diffxml.fmes.Fmes;
 import org.diffxml.diffxml.fmes.ParserInitialisationException;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
@@ -96,4 +103,145 @@ public class DiffXMLTest {
             //Expected flow
         }
     }
+
+    /**
+     * Diffs with different options can run at the same time.
+     */
+    @Test
+    public final void testConcurrentOptions() {
+
+        final DiffOptions ignoreCase = new DiffOptions.Builder()
+            .setIgnoreCase(true).build();
+        final DiffOptions plain = new DiffOptions.Builder().build();
+        final boolean[] failed = new boolean[1];
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final DiffOptions options = (i % 2 == 0) ? ignoreCase : plain;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        Document doc1 = TestDocHelper.createDocument(
+                                "<a><b>Text</b></a>");
+                        Document doc2 = TestDocHelper.createDocument(
+                                "<a><b>TEXT</b></a>");
+                        try {
+                            boolean differ = new Fmes(options).diff(doc1, 
+                                    doc2).getDocumentElement().hasChildNodes();
+                            if (differ == options.isIgnoreCase()) {
+                                failed[0] = true;
+                            }
+                        } catch (DiffException e) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            fail("Interrupted");
+        }
+        assertFalse(failed[0]);
+    }
+
+    /**
+     * Diffs can be run on documents still being parsed.
+     */
+    @Test
+    public final void testFutureDiff() {
+
+        FutureTask<Document> doc1 = new FutureTask<Document>(
+                new Callable<Document>() {
+                    public Document call() {
+                        return TestDocHelper.createDocument("<a><b/></a>");
+                    }
+                });
+        FutureTask<Document> doc2 = new FutureTask<Document>(
+                new Callable<Document>() {
+                    public Document call() {
+                        return TestDocHelper.createDocument("<a><c/></a>");
+                    }
+                });
+        new Thread(doc1).start();
+        new Thread(doc2).start();
+
+        try {
+            Document delta = new Fmes().diff(doc1, doc2);
+            assertEquals(2, delta.getDocumentElement().getChildNodes()
+                    .getLength());
+        } catch (DiffException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Errors parsing either file should be reported.
+     */
+    @Test
+    public final void testParallelParseError() {
+
+        File exists = new File("src/test/resources/suite/1A.xml");
+        File missing = new File("src/test/resources/suite/missing.xml");
+        try {
+            new Fmes().diff(exists, missing);
+            fail("Expected DiffException");
+        } catch (DiffException e) {
+            assertTrue(e.getMessage().endsWith("missing.xml"));
+        }
+        try {
+            new Fmes().diff(missing, exists);
+            fail("Expected DiffException");
+        } catch (DiffException e) {
+            assertTrue(e.getMessage().endsWith("missing.xml"));
+        }
+    }
+
+    /**
+     * Files should be read with parsers from the given source, the second
+     * file on the given executor.
+     */
+    @Test
+    public final void testParserSource() {
+
+        final DiffOptions options = new DiffOptions.Builder().build();
+        final int[] parsers = new int[1];
+        final int[] tasks = new int[1];
+        ParserSource source = new ParserSource() {
+            public synchronized DocumentBuilder getParser() 
+            throws DiffException {
+                parsers[0]++;
+                DocumentBuilderFactory fac = 
+                    DocumentBuilderFactory.newInstance();
+                DOMOps.initParser(fac, options);
+                try {
+                    return fac.newDocumentBuilder();
+                } catch (ParserConfigurationException e) {
+                    throw new DiffException("Failed to set up parser", e);
+                }
+            }
+        };
+        Executor executor = new Executor() {
+            public void execute(final Runnable task) {
+                tasks[0]++;
+                task.run();
+            }
+        };
+
+        try {
+            Document delta = new Fmes(options, source, executor).diff(
+                    new File("src/test/resources/suite/1A.xml"), 
+                    new File("src/test/resources/suite/1B.xml"));
+            assertTrue(delta.getDocumentElement().hasChildNodes());
+            assertEquals(2, parsers[0]);
+            assertEquals(1, tasks[0]);
+        } catch (DiffException e) {
+            fail("Caught exception " + e);
+        }
+    }
 }
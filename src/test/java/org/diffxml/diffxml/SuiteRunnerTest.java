@@ -3,6 +3,7 @@ package org.diffxml.diffxml;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
@@ -119,6 +120,58 @@ public class SuiteRunnerTest {
         //Use the following to run on a single file
         runFMESTest(new File("src/test/resources/suite/brianA.xml"), new File("src/test/resources/suite/brianB.xml"));
     }
+
+    /**
+     * Compares the two given files writing the delta as a stream, reads the
+     * delta back in, applies it and checks the files are the same 
+     * afterwards.
+     * 
+     * @param fA first file to compare 
+     * @param fB second file to compare
+     */
+    public final void runStreamTest(final File fA, final File fB) {
+
+        Fmes diffInstance = new Fmes();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            diffInstance.diff(DOMOps.getDocument(fA), 
+                    DOMOps.getDocument(fB), os);
+        } catch (DiffException e) {
+            fail("Diff threw exception: " + e.getMessage());
+        }
+
+        Document dA = DOMOps.getDocument(fA);
+        try {
+            Document delta = TestDocHelper.createDocument(
+                    os.toString("UTF-8"));
+            (new DULPatch()).apply(dA, delta);
+        } catch (PatchFormatException e) {
+            fail("Patch threw exception: " + e.getMessage());
+        } catch (IOException e) {
+            fail("Caught Exception: " + e.getMessage());
+        }
+
+        Document delta = null;
+        try {
+            delta = diffInstance.diff(DOMOps.getDocument(fB), dA);
+        } catch (DiffException e) {
+            fail("Diff threw exception: " + e.getMessage());
+        }
+
+        assertFalse(delta.getDocumentElement().hasChildNodes());
+    }
+
+    /**
+     * Run all the tests in the suite directory through streamed deltas.
+     */
+    @Test
+    public final void runStreamSuite() {
+
+        File suiteDir = new File(SUITE_DIR);
+        for (File fA : suiteDir.listFiles(new FilesEndAFilter())) {
+            File fB = new File(fA.getAbsolutePath().replace("A.xml", "B.xml"));
+            runStreamTest(fA, fB);
+        }
+    }
     
 }
-
@@ -0,0 +1,172 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Test the CandidateIndex class.
+ *
+ * @author Adrian Mouat
+ *
+ */
+public class CandidateIndexTest {
+
+    /**
+     * Default options.
+     */
+    private static final DiffOptions OPTIONS = 
+        new DiffOptions.Builder().build();
+
+    /**
+     * Elements that match should have the same key regardless of attribute
+     * order, namespace prefix and namespace declarations.
+     */
+    @Test
+    public final void testEqualElementKeys() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<root xmlns:a=\"http://example.com\">"
+                + "<a:b x=\"1\" y=\"2\"/></root>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<root><b xmlns=\"http://example.com\" y=\"2\" x=\"1\"/>"
+                + "</root>");
+
+        Node b1 = doc1.getDocumentElement().getFirstChild();
+        Node b2 = doc2.getDocumentElement().getFirstChild();
+        assertEquals(CandidateIndex.getKey(b1, OPTIONS), 
+                CandidateIndex.getKey(b2, OPTIONS));
+    }
+
+    /**
+     * Nodes that differ should have different keys.
+     */
+    @Test
+    public final void testDifferentKeys() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<root><b x=\"1\"/><b x=\"2\"/><b/>text<!--text--></root>");
+
+        Node b1 = doc.getDocumentElement().getFirstChild();
+        Node b2 = b1.getNextSibling();
+        Node b3 = b2.getNextSibling();
+        Node text = b3.getNextSibling();
+        Node comment = text.getNextSibling();
+
+        assertFalse(CandidateIndex.getKey(b1, OPTIONS).equals(
+                CandidateIndex.getKey(b2, OPTIONS)));
+        assertFalse(CandidateIndex.getKey(b1, OPTIONS).equals(
+                CandidateIndex.getKey(b3, OPTIONS)));
+        assertFalse(CandidateIndex.getKey(text, OPTIONS).equals(
+                CandidateIndex.getKey(comment, OPTIONS)));
+    }
+
+    /**
+     * Candidates should be returned in the order they were added and removed
+     * candidates shouldn't be returned again.
+     */
+    @Test
+    public final void testCandidateOrder() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<root><b/><c/><b/></root>");
+
+        Node b1 = doc.getDocumentElement().getFirstChild();
+        Node c = b1.getNextSibling();
+        Node b2 = c.getNextSibling();
+
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(b1);
+        nodes.add(c);
+        nodes.add(b2);
+        CandidateIndex index = new CandidateIndex(nodes, OPTIONS);
+
+        Iterator<Node> it = index.candidates(b2);
+        assertEquals(b1, it.next());
+        it.remove();
+        assertEquals(b2, it.next());
+        assertFalse(it.hasNext());
+
+        it = index.candidates(b1);
+        assertTrue(it.hasNext());
+        assertEquals(b2, it.next());
+    }
+
+    /**
+     * Text keys should follow the options they are created with.
+     */
+    @Test
+    public final void testTextKeyOptions() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<root><b> Some Text</b><b>some text</b></root>");
+
+        Node t1 = doc.getDocumentElement().getFirstChild().getFirstChild();
+        Node t2 = doc.getDocumentElement().getLastChild().getFirstChild();
+
+        DiffOptions ignore = new DiffOptions.Builder()
+            .setIgnoreCase(true)
+            .setIgnoreLeadingWhitespace(true)
+            .build();
+        assertFalse(CandidateIndex.getKey(t1, OPTIONS).equals(
+                CandidateIndex.getKey(t2, OPTIONS)));
+        assertEquals(CandidateIndex.getKey(t1, ignore),
+                CandidateIndex.getKey(t2, ignore));
+    }
+
+    /**
+     * Cached keys should be calculated once and compared under the options
+     * they were created with.
+     */
+    @Test
+    public final void testCachedKeys() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<root><b>Some  Text</b><b>sometext</b><b>other</b></root>");
+
+        Node t1 = doc.getDocumentElement().getFirstChild().getFirstChild();
+        Node t2 = t1.getParentNode().getNextSibling().getFirstChild();
+        Node t3 = doc.getDocumentElement().getLastChild().getFirstChild();
+
+        NodeKeys keys = new NodeKeys(new DiffOptions.Builder()
+            .setIgnoreCase(true)
+            .setIgnoreAllWhitespace(true)
+            .build());
+        assertTrue(keys.getKey(t1) == keys.getKey(t1));
+        assertTrue(keys.sameKey(t1, t2));
+        assertFalse(keys.sameKey(t1, t3));
+        assertFalse(new NodeKeys(OPTIONS).sameKey(t1, t2));
+    }
+}
@@ -401,6 +401,46 @@ public class ChildNumberTest {
  
     }
 
+    /**
+     * Test ignoring nodes gives the same positions as removing them, without
+     * changing the document.
+     */
+    @Test
+    public final void testIgnoringMatchesRemoval() {
+    
+        parent.appendChild(testDoc.createTextNode("12"));
+        parent.appendChild(testDoc.createElement("three"));
+        parent.appendChild(testDoc.createTextNode("45"));
+        parent.appendChild(testDoc.createTextNode("6"));
+        parent.appendChild(testDoc.createComment("seven"));
+        parent.appendChild(testDoc.createTextNode("89"));
+        parent.appendChild(testDoc.createElement("ten"));
+
+        for (Node n = parent.getFirstChild(); n != null; 
+                n = n.getNextSibling()) {
+            for (Node ign = parent.getFirstChild(); ign != null; 
+                    ign = ign.getNextSibling()) {
+                if (ign == n) {
+                    continue;
+                }
+
+                ChildNumber cn = new ChildNumber(n);
+                int dom = cn.getDOMIgnoring(ign);
+                int xpath = cn.getXPathIgnoring(ign);
+                int charpos = cn.getXPathCharPosIgnoring(ign);
+                assertEquals(parent, ign.getParentNode());
+
+                Node ref = ign.getNextSibling();
+                parent.removeChild(ign);
+                ChildNumber removed = new ChildNumber(n);
+                assertEquals(removed.getDOM(), dom);
+                assertEquals(removed.getXPath(), xpath);
+                assertEquals(removed.getXPathCharPos(), charpos);
+                parent.insertBefore(ign, ref);
+            }
+        }
+    }
+
     /**
      * Check exception thrown if given null.
      */
@@ -26,7 +26,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import org.diffxml.diffxml.DiffOptions;
 import org.diffxml.diffxml.TestDocHelper;
+import org.diffxml.diffxml.DiffOptions.TextDiffMode;
 import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -42,6 +44,12 @@ import org.w3c.dom.Node;
  *
  */
 public class EditScriptTest {
+
+    /**
+     * Long unchanged text, so a partial change is worth making.
+     */
+    private static final String PADDING = " Enough unchanged text to make "
+        + "patching part of the value smaller than replacing all of it.";
     
    /**
     * Test handling documents with different document elements.
@@ -80,7 +88,8 @@ public class EditScriptTest {
         Document doc2 = TestDocHelper.createDocument(
                 "<!-- prolog2 --><a><b/></a>");
         NodePairs matchings = Match.easyMatch(doc1, doc2);
-        assertEquals(6, matchings.size());
+        //The similar comments are matched
+        assertEquals(8, matchings.size());
 
         EditScript es = new EditScript(doc1, doc2, matchings);
         Document res = null;
@@ -89,19 +98,12 @@ public class EditScriptTest {
         } catch (DocumentCreationException e) {
             fail("Caught Exception");
         }
-        Node insert = res.getFirstChild().getFirstChild();
-        assertEquals("insert", insert.getNodeName());
-        NamedNodeMap attrs = insert.getAttributes();
-        assertEquals("1", attrs.getNamedItem("childno").getNodeValue());
-        assertEquals("/", attrs.getNamedItem("parent").getNodeValue());
-        assertEquals(Integer.toString(Node.COMMENT_NODE), 
-                attrs.getNamedItem("nodetype").getNodeValue());
-        assertEquals(" prolog2 ", insert.getTextContent());
-
-        Node delete = insert.getNextSibling();
-        assertEquals("delete", delete.getNodeName());
-        attrs = delete.getAttributes();
-        assertEquals("/node()[2]", attrs.getNamedItem("node").getNodeValue());
+        Node update = res.getFirstChild().getFirstChild();
+        assertEquals("update", update.getNodeName());
+        assertEquals("/node()[1]", 
+                update.getAttributes().getNamedItem("node").getNodeValue());
+        assertEquals(" prolog2 ", update.getTextContent());
+        assertNull(update.getNextSibling());
     }
     
     /**
@@ -297,51 +299,40 @@ public class EditScriptTest {
         } catch (DocumentCreationException e) {
             fail("Caught Exception");
         }
+        
+        //<b>7</b> is an identical subtree, so only the new b is inserted
         Node insert = res.getFirstChild().getFirstChild();
         assertEquals("insert", insert.getNodeName());
         NamedNodeMap attrs = insert.getAttributes();
         assertEquals(Integer.toString(Node.ELEMENT_NODE), 
                 attrs.getNamedItem("nodetype").getNodeValue());
-        assertEquals("3", 
+        assertEquals("1", 
                 attrs.getNamedItem("childno").getNodeValue());
         assertEquals("b", 
                 attrs.getNamedItem("name").getNodeValue());
         assertEquals("/node()[1]", 
                 attrs.getNamedItem("parent").getNodeValue());    
 
-        Node move1 = insert.getNextSibling();
-        assertEquals("move", move1.getNodeName());
-        attrs = move1.getAttributes();
-        assertEquals("1", 
-                attrs.getNamedItem("childno").getNodeValue());
-        assertEquals("/node()[1]/node()[2]", 
-                attrs.getNamedItem("parent").getNodeValue());    
-        assertEquals("/node()[1]/node()[1]/node()[1]",
-                attrs.getNamedItem("node").getNodeValue());
-        assertEquals("1",
-                attrs.getNamedItem("new_charpos").getNodeValue());
-        assertEquals("1",
-                attrs.getNamedItem("old_charpos").getNodeValue());
-
-        Node move2 = move1.getNextSibling();
-        assertEquals("move", move2.getNodeName());
-        attrs = move2.getAttributes();
+        Node move = insert.getNextSibling();
+        assertEquals("move", move.getNodeName());
+        attrs = move.getAttributes();
         assertEquals("1", 
                 attrs.getNamedItem("childno").getNodeValue());
-        assertEquals("/node()[1]/node()[3]", 
+        assertEquals("/node()[1]/node()[1]", 
                 attrs.getNamedItem("parent").getNodeValue());    
         assertEquals("/node()[1]/node()[2]/node()[1]",
                 attrs.getNamedItem("node").getNodeValue());
         assertEquals("1",
                 attrs.getNamedItem("new_charpos").getNodeValue());
-        assertEquals("2",
+        assertEquals("1",
                 attrs.getNamedItem("old_charpos").getNodeValue());
 
-        Node delete = move2.getNextSibling();
+        Node delete = move.getNextSibling();
         assertEquals("delete", delete.getNodeName());
         attrs = delete.getAttributes();
-        assertEquals("/node()[1]/node()[1]", 
+        assertEquals("/node()[1]/node()[2]", 
                 attrs.getNamedItem("node").getNodeValue());
+        assertNull(delete.getNextSibling());
     }
     
     /**
@@ -438,4 +429,182 @@ public class EditScriptTest {
                 attrs.getNamedItem("old_charpos").getNodeValue());
 
     }
+
+    /**
+     * Test a wholly unmatched subtree is inserted by a single operation.
+     */
+    @Test
+    public final void testSubtreeInsert() {
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b/><c x=\"1\"><d>text</d><e/></c></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        EditScript es = new EditScript(doc1, doc2, matchings);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+
+        Node insert = res.getFirstChild().getFirstChild();
+        assertEquals("insert", insert.getNodeName());
+        assertNull(insert.getNextSibling());
+        NamedNodeMap attrs = insert.getAttributes();
+        assertEquals("2", attrs.getNamedItem("childno").getNodeValue());
+        assertEquals("c", attrs.getNamedItem("name").getNodeValue());
+        assertEquals("/node()[1]",
+                attrs.getNamedItem("parent").getNodeValue());
+
+        Node c = insert.getFirstChild();
+        assertEquals("c", c.getNodeName());
+        assertNull(c.getNextSibling());
+        assertEquals("1", c.getAttributes().getNamedItem("x").getNodeValue());
+        assertEquals("text", c.getTextContent());
+        assertEquals("e", c.getLastChild().getNodeName());
+    }
+
+    /**
+     * Test a wholly unmatched subtree is deleted by a single operation.
+     */
+    @Test
+    public final void testSubtreeDeletion() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b/><c><d>text</d><e/></c></a>");
+        Document doc2 = TestDocHelper.createDocument("<a><b/></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        EditScript es = new EditScript(doc1, doc2, matchings);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+
+        Node delete = res.getFirstChild().getFirstChild();
+        assertEquals("delete", delete.getNodeName());
+        assertEquals("/node()[1]/node()[2]",
+                delete.getAttributes().getNamedItem("node").getNodeValue());
+        assertNull(delete.getNextSibling());
+    }
+
+    /**
+     * Creates the edit script for two documents in a text diff mode.
+     * 
+     * @param xml1 The original document
+     * @param xml2 The modified document
+     * @param mode The text diff mode
+     * @return The delta
+     */
+    private static Document createTextDelta(final String xml1, 
+            final String xml2, final TextDiffMode mode) {
+
+        DiffOptions options = 
+            new DiffOptions.Builder().setTextDiff(mode).build();
+        Document doc1 = TestDocHelper.createDocument(xml1);
+        Document doc2 = TestDocHelper.createDocument(xml2);
+        NodePairs matchings = Match.easyMatch(doc1, doc2, options);
+        EditScript es = new EditScript(doc1, doc2, matchings, options);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+        return res;
+    }
+
+    /**
+     * Test changed text is patched by deleting and inserting inside the
+     * text node, and only updated when text diff is off.
+     */
+    @Test
+    public final void testTextDiff() {
+
+        String xml1 = "<a><b>Some text that changes a little." 
+            + PADDING + "</b></a>";
+        String xml2 = "<a><b>Some text that changes a bit." 
+            + PADDING + "</b></a>";
+        Document res = createTextDelta(xml1, xml2, TextDiffMode.WORDS);
+
+        Node delete = res.getFirstChild().getFirstChild();
+        assertEquals("delete", delete.getNodeName());
+        NamedNodeMap attrs = delete.getAttributes();
+        assertEquals("/node()[1]/node()[1]/node()[1]",
+                attrs.getNamedItem("node").getNodeValue());
+        assertEquals("26", attrs.getNamedItem("charpos").getNodeValue());
+        assertEquals("6", attrs.getNamedItem("length").getNodeValue());
+
+        Node insert = delete.getNextSibling();
+        assertEquals("insert", insert.getNodeName());
+        attrs = insert.getAttributes();
+        assertEquals("26", attrs.getNamedItem("charpos").getNodeValue());
+        assertEquals("2", attrs.getNamedItem("childno").getNodeValue());
+        assertEquals(Integer.toString(Node.TEXT_NODE), 
+                attrs.getNamedItem("nodetype").getNodeValue());
+        assertEquals("bit", insert.getTextContent());
+        assertNull(insert.getNextSibling());
+
+        res = createTextDelta(xml1, xml2, TextDiffMode.OFF);
+        Node update = res.getFirstChild().getFirstChild();
+        assertEquals("update", update.getNodeName());
+        assertNull(update.getNextSibling());
+    }
+
+    /**
+     * Test several changes to a text are output last first, so earlier
+     * character positions still hold.
+     */
+    @Test
+    public final void testTextDiffOrder() {
+
+        Document res = createTextDelta(
+                "<a>Some text that changes a little." + PADDING + "<b/></a>",
+                "<a>Some text that changes a bit." + PADDING + "<b/></a>",
+                TextDiffMode.CHARACTERS);
+
+        Node op = res.getFirstChild().getFirstChild();
+        assertEquals("delete", op.getNodeName());
+        assertEquals("29", 
+                op.getAttributes().getNamedItem("charpos").getNodeValue());
+        op = op.getNextSibling();
+        assertEquals("delete", op.getNodeName());
+        assertEquals("26", 
+                op.getAttributes().getNamedItem("charpos").getNodeValue());
+        op = op.getNextSibling();
+        assertEquals("insert", op.getNodeName());
+        assertEquals("26", 
+                op.getAttributes().getNamedItem("charpos").getNodeValue());
+        assertEquals("b", op.getTextContent());
+        assertNull(op.getNextSibling());
+    }
+
+    /**
+     * Test CDATA is only patched inside when no text is inserted at either
+     * end, as that would make a new CDATA section.
+     */
+    @Test
+    public final void testTextDiffCDATA() {
+
+        Document res = createTextDelta(
+                "<a><![CDATA[a x" + PADDING + "]]></a>",
+                "<a><![CDATA[a y" + PADDING + "]]></a>",
+                TextDiffMode.WORDS);
+        Node op = res.getFirstChild().getFirstChild();
+        assertEquals("delete", op.getNodeName());
+        op = op.getNextSibling();
+        assertEquals("insert", op.getNodeName());
+        assertEquals(Integer.toString(Node.CDATA_SECTION_NODE), 
+                op.getAttributes().getNamedItem("nodetype").getNodeValue());
+        assertEquals("y", op.getTextContent());
+        assertNull(op.getNextSibling());
+
+        res = createTextDelta(
+                "<a><![CDATA[" + PADDING + " x]]></a>",
+                "<a><![CDATA[" + PADDING + " y]]></a>",
+                TextDiffMode.WORDS);
+        op = res.getFirstChild().getFirstChild();
+        assertEquals("update", op.getNodeName());
+        assertNull(op.getNextSibling());
+    }
 }
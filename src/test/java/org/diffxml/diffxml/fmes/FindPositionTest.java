@@ -69,7 +69,7 @@ public class FindPositionTest {
         
         NodePairs pairs = Match.easyMatch(testDoc1, testDoc2);
         //Need to mark d out-of-order for the algorithm to work
-        NodeOps.setOutOfOrder(testDoc2.getFirstChild().getFirstChild());
+        pairs.setOutOfOrder(testDoc2.getFirstChild().getFirstChild());
         
         Node e = testDoc2.getFirstChild().getFirstChild().getNextSibling();
         assertEquals("e", e.getNodeName());
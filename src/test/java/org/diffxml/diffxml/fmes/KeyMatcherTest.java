@@ -0,0 +1,230 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Test elements are matched by their keys.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public class KeyMatcherTest {
+
+    /**
+     * Gets the elements of a document in document order.
+     *
+     * @param doc The document
+     * @return The elements of the document
+     */
+    private static List<Node> getElements(final Document doc) {
+
+        List<Node> ret = new ArrayList<Node>();
+        NodeList elements = doc.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            ret.add(elements.item(i));
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the nth element with the given name.
+     *
+     * @param doc The document
+     * @param name The name of the element
+     * @param n The index of the element
+     * @return The element
+     */
+    private static Node getElement(final Document doc, final String name,
+            final int n) {
+        return doc.getElementsByTagName(name).item(n);
+    }
+
+    /**
+     * Matches the elements of two documents with the given options.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @param options The options for the diff
+     * @return The matchings
+     */
+    private static NodePairs match(final Document doc1, final Document doc2,
+            final DiffOptions options) {
+
+        NodePairs ret = new NodePairs();
+        KeyMatcher.match(getElements(doc1), getElements(doc2), ret,
+                new HashSet<Node>(), options);
+        return ret;
+    }
+
+    /**
+     * Test reordered records are matched by an attribute key and left to
+     * be compared.
+     */
+    @Test
+    public void testAttributeKey() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><r id='1' s='x'/><r id='2'/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><r id='2'/><r id='1' s='y'/></a>");
+        NodePairs pairs = match(doc1, doc2, new DiffOptions.Builder()
+                .addMatchKey("r", "@id").build());
+
+        Node r1 = getElement(doc1, "r", 0);
+        Node r2 = getElement(doc1, "r", 1);
+        assertEquals(getElement(doc2, "r", 1), pairs.getPartner(r1));
+        assertEquals(getElement(doc2, "r", 0), pairs.getPartner(r2));
+        assertTrue(pairs.isSimilar(r1));
+        assertTrue(pairs.isSimilar(r2));
+        assertFalse(pairs.isMatched(doc1.getDocumentElement()));
+    }
+
+    /**
+     * Test records are matched by the text of a child key.
+     */
+    @Test
+    public void testChildKey() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><r><k><id>1</id></k><v>x</v></r>"
+                + "<r><k><id>2</id></k></r></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><r><k><id>2</id></k></r>"
+                + "<r><k><id>1</id></k><v>y</v></r></a>");
+        NodePairs pairs = match(doc1, doc2, new DiffOptions.Builder()
+                .addMatchKey("r", "k/id").build());
+
+        assertEquals(getElement(doc2, "r", 1),
+                pairs.getPartner(getElement(doc1, "r", 0)));
+        assertEquals(getElement(doc2, "r", 0),
+                pairs.getPartner(getElement(doc1, "r", 1)));
+    }
+
+    /**
+     * Test elements without the key, or with a different name, aren't
+     * matched.
+     */
+    @Test
+    public void testMissingKey() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><r/><r><v>1</v></r><s id='1'/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><r/><r><v>1</v></r><r id='1'/></a>");
+        DiffOptions options = new DiffOptions.Builder()
+            .addMatchKey("r", "@id").addMatchKey("s", "@id").build();
+        Node s = getElement(doc1, "s", 0);
+
+        assertNull(KeyMatcher.getKeyValue(getElement(doc1, "r", 0),
+                options));
+        assertEquals("1", KeyMatcher.getKeyValue(s, options));
+        assertEquals(0, match(doc1, doc2, options).size());
+    }
+
+    /**
+     * Test keys found more than once in either document are left to the
+     * normal matching.
+     */
+    @Test
+    public void testDuplicateKeys() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><r id='1'/><r id='1'/><r id='2'/><r id='3'/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><r id='1'/><r id='2'/><r id='2'/><r id='3'/></a>");
+        NodePairs pairs = match(doc1, doc2, new DiffOptions.Builder()
+                .addMatchKey("r", "@id").build());
+
+        assertNull(pairs.getPartner(getElement(doc1, "r", 0)));
+        assertNull(pairs.getPartner(getElement(doc1, "r", 1)));
+        assertNull(pairs.getPartner(getElement(doc1, "r", 2)));
+        assertNull(pairs.getPartner(getElement(doc2, "r", 0)));
+        assertEquals(getElement(doc2, "r", 3),
+                pairs.getPartner(getElement(doc1, "r", 3)));
+        assertEquals(2, pairs.size());
+    }
+
+    /**
+     * Test nodes that are already matched aren't matched again, and don't
+     * make the key ambiguous.
+     */
+    @Test
+    public void testMatchedNodesIgnored() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><r id='1'/><r id='1'/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><r id='1'/><r id='1'/></a>");
+        Node r1 = getElement(doc1, "r", 0);
+        Node r2 = getElement(doc1, "r", 1);
+        Node r3 = getElement(doc2, "r", 0);
+        Node r4 = getElement(doc2, "r", 1);
+
+        NodePairs pairs = new NodePairs();
+        pairs.add(r1, r3);
+        Set<Node> matched = new HashSet<Node>();
+        matched.add(r1);
+        matched.add(r3);
+        KeyMatcher.match(getElements(doc1), getElements(doc2), pairs,
+                matched, new DiffOptions.Builder()
+                .addMatchKey("r", "@id").build());
+
+        assertEquals(r3, pairs.getPartner(r1));
+        assertFalse(pairs.isSimilar(r1));
+        assertEquals(r4, pairs.getPartner(r2));
+        assertTrue(pairs.isSimilar(r2));
+        assertTrue(matched.contains(r2));
+        assertTrue(matched.contains(r4));
+    }
+
+    /**
+     * Test nothing is matched when no keys are set.
+     */
+    @Test
+    public void testNoKeys() {
+
+        Document doc1 = TestDocHelper.createDocument("<a><r id='1'/></a>");
+        Document doc2 = TestDocHelper.createDocument("<a><r id='1'/></a>");
+        NodePairs pairs = match(doc1, doc2,
+                new DiffOptions.Builder().build());
+
+        assertEquals(0, pairs.size());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+ */
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Test changed leaves are matched to similar leaves.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public class LeafMatcherTest {
+
+    /**
+     * Matches the leaves of two documents whose root elements are matched.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @return The matchings
+     */
+    private static NodePairs match(final Document doc1, final Document doc2) {
+
+        NodePairs ret = new NodePairs();
+        ret.add(doc1, doc2);
+        ret.add(doc1.getDocumentElement(), doc2.getDocumentElement());
+        LeafMatcher.match(doc1, ret, new DiffOptions.Builder().build());
+        return ret;
+    }
+
+    /**
+     * Gets the similarity of two values.
+     *
+     * @param a The first value
+     * @param b The second value
+     * @return The similarity of a and b
+     */
+    private static double similarity(final String a, final String b) {
+        return LeafMatcher.similarity(LeafMatcher.getSignature(a),
+                LeafMatcher.getSignature(b));
+    }
+
+    /**
+     * Test signatures hold each padded bigram once.
+     */
+    @Test
+    public void testSignature() {
+
+        assertEquals(1, LeafMatcher.getSignature("").length);
+        assertEquals(2, LeafMatcher.getSignature("a").length);
+        assertEquals(3, LeafMatcher.getSignature("aaaa").length);
+        assertEquals(4, LeafMatcher.getSignature("abc").length);
+    }
+
+    /**
+     * Test the similarity of equal, different and partly equal values.
+     */
+    @Test
+    public void testSimilarity() {
+
+        assertEquals(1.0, similarity("text", "text"), 0);
+        assertEquals(0.0, similarity("abc", "xyz"), 0);
+        assertEquals(0.5, similarity("abcde", "abcdf"), 0);
+        assertEquals(3.0 / 7, similarity("abcd", "abce"), 0);
+    }
+
+    /**
+     * Test leaves are matched at the threshold, but not below it.
+     */
+    @Test
+    public void testThreshold() {
+
+        assertEquals(LeafMatcher.THRESHOLD, similarity("abcde", "abcdf"), 0);
+        Document doc1 = TestDocHelper.createDocument("<a>abcde</a>");
+        Document doc2 = TestDocHelper.createDocument("<a>abcdf</a>");
+        NodePairs pairs = match(doc1, doc2);
+        Node text = doc1.getDocumentElement().getFirstChild();
+        assertEquals(doc2.getDocumentElement().getFirstChild(), 
+                pairs.getPartner(text));
+        assertTrue(pairs.isSimilar(text));
+
+        assertTrue(similarity("abcd", "abce") < LeafMatcher.THRESHOLD);
+        doc1 = TestDocHelper.createDocument("<a>abcd</a>");
+        doc2 = TestDocHelper.createDocument("<a>abce</a>");
+        pairs = match(doc1, doc2);
+        assertNull(pairs.getPartner(
+                doc1.getDocumentElement().getFirstChild()));
+    }
+
+    /**
+     * Test the most similar leaf is matched, and each leaf only once.
+     */
+    @Test
+    public void testBestMatch() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><!--some text--><!--some texts--></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><!--some other text--><!--some text!--></a>");
+        NodePairs pairs = match(doc1, doc2);
+        Node a1 = doc1.getDocumentElement();
+        Node a2 = doc2.getDocumentElement();
+
+        assertEquals(a2.getLastChild(), pairs.getPartner(a1.getFirstChild()));
+        assertEquals(a2.getFirstChild(), pairs.getPartner(a1.getLastChild()));
+    }
+
+    /**
+     * Test leaves are only candidates for leaves of the same type and
+     * processing instructions only for the same target.
+     */
+    @Test
+    public void testCandidates() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><?x data?><!--text--></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><?x datum?><?y data?>text<!--text--></a>");
+        Node pi = doc1.getDocumentElement().getFirstChild();
+        Node comment = doc1.getDocumentElement().getLastChild();
+        Node kids = doc2.getDocumentElement().getFirstChild();
+
+        assertTrue(LeafMatcher.isCandidate(pi, kids));
+        assertFalse(LeafMatcher.isCandidate(pi, kids.getNextSibling()));
+        assertFalse(LeafMatcher.isCandidate(comment,
+                kids.getNextSibling().getNextSibling()));
+        assertTrue(LeafMatcher.isCandidate(comment, 
+                doc2.getDocumentElement().getLastChild()));
+
+        doc1 = TestDocHelper.createDocument("<a><?x data?>text</a>");
+        doc2 = TestDocHelper.createDocument("<a><?y data?><!--text--></a>");
+        NodePairs pairs = match(doc1, doc2);
+        assertFalse(pairs.isMatched(doc1.getDocumentElement().getFirstChild()));
+        assertFalse(pairs.isMatched(doc1.getDocumentElement().getLastChild()));
+    }
+
+    /**
+     * Test no more than MAX_CANDIDATES leaves are compared with each leaf,
+     * counting only leaves that are candidates.
+     */
+    @Test
+    public void testMaxCandidates() {
+
+        StringBuilder others = new StringBuilder();
+        for (int i = 0; i < LeafMatcher.MAX_CANDIDATES - 1; i++) {
+            others.append("<!--").append(i).append("-->");
+        }
+        String pis = "<?x some text?><?x some text?>";
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><!--some text--></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a>" + others + pis + "<!--some texts--></a>");
+        NodePairs pairs = match(doc1, doc2);
+        assertEquals(doc2.getDocumentElement().getLastChild(), 
+                pairs.getPartner(doc1.getDocumentElement().getFirstChild()));
+
+        doc1 = TestDocHelper.createDocument("<a><!--some text--></a>");
+        doc2 = TestDocHelper.createDocument(
+                "<a>" + others + "<!--x--><!--some texts--></a>");
+        pairs = match(doc1, doc2);
+        assertFalse(pairs.isMatched(doc1.getDocumentElement().getFirstChild()));
+    }
+}
@@ -24,7 +24,10 @@ package org.diffxml.diffxml.fmes;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import org.diffxml.diffxml.DiffOptions;
 import org.diffxml.diffxml.TestDocHelper;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -310,6 +313,28 @@ public class MatchTest {
         
     }
     
+    /**
+     * Attribute order and namespace declarations shouldn't affect element
+     * comparison, but attribute values and extra attributes should.
+     */
+    @Test
+    public final void testCompareElements() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a xmlns:p=\"urn:p\"><b x=\"1\" p:y=\"2\"/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b xmlns:q=\"urn:p\" q:y=\"2\" x=\"1\"/>"
+                + "<b x=\"1\" y=\"2\"/><b x=\"1\"/></a>");
+
+        Node b1 = doc1.getDocumentElement().getFirstChild();
+        Node b2 = doc2.getDocumentElement().getFirstChild();
+        Node b3 = b2.getNextSibling();
+        Node b4 = b3.getNextSibling();
+        assertTrue(Match.compareElements(b1, b2));
+        assertFalse(Match.compareElements(b1, b3));
+        assertFalse(Match.compareElements(b1, b4));
+        assertFalse(Match.compareElements(b4, b1));
+    }
+
     /**
      * Elements with different prefixes but same namespace should match.
      *
@@ -411,4 +436,108 @@ public class MatchTest {
         Node aB = aDocEl.getFirstChild();
         assertEquals(bDocEl.getFirstChild(), matches.getPartner(aB));
     }
+
+    /**
+     * Test identical subtrees are matched as a whole, rather than node by
+     * node against an earlier subtree with the same nodes.
+     */
+    @Test
+    public final void testIdenticalSubtreeMatching() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<root><a><b/></a><a><b/><c/></a></root>"); 
+        Document doc2 = TestDocHelper.createDocument(
+                "<root><a><b/><c/></a></root>");
+     
+        NodePairs matches = Match.easyMatch(doc1, doc2);
+        Node a1 = doc1.getDocumentElement().getFirstChild().getNextSibling();
+        Node a2 = doc2.getDocumentElement().getFirstChild();
+        assertEquals(a2, matches.getPartner(a1));
+        assertEquals(a2.getFirstChild(),
+                matches.getPartner(a1.getFirstChild()));
+        assertTrue(matches.isIdenticalSubtree(a1));
+        assertTrue(matches.isIdenticalSubtree(a2));
+        assertFalse(matches.isIdenticalSubtree(
+                doc1.getDocumentElement()));
+        assertNull(matches.getPartner(
+                doc1.getDocumentElement().getFirstChild()));
+    }
+
+    /**
+     * A small identical subtree shouldn't take the partner of a node inside
+     * a larger identical subtree.
+     */
+    @Test
+    public final void testNestedIdenticalSubtree() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><v>3</v><b><c/><v>3</v></b></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b><c/><v>3</v></b></a>");
+
+        NodePairs matches = Match.easyMatch(doc1, doc2);
+        Node v1 = doc1.getDocumentElement().getFirstChild();
+        Node b1 = v1.getNextSibling();
+        Node b2 = doc2.getDocumentElement().getFirstChild();
+        assertEquals(b2, matches.getPartner(b1));
+        assertTrue(matches.isIdenticalSubtree(b1));
+        assertEquals(b2.getLastChild(), 
+                matches.getPartner(b1.getLastChild()));
+        assertFalse(matches.isMatched(v1));
+    }
+
+    /**
+     * Elements should be matched by their key attribute or child even if
+     * their other contents differ, and ambiguous keys should be ignored.
+     */
+    @Test
+    public final void testKeyMatching() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><r id=\"1\" x=\"1\"/><r id=\"2\"/><r id=\"3\"/>"
+                + "<s><n>k</n><v>1</v></s></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><s><v>2</v><n>k</n></s><r id=\"3\" x=\"3\"/>"
+                + "<r id=\"2\" x=\"2\"/><r id=\"1\" x=\"2\"/>"
+                + "<r id=\"3\"/></a>");
+
+        DiffOptions options = new DiffOptions.Builder()
+            .addMatchKey("r", "@id")
+            .addMatchKey("s", "n")
+            .build();
+        NodePairs matches = Match.easyMatch(doc1, doc2, options);
+
+        Node r1 = doc1.getDocumentElement().getFirstChild();
+        Node r2 = r1.getNextSibling();
+        Node r3 = r2.getNextSibling();
+        Node s1 = r3.getNextSibling();
+        Node s2 = doc2.getDocumentElement().getFirstChild();
+        Node r3b = s2.getNextSibling();
+        Node r2b = r3b.getNextSibling();
+        Node r1b = r2b.getNextSibling();
+        assertEquals(r1b, matches.getPartner(r1));
+        assertEquals(r2b, matches.getPartner(r2));
+        assertEquals(s2, matches.getPartner(s1));
+        //Key 3 is in doc2 twice, so is matched normally
+        assertEquals(r1b.getNextSibling(), matches.getPartner(r3));
+    }
+
+    /**
+     * Similar leaves under matched parents should be matched, but not
+     * dissimilar ones.
+     */
+    @Test
+    public final void testSimilarLeafMatching() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b>the quick brown fox</b><c>abc</c><!--note--></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b>the quick brown cat</b><c>xyz</c><!--notes--></a>");
+        NodePairs matches = Match.easyMatch(doc1, doc2);
+
+        Node b1 = doc1.getDocumentElement().getFirstChild();
+        Node b2 = doc2.getDocumentElement().getFirstChild();
+        assertEquals(b2.getFirstChild(), matches.getPartner(b1.getFirstChild()));
+        Node c1 = b1.getNextSibling();
+        Node c2 = b2.getNextSibling();
+        assertNull(matches.getPartner(c1.getFirstChild()));
+        assertEquals(c2.getNextSibling(), 
+                matches.getPartner(c1.getNextSibling()));
+    }
 }
@@ -105,6 +105,31 @@ public class NodePairsTest {
         assertEquals(8, pairs.size());
     }
     
+    /**
+     * Make sure removing a node also removes its partner.
+     */
+    @Test
+    public final void testRemove() {
+        
+        NodePairs pairs = new NodePairs();
+        Node b = mTestDoc1.getDocumentElement().getFirstChild();
+        Node x = mTestDoc2.getDocumentElement().getFirstChild();
+        Node c = b.getNextSibling();
+        Node y = x.getNextSibling();
+        pairs.add(b, x);
+        pairs.add(c, y);
+        
+        pairs.remove(x);
+        assertNull(pairs.getPartner(b));
+        assertNull(pairs.getPartner(x));
+        assertFalse(pairs.isMatched(b));
+        assertFalse(pairs.isMatched(x));
+        assertEquals(y, pairs.getPartner(c));
+        assertEquals(2, pairs.size());
+        
+        pairs.remove(c);
+    }
+    
     /**
      * Check trying to add a null throws an exception.
      */
@@ -130,4 +155,74 @@ public class NodePairsTest {
         
     }
 
+    /**
+     * Nodes are in order until marked otherwise, and the order state is
+     * held by the pairs rather than the nodes.
+     */
+    @Test
+    public final void testInOrder() {
+        
+        NodePairs pairs = new NodePairs();
+        Node b = mTestDoc1.getDocumentElement().getFirstChild();
+        assertTrue(pairs.isInOrder(b));
+        
+        pairs.setOutOfOrder(b);
+        assertFalse(pairs.isInOrder(b));
+        assertTrue(new NodePairs().isInOrder(b));
+        assertFalse(pairs.isMatched(b));
+        assertEquals(0, pairs.size());
+        
+        pairs.setInOrder(b);
+        assertTrue(pairs.isInOrder(b));
+    }
+
+    /**
+     * Partners should still be found once the id table has grown.
+     */
+    @Test
+    public final void testManyNodes() {
+        
+        NodePairs pairs = new NodePairs();
+        Node[] nodes1 = new Node[500];
+        Node[] nodes2 = new Node[500];
+        for (int i = 0; i < nodes1.length; i++) {
+            nodes1[i] = mTestDoc1.createElement("a" + i);
+            nodes2[i] = mTestDoc2.createElement("a" + i);
+            pairs.add(nodes1[i], nodes2[i]);
+        }
+        
+        assertEquals(1000, pairs.size());
+        for (int i = 0; i < nodes1.length; i++) {
+            assertEquals(nodes2[i], pairs.getPartner(nodes1[i]));
+            assertEquals(nodes1[i], pairs.getPartner(nodes2[i]));
+        }
+        assertNull(pairs.getPartner(mTestDoc1.createElement("b")));
+    }
+
+    /**
+     * Only pairs added as similar are marked as possibly differing, and
+     * removing the pair clears the mark.
+     */
+    @Test
+    public final void testSimilar() {
+        
+        NodePairs pairs = new NodePairs();
+        Node a = mTestDoc1.getDocumentElement();
+        Node w = mTestDoc2.getDocumentElement();
+        Node b = a.getFirstChild();
+        Node x = w.getFirstChild();
+        
+        pairs.add(a, w);
+        pairs.addSimilar(b, x);
+        assertFalse(pairs.isSimilar(a));
+        assertFalse(pairs.isSimilar(w));
+        assertTrue(pairs.isSimilar(b));
+        assertTrue(pairs.isSimilar(x));
+        assertEquals(x, pairs.getPartner(b));
+        
+        pairs.remove(b);
+        assertFalse(pairs.isSimilar(b));
+        assertFalse(pairs.isSimilar(x));
+    }
+
 }
@@ -244,5 +244,56 @@ public class NodeSequenceTest {
         assertEquals(0, lcs.size());
 
     }
+
+    /**
+     * Test LCS of shuffled sequences finds a longest ordered run.
+     */
+    @Test
+    public final void testLCSShuffled() {
+        
+        Document set1 = TestDocHelper.createDocument(
+                "<a><b/><c/><d/><e/><f/><g/></a>"); 
+        Document set2 = TestDocHelper.createDocument(
+                "<a><e/><b/><g/><c/><f/><d/></a>");
+        NodePairs pairs = Match.easyMatch(set1, set2);
+        
+        Node[] seq1 = NodeSequence.getSequence(
+                set1.getDocumentElement().getChildNodes(), 
+                set2.getDocumentElement().getChildNodes(), pairs);
+        Node[] seq2 = NodeSequence.getSequence(
+                set2.getDocumentElement().getChildNodes(), 
+                set1.getDocumentElement().getChildNodes(), pairs);
+
+        List<Node> lcs = NodeSequence.getLCS(seq1, seq2, pairs);
+        assertEquals(3, lcs.size());
+        assertEquals("b", lcs.get(0).getNodeName());
+        assertEquals("c", lcs.get(1).getNodeName());
+    }
+
+    /**
+     * Test LCS where the second sequence contains unmatched Nodes.
+     */
+    @Test
+    public final void testLCSWithUnmatched() {
         
+        Document set1 = TestDocHelper.createDocument(
+                "<a><b/><c/><d/></a>"); 
+        Document set2 = TestDocHelper.createDocument(
+                "<a><c/><y/><b/><d/></a>");
+        NodePairs pairs = Match.easyMatch(set1, set2);
+        
+        Node[] seq1 = NodeSequence.getSequence(
+                set1.getDocumentElement().getChildNodes(), 
+                set2.getDocumentElement().getChildNodes(), pairs);
+        Node[] seq2 = new Node[4];
+        Node n = set2.getDocumentElement().getFirstChild();
+        for (int i = 0; i < seq2.length; i++) {
+            seq2[i] = n;
+            n = n.getNextSibling();
+        }
+
+        List<Node> lcs = NodeSequence.getLCS(seq1, seq2, pairs);
+        assertEquals(2, lcs.size());
+        assertEquals("d", lcs.get(1).getNodeName());
+    }
 }
@@ -0,0 +1,152 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.diffxml.diffxml.DiffException;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+
+/**
+ * Test the NodeStream class.
+ *
+ * @author Adrian Mouat
+ *
+ */
+public class NodeStreamTest {
+
+    /**
+     * Checks whether two documents differ with NodeStream.
+     *
+     * @param xml1 The original document
+     * @param xml2 The modified document
+     * @param options The options for the diff
+     * @return True if NodeStream finds a difference
+     */
+    private static boolean differ(final String xml1, final String xml2,
+            final DiffOptions options) {
+
+        boolean ret = false;
+        try {
+            ret = NodeStream.differ(
+                    new ByteArrayInputStream(xml1.getBytes("UTF-8")), 
+                    new ByteArrayInputStream(xml2.getBytes("UTF-8")),
+                    options);
+        } catch (DiffException e) {
+            fail("Caught exception " + e);
+        } catch (UnsupportedEncodingException e) {
+            fail("Caught exception " + e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Checks NodeStream finds differences when the DOM diff does.
+     *
+     * @param xml1 The original document
+     * @param xml2 The modified document
+     * @param options The options for the diff
+     */
+    private static void assertSameResult(final String xml1, 
+            final String xml2, final DiffOptions options) {
+
+        try {
+            boolean expected = new Fmes(options).diff(
+                    TestDocHelper.createDocument(xml1),
+                    TestDocHelper.createDocument(xml2))
+                    .getDocumentElement().hasChildNodes();
+            assertEquals(expected, differ(xml1, xml2, options));
+        } catch (DiffException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Differences should be found exactly when EditScript finds them.
+     */
+    @Test
+    public final void testDiffer() {
+
+        DiffOptions plain = new DiffOptions.Builder().build();
+        assertSameResult("<a><b/>x</a>", "<a><b/>x</a>", plain);
+        assertSameResult("<a><b/>x</a>", "<a>x<b/></a>", plain);
+        assertSameResult("<a><b/></a>", "<c><b/></c>", plain);
+        assertSameResult("<a x=\"1\"/>", "<a x=\"2\"/>", plain);
+        assertSameResult("<a x=\"1\" y=\"2\"/>", "<a y=\"2\" x=\"1\"/>", 
+                plain);
+        assertSameResult("<a><b>x</b></a>", "<a><b/>x</a>", plain);
+        assertSameResult("<a><!--c--></a>", "<a/>", plain);
+        assertSameResult("<a>x<![CDATA[y]]></a>", "<a>xy</a>", plain);
+        assertSameResult("<p:a xmlns:p=\"urn:x\"/>", 
+                "<q:a xmlns:q=\"urn:x\"/>", plain);
+        assertSameResult("<a><?t d?></a>", "<a><?t  d?></a>", plain);
+    }
+
+    /**
+     * The options should be followed.
+     */
+    @Test
+    public final void testOptions() {
+
+        DiffOptions ignore = new DiffOptions.Builder()
+            .setIgnoreComments(true)
+            .setIgnoreCase(true)
+            .setIgnoreWhitespaceNodes(true)
+            .build();
+        assertSameResult("<a><b>X</b></a>", "<a><b>x</b></a>", ignore);
+        assertSameResult("<a><b/></a>", "<a> <b/></a>", ignore);
+        assertSameResult("<a><b/></a>", "<a><b/><!--c--></a>", ignore);
+        assertSameResult("<a>x<!--c-->y</a>", "<a>xy</a>", ignore);
+
+        //Banned nodes are left out of the original document too
+        assertFalse(differ("<a> <b/></a>", "<a><b/></a>", ignore));
+        assertFalse(differ("<a><b/><!--c--></a>", "<a><!--c--><b/></a>", 
+                    ignore));
+    }
+
+    /**
+     * Malformed documents should be reported after a difference.
+     */
+    @Test(expected = DiffException.class)
+    public final void testMalformedAfterDifference() throws DiffException {
+
+        try {
+            NodeStream.differ(
+                    new ByteArrayInputStream("<a><b/><c></a>".getBytes(
+                            "UTF-8")),
+                    new ByteArrayInputStream("<a><d/></a>".getBytes(
+                            "UTF-8")),
+                    new DiffOptions.Builder().build());
+        } catch (UnsupportedEncodingException e) {
+            fail("Caught exception " + e);
+        }
+    }
+}
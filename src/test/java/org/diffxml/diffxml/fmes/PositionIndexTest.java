@@ -0,0 +1,162 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Test the PositionIndex class.
+ *
+ * @author Adrian Mouat
+ *
+ */
+public class PositionIndexTest {
+
+    /**
+     * Checks the index gives the same positions as scanning the siblings.
+     *
+     * @param parent The parent of the nodes to check
+     * @param index The index to check
+     */
+    private static void assertSamePositions(final Node parent,
+            final PositionIndex index) {
+
+        for (Node n = parent.getFirstChild(); n != null;
+                n = n.getNextSibling()) {
+            ChildNumber scan = new ChildNumber(n);
+            ChildNumber indexed = new ChildNumber(n, index);
+            assertEquals(scan.getDOM(), indexed.getDOM());
+            assertEquals(scan.getXPath(), indexed.getXPath());
+            assertEquals(scan.getXPathCharPos(), indexed.getXPathCharPos());
+
+            for (Node m = parent.getFirstChild(); m != null;
+                    m = m.getNextSibling()) {
+                if (m != n) {
+                    assertEquals(scan.getDOMIgnoring(m),
+                            indexed.getDOMIgnoring(m));
+                    assertEquals(scan.getXPathIgnoring(m),
+                            indexed.getXPathIgnoring(m));
+                    assertEquals(scan.getXPathCharPosIgnoring(m),
+                            indexed.getXPathCharPosIgnoring(m));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test positions with mixed content.
+     */
+    @Test
+    public final void testMixedContent() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a>text<b/><![CDATA[cdata]]>more<!--c--><c/>end</a>");
+        Element a = doc.getDocumentElement();
+        a.insertBefore(doc.createTextNode("split"), a.getLastChild());
+        a.insertBefore(doc.createTextNode(""), a.getFirstChild());
+
+        assertSamePositions(a, new PositionIndex());
+    }
+
+    /**
+     * Test positions are kept up to date as nodes are moved around.
+     */
+    @Test
+    public final void testUpdates() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a>one<b/>two<c/>three<d/></a>");
+        Element a = doc.getDocumentElement();
+        PositionIndex index = new PositionIndex();
+        assertSamePositions(a, index);
+
+        //Removing b joins "one" and "two"
+        Node b = a.getFirstChild().getNextSibling();
+        index.removing(b);
+        a.removeChild(b);
+        assertSamePositions(a, index);
+
+        //Put it back at the end
+        a.appendChild(b);
+        index.inserted(b);
+        assertSamePositions(a, index);
+
+        //New text between existing text
+        Node text = doc.createTextNode("four");
+        a.insertBefore(text, a.getFirstChild().getNextSibling());
+        index.inserted(text);
+        assertSamePositions(a, index);
+
+        Node first = a.getFirstChild();
+        index.removing(first);
+        a.removeChild(first);
+        assertSamePositions(a, index);
+        assertEquals(1, new ChildNumber(text, index).getXPath());
+    }
+
+    /**
+     * Test cached paths are recalculated when siblings of the node or of
+     * an ancestor change.
+     */
+    @Test
+    public final void testCachedPaths() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a><b><c/>text<d/></b><e/></a>");
+        Element a = doc.getDocumentElement();
+        Node b = a.getFirstChild();
+        Node d = b.getLastChild();
+        PositionIndex index = new PositionIndex();
+
+        assertEquals("/node()[1]/node()[1]/node()[3]",
+                NodeOps.getXPath(d, index));
+
+        //Change siblings of an ancestor
+        Node f = doc.createElement("f");
+        a.insertBefore(f, b);
+        index.inserted(f);
+        assertEquals("/node()[1]/node()[2]/node()[3]",
+                NodeOps.getXPath(d, index));
+
+        //Change siblings of the node
+        Node c = b.getFirstChild();
+        index.removing(c);
+        b.removeChild(c);
+        assertEquals("/node()[1]/node()[2]/node()[2]",
+                NodeOps.getXPath(d, index));
+        assertEquals(NodeOps.getXPath(d), NodeOps.getXPath(d, index));
+
+        //Move the node to a new parent
+        index.removing(d);
+        f.appendChild(d);
+        index.inserted(d);
+        assertEquals("/node()[1]/node()[1]/node()[1]",
+                NodeOps.getXPath(d, index));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.diffxml.diffxml.DiffOptions.TextDiffMode;
+import org.junit.Test;
+
+/**
+ * Test the changes found between texts.
+ * 
+ * @author Adrian Mouat
+ */
+public class TextDiffTest {
+
+    /**
+     * Long unchanged text, so a partial change is worth making.
+     */
+    private static final String PADDING = " It was a bright cold day in "
+        + "April, and the clocks were striking thirteen. Winston Smith, his "
+        + "chin nuzzled into his breast in an effort to escape the vile wind,"
+        + " slipped quickly through the glass doors.";
+
+    /**
+     * Applies hunks to a text, as the edit script does.
+     * 
+     * @param a The old text
+     * @param b The new text
+     * @param hunks The changes between them
+     * @return a with the changes made
+     */
+    private static String apply(final String a, final String b, 
+            final List<TextDiff.Hunk> hunks) {
+
+        StringBuilder ret = new StringBuilder(a);
+        for (int i = hunks.size() - 1; i >= 0; i--) {
+            TextDiff.Hunk h = hunks.get(i);
+            ret.replace(h.getOldStart(), h.getOldStart() + h.getOldLength(),
+                    b.substring(h.getNewStart(), 
+                            h.getNewStart() + h.getNewLength()));
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Test a change of one character in a long text.
+     */
+    @Test
+    public final void testCharacters() {
+
+        String a = "The quick brown fox jumps over the lazy dog, "
+            + "then sleeps in the afternoon sun for a while." + PADDING;
+        String b = "The quick brown fox jumps over the lazy cat, "
+            + "then sleeps in the afternoon sun for a while!" + PADDING;
+        List<TextDiff.Hunk> hunks = 
+            TextDiff.diff(a, b, TextDiffMode.CHARACTERS);
+        assertEquals(b, apply(a, b, hunks));
+        assertEquals(2, hunks.size());
+        assertEquals(40, hunks.get(0).getOldStart());
+        assertEquals(3, hunks.get(0).getOldLength());
+        assertEquals(3, hunks.get(0).getNewLength());
+    }
+
+    /**
+     * Test whole words are replaced in word mode.
+     */
+    @Test
+    public final void testWords() {
+
+        String a = "The quick brown fox jumps over the lazy dog, "
+            + "then sleeps in the afternoon sun for a while." + PADDING;
+        String b = "The quick brown fox leaps over the lazy dog, "
+            + "then sleeps in the morning sun for quite a while." + PADDING;
+        List<TextDiff.Hunk> hunks = TextDiff.diff(a, b, TextDiffMode.WORDS);
+        assertEquals(b, apply(a, b, hunks));
+        assertEquals(3, hunks.size());
+        assertEquals(20, hunks.get(0).getOldStart());
+        assertEquals("jumps", a.substring(20, 
+                20 + hunks.get(0).getOldLength()));
+        //Insert only
+        assertEquals(0, hunks.get(2).getOldLength());
+    }
+
+    /**
+     * Test replacing the whole text is preferred when it is smaller.
+     */
+    @Test
+    public final void testReplace() {
+
+        assertNull(TextDiff.diff("abc", "abd", TextDiffMode.CHARACTERS));
+        assertNull(TextDiff.diff("same", "same", TextDiffMode.CHARACTERS));
+    }
+
+    /**
+     * Test surrogate pairs aren't split.
+     */
+    @Test
+    public final void testSurrogates() {
+
+        String a = PADDING + "\ud83d\ude00" + PADDING;
+        String b = PADDING + "\ud83d\ude01" + PADDING;
+        List<TextDiff.Hunk> hunks = 
+            TextDiff.diff(a, b, TextDiffMode.CHARACTERS);
+        assertEquals(1, hunks.size());
+        assertEquals(PADDING.length(), hunks.get(0).getOldStart());
+        assertEquals(2, hunks.get(0).getNewLength());
+    }
+}
@@ -136,13 +136,12 @@ public class DULDeltaTest {
         try {
             DOMOps.outputXML(mDelta.getDocument(), os);
             String out = new String(os.toByteArray(), ENCODING);
+            //The attributes are inserted with the element
             assertTrue(out.contains(
                     "><insert childno=\"1\" name=\"attrTest\" "
-                    + "nodetype=\"1\" parent=\"/a\"/>"));
-            assertTrue(out.contains("<insert name=\"attrTest1\" nodetype=\"2\" "
-                    + "parent=\"/a/node()[1]\">one</insert>"));
-            assertTrue(out.contains("<insert name=\"attrTest2\" nodetype=\"2\" "
-                    + "parent=\"/a/node()[1]\">two</insert></delta>"));
+                    + "nodetype=\"1\" parent=\"/a\">"
+                    + "<attrTest attrTest1=\"one\" attrTest2=\"two\"/>"
+                    + "</insert></delta>"));
         } catch (UnsupportedEncodingException e) {
             fail("Caught exception: " + e.getMessage());
         } catch (IOException e) {
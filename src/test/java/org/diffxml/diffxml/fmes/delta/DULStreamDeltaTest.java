@@ -0,0 +1,137 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright (C) 2002-2009  Adrian Mouat
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.diffxml.fmes.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.DiffException;
+import org.diffxml.diffxml.TestDocHelper;
+import org.diffxml.diffxml.fmes.Fmes;
+import org.diffxml.patchxml.DULPatch;
+import org.diffxml.patchxml.PatchFormatException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Test DULStreamDelta writes the same delta as DULDelta.
+ * 
+ * @author Adrian Mouat
+ */
+public class DULStreamDeltaTest {
+
+    /**
+     * Encoding for printing documents.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Test an empty delta.
+     */
+    @Test
+    public final void testEmptyDelta() {
+
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document doc2 = TestDocHelper.createDocument("<a><b/></a>");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        
+        try {
+            assertFalse((new Fmes()).diff(doc1, doc2, os));
+            Document delta = TestDocHelper.createDocument(
+                    new String(os.toByteArray(), ENCODING));
+            assertFalse(delta.getDocumentElement().hasChildNodes());
+        } catch (DiffException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Test the streamed delta is the same as the document delta.
+     */
+    @Test
+    public final void testSameAsDocument() {
+        
+        String xml1 = "<a>text<b x=\"1\"/><c>more</c><!--comment--></a>";
+        String xml2 = "<a><c>more<d y=\"2\">new</d></c>text<!--changed--></a>";
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        ByteArrayOutputStream built = new ByteArrayOutputStream();
+        
+        try {
+            assertTrue((new Fmes()).diff(TestDocHelper.createDocument(xml1),
+                    TestDocHelper.createDocument(xml2), streamed));
+            Document delta = (new Fmes()).diff(
+                    TestDocHelper.createDocument(xml1),
+                    TestDocHelper.createDocument(xml2));
+            DOMOps.outputXMLIndented(delta, built);
+            assertEquals(new String(built.toByteArray(), ENCODING),
+                    new String(streamed.toByteArray(), ENCODING));
+        } catch (DiffException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Test text that needs escaping survives being written.
+     */
+    @Test
+    public final void testEscaping() {
+
+        String xml1 = "<a><b/></a>";
+        String xml2 = "<a><b/>&lt;&amp;&gt; \"x\"&#13;&#10;y"
+            + "<c z=\"&quot;&#9;&#10;&lt;\"/></a>";
+        Document doc1 = TestDocHelper.createDocument(xml1);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        
+        try {
+            (new Fmes()).diff(TestDocHelper.createDocument(xml1),
+                    TestDocHelper.createDocument(xml2), os);
+            Document delta = TestDocHelper.createDocument(
+                    new String(os.toByteArray(), ENCODING));
+            (new DULPatch()).apply(doc1, delta);
+        } catch (DiffException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (PatchFormatException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+
+        Node text = doc1.getDocumentElement().getFirstChild().getNextSibling();
+        assertEquals("<&> \"x\"\r\ny", text.getNodeValue());
+        Node c = text.getNextSibling();
+        assertEquals("\"\t\n<", 
+                c.getAttributes().getNamedItem("z").getNodeValue());
+    }
+}
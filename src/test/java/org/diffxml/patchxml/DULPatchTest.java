@@ -28,6 +28,15 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.TestDocHelper;
 import org.junit.Test;
 import org.w3c.dom.Document;
@@ -451,6 +460,34 @@ public class DULPatchTest {
         }
     }
     
+    /**
+     * Test moving a node from between text nodes, which join once the node
+     * is removed.
+     */
+    @Test
+    public final void testMoveFromBetweenText() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a>x<b/>y<c/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<move node=\"/a/node()[2]\" " 
+                + "parent=\"/a\" childno=\"3\" old_charpos=\"2\"/>" 
+                + "</delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            doc1.normalize();
+            Node text = doc1.getDocumentElement().getFirstChild();
+            assertEquals("xy", text.getNodeValue());
+            assertEquals("c", text.getNextSibling().getNodeName());
+            assertEquals("b", 
+                    text.getNextSibling().getNextSibling().getNodeName());
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+    
     /**
      * Test update of element.
      */
@@ -920,4 +957,216 @@ public class DULPatchTest {
         }
     }
     
+
+    /**
+     * A compiled patch can be applied to several documents.
+     */
+    @Test
+    public final void testApplyPlanTwice() {
+
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<delete node=\"/a/node()[1]\" charpos=\"2\" "
+                + "length=\"2\"/>"
+                + "<insert parent=\"/a\" nodetype=\"1\" "
+                + "childno=\"2\" charpos=\"3\" name=\"c\"/>"
+                + "</delta>");
+
+        try {
+            PatchPlan plan = new PatchPlan(patch);
+            assertEquals(2, plan.getOperations().size());
+            assertEquals(PatchOperation.Type.DELETE, 
+                    plan.getOperations().get(0).getType());
+            assertEquals(2, plan.getOperations().get(0).getCharPos());
+
+            DULPatch patcher = new DULPatch();
+            for (String text : new String[] {"abcd", "wxyz"}) {
+                Document doc = TestDocHelper.createDocument(
+                        "<a>" + text + "</a>");
+                patcher.apply(doc, plan);
+                Node first = doc.getDocumentElement().getFirstChild();
+                assertEquals(text.charAt(0) + text.substring(3), 
+                        first.getNodeValue());
+                assertEquals("c", first.getNextSibling().getNodeName());
+            }
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Malformed operations are rejected when the patch is compiled.
+     */
+    @Test
+    public final void testCompileInvalidOperation() {
+
+        String[] ops = {
+                "<insert parent=\"/a\" childno=\"1\" name=\"b\"/>",
+                "<insert parent=\"/a\" nodetype=\"1\" childno=\"x\" "
+                + "name=\"b\"/>",
+                "<insert nodetype=\"3\">text</insert>",
+                "<delete node=\"/a/node()[1]\" length=\"0\"/>",
+                "<move node=\"/a/b\" parent=\"/a\" new_charpos=\"0\"/>",
+                "<update>b</update>",
+                "<replace node=\"/a\"/>"};
+
+        for (String op : ops) {
+            Document patch = TestDocHelper.createDocument(
+                    "<delta>" + op + "</delta>");
+            try {
+                new PatchPlan(patch);
+                fail("Expected exception for " + op);
+            } catch (PatchFormatException e) {
+                assertTrue(e.getMessage().startsWith("Error at operation"));
+            }
+        }
+    }
+
+
+    /**
+     * Text left adjacent by one operation is merged before the next.
+     */
+    @Test
+    public final void testTextMergedBetweenOperations() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><c>pq<d/>rs</c>xy<b/>zw</a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<move node=\"/node()[1]/node()[1]/node()[2]\" "
+                + "parent=\"/node()[1]\" childno=\"3\" new_charpos=\"2\"/>"
+                + "<delete node=\"/node()[1]/node()[5]\"/>"
+                + "<delete node=\"/node()[1]/node()[4]\" charpos=\"2\" "
+                + "length=\"2\"/>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            Element c = (Element) doc1.getDocumentElement().getFirstChild();
+            assertEquals("pqrs", c.getTextContent());
+            assertEquals(1, c.getChildNodes().getLength());
+            Node x = c.getNextSibling();
+            assertEquals("x", x.getNodeValue());
+            assertEquals("d", x.getNextSibling().getNodeName());
+            Node y = x.getNextSibling().getNextSibling();
+            assertEquals("y", y.getNodeValue());
+            assertNull(y.getNextSibling());
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Test inserting a whole subtree held by the operation.
+     */
+    @Test
+    public final void testInsertSubtree() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a xmlns:p=\"urn:p\"><b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta><insert parent=\"/a\" nodetype=\"1\" childno=\"2\" "
+                + "name=\"c\" ns=\"urn:p\">"
+                + "<p:c xmlns:p=\"urn:p\" x=\"1\">t<d/><!--e--></p:c>"
+                + "</insert></delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            Element c = (Element) doc1.getDocumentElement().getLastChild();
+            assertEquals("c", c.getLocalName());
+            assertEquals("urn:p", c.getNamespaceURI());
+            assertEquals("1", c.getAttribute("x"));
+            assertEquals("", c.getAttribute("xmlns:p"));
+            assertEquals("t", c.getFirstChild().getNodeValue());
+            assertEquals("d", c.getFirstChild().getNextSibling().getNodeName());
+            assertEquals(Node.COMMENT_NODE, c.getLastChild().getNodeType());
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Test a subtree not matching the operation's name is rejected.
+     */
+    @Test
+    public final void testInsertSubtreeWrongName() {
+
+        Document patch = TestDocHelper.createDocument(
+                "<delta><insert parent=\"/a\" nodetype=\"1\" childno=\"2\" "
+                + "name=\"c\"><d/></insert></delta>");
+        try {
+            new PatchPlan(patch);
+            fail("Expected exception");
+        } catch (PatchFormatException e) {
+            assertTrue(e.getMessage().startsWith("Error at operation"));
+        }
+    }
+
+    /**
+     * Test a compiled plan isn't affected by changes to the patch document.
+     */
+    @Test
+    public final void testPlanIndependentOfPatch() {
+
+        Document patch = TestDocHelper.createDocument(
+                "<delta><insert parent=\"/a\" nodetype=\"1\" childno=\"1\" "
+                + "name=\"b\"><b x=\"1\"/></insert></delta>");
+
+        try {
+            PatchPlan plan = new PatchPlan(patch);
+            Element op = (Element) patch.getDocumentElement().getFirstChild();
+            ((Element) op.getFirstChild()).setAttribute("x", "2");
+            op.setAttribute("parent", "/c");
+
+            Document doc1 = TestDocHelper.createDocument("<a/>");
+            (new DULPatch()).apply(doc1, plan);
+            Element b = (Element) doc1.getDocumentElement().getFirstChild();
+            assertEquals("b", b.getNodeName());
+            assertEquals("1", b.getAttribute("x"));
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Test a plan with an inserted subtree can be applied by several threads
+     * at once.
+     */
+    @Test
+    public final void testSharedPlan() {
+
+        Document patch = TestDocHelper.createDocument(
+                "<delta><insert parent=\"/a\" nodetype=\"1\" childno=\"1\" "
+                + "name=\"b\"><b x=\"1\" y=\"2\"><c>text</c><!--d-->"
+                + "<e z=\"3\"/></b></insert></delta>");
+        final String expected = "<a><b x=\"1\" y=\"2\"><c>text</c><!--d-->"
+            + "<e z=\"3\"/></b></a>";
+
+        try {
+            final PatchPlan plan = new PatchPlan(patch);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws PatchFormatException {
+                        Document doc = TestDocHelper.createDocument("<a/>");
+                        (new DULPatch()).apply(doc, plan);
+                        return DOMOps.getNodeAsStringDeep(
+                                doc.getDocumentElement());
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        } catch (InterruptedException e) {
+            fail("Caught exception " + e);
+        } catch (ExecutionException e) {
+            fail("Caught exception " + e.getCause());
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+ 
+Copyright (C) 2002-2009 Adrian Mouat
+ 
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation; either version 2
+of the License, or (at your option) any later version.
+ 
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ 
+Author: Adrian Mouat
+email: adrian.mouat@gmail.com
+*/
+package org.diffxml.patchxml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Test resolving DUL paths.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public class DULPathTest {
+
+    /**
+     * Used for comparing against JAXP XPath.
+     */
+    private final XPath mXPath = XPathFactory.newInstance().newXPath();
+
+    /**
+     * Checks a path resolves to the same node as with JAXP XPath.
+     * 
+     * @param doc The document
+     * @param path The path to resolve
+     * @return The resolved node
+     */
+    private Node checkPath(final Document doc, final String path) {
+
+        Node ret = null;
+        try {
+            Node expected = (Node) mXPath.evaluate(path, 
+                    doc.getDocumentElement(), XPathConstants.NODE);
+            ret = (new DULPath(path, mXPath)).resolve(doc, mXPath);
+            assertSame(path, expected, ret);
+        } catch (XPathExpressionException e) {
+            fail("Caught exception " + e);
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Test child and attribute steps.
+     */
+    @Test
+    public final void testSimplePaths() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<!--c--><a x=\"1\"><b/>text<c y=\"2\"/></a>");
+
+        assertSame(doc, checkPath(doc, "/"));
+        assertEquals("c", checkPath(doc, "/node()[1]").getNodeValue());
+        assertEquals("b", checkPath(doc, "/node()[2]/node()[1]").getNodeName());
+        assertEquals("text", 
+                checkPath(doc, "/node()[2]/node()[2]").getNodeValue());
+        assertEquals("2", 
+                checkPath(doc, "/node()[2]/node()[3]/@y").getNodeValue());
+        assertNull(checkPath(doc, "/node()[2]/node()[4]"));
+        assertNull(checkPath(doc, "/node()[2]/node()[0]"));
+        assertNull(checkPath(doc, "/node()[2]/@z"));
+        assertNull(checkPath(doc, "/node()[1]/@x"));
+    }
+
+    /**
+     * Adjacent and empty text nodes are counted as in XPath.
+     */
+    @Test
+    public final void testUnnormalizedText() {
+
+        Document doc = TestDocHelper.createDocument("<a><b/></a>");
+        Element a = doc.getDocumentElement();
+        a.insertBefore(doc.createTextNode(""), a.getFirstChild());
+        a.appendChild(doc.createTextNode("x"));
+        a.appendChild(doc.createCDATASection("y"));
+        a.appendChild(doc.createTextNode(""));
+        a.appendChild(doc.createComment("z"));
+        a.appendChild(doc.createTextNode("w"));
+
+        assertEquals("", checkPath(doc, "/node()[1]/node()[1]").getNodeValue());
+        assertEquals("b", checkPath(doc, "/node()[1]/node()[2]").getNodeName());
+        assertEquals("x", 
+                checkPath(doc, "/node()[1]/node()[3]").getNodeValue());
+        assertEquals("z", 
+                checkPath(doc, "/node()[1]/node()[4]").getNodeValue());
+        assertEquals("w", 
+                checkPath(doc, "/node()[1]/node()[5]").getNodeValue());
+        assertNull(checkPath(doc, "/node()[1]/node()[6]"));
+    }
+
+    /**
+     * Paths outside the DUL grammar are still resolved.
+     */
+    @Test
+    public final void testOtherPaths() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a><b/><c><d/></c></a>");
+
+        assertEquals("d", checkPath(doc, "/a/c/d").getNodeName());
+        assertEquals("c", checkPath(doc, "//d/..").getNodeName());
+        assertEquals("b", checkPath(doc, "/node()[1]/*[1]").getNodeName());
+    }
+}